@@ -16,41 +16,311 @@
 
 package org.apache.jmeter.protocol.mqtt.client;
 
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
- * ClientPool holds the client instances in an ArrayList. The main purpose of
- * this is to make it easier to clean up all the instances at the end of a test.
+ * ClientPool holds the client instances of a test, and of the thread that created them. The main purpose of
+ * this is to make it easier to clean up all the instances at the end of a thread or a test.
  * If we didn't do this, threads might become zombie.
  * <p/>
- * N.B. This class needs to be fully synchronized as it is called from sample threads
- * and the thread that runs testEnded() methods.
+ * Samplers can also lease a client from a fixed number of shared connections per {@link ConnectionKey}, so that
+ * many threads publish or subscribe over fewer connections. A shared connection is closed when its last lease is
+ * returned.
+ * <p/>
+ * N.B. This class is called from sample threads and the thread that runs testEnded() methods. The client registry
+ * is concurrent, the shared connections are synchronized. Shared connections are connected and closed outside the
+ * lock : a lease reserves its slot under the lock, and the first lease of a slot connects it while the others wait
+ * for that connect alone.
  */
 public class ClientPool {
 
-    private static final ArrayList<Closeable> clients = new ArrayList<Closeable>();
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final Set<Closeable> clients =
+            Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+    private static final ThreadLocal<List<Closeable>> threadClients = new ThreadLocal<List<Closeable>>() {
+        @Override
+        protected List<Closeable> initialValue() {
+            return new ArrayList<Closeable>();
+        }
+    };
+    private static final HashMap<ConnectionKey, SharedConnections> sharedConnections =
+            new HashMap<ConnectionKey, SharedConnections>();
 
     /**
-     * Add a ReceiveClient to the ClientPool. This is so that we can make sure
-     * to close all clients and make sure all threads are destroyed.
+     * Add a client to the ClientPool. This is so that we can make sure to close all clients and make sure all
+     * threads are destroyed. The client belongs to the calling thread.
      *
-     * @param client the ReceiveClient to add
+     * @param client the client to add
      */
-    public static synchronized void addClient(Closeable client) {
+    public static void addClient(Closeable client) {
         clients.add(client);
+        threadClients.get().add(client);
+    }
+
+    /**
+     * Closes the clients added by the calling thread, leaving the clients of other threads connected.
+     */
+    public static void closeThreadClients() {
+        List<Closeable> closing = new ArrayList<Closeable>();
+        for (Closeable client : threadClients.get()) {
+            // Clients already closed at the end of the test are gone from the registry
+            if (clients.remove(client)) {
+                closing.add(client);
+            }
+        }
+        threadClients.remove();
+        for (Closeable client : closing) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.debug("Unable to close client cleanly : " + e.getMessage());
+                if (client instanceof BaseClient) {
+                    ((BaseClient) client).forceClose();
+                }
+            }
+        }
     }
 
     /**
      * Clear all the clients created by either Publish or Subscribe sampler. We
      * need to do this to make sure all the threads created during the test are
-     * destroyed and cleaned up.
+     * destroyed and cleaned up. The clients are closed in parallel, see {@link ClientShutdown}.
+     *
+     * @return The shutdown, holding the number of clients closed cleanly and forcibly.
+     */
+    public static ClientShutdown clearClient() {
+        List<Closeable> closing;
+        synchronized (ClientPool.class) {
+            sharedConnections.clear();
+            closing = new ArrayList<Closeable>(clients);
+            clients.removeAll(closing);
+        }
+        return ClientShutdown.closeAll(closing);
+    }
+
+    /**
+     * Leases one of the shared connections for the given connection options. Connections are handed out in turn
+     * and connected when first leased, or again if they were lost. The number of connections of a key is set by its
+     * first lease.
+     *
+     * @param key         The connection options.
+     * @param clientId    The client ID the connections are named after.
+     * @param connections The number of connections to share for the key.
+     * @return The leased client, or null if the client type is unknown.
+     * @throws MqttException if a connection could not be made.
+     */
+    public static BaseClient leaseClient(ConnectionKey key, String clientId, int connections)
+            throws MqttException {
+        SharedConnections shared;
+        Slot slot;
+        boolean connect;
+        synchronized (ClientPool.class) {
+            shared = sharedConnections.get(key);
+            if (null == shared) {
+                shared = new SharedConnections(Math.max(connections, 1));
+                sharedConnections.put(key, shared);
+            }
+            slot = shared.reserve(key);
+            connect = null == slot.connect;
+            if (connect) {
+                slot.connect = new FutureTask<BaseClient>(new Connect(shared, slot, key, clientId));
+            }
+        }
+        if (connect) {
+            slot.connect.run();
+        }
+
+        try {
+            BaseClient client = slot.connect.get();
+            if (null == client) {
+                synchronized (ClientPool.class) {
+                    shared.abandon(slot);
+                }
+            }
+            return client;
+        } catch (InterruptedException e) {
+            synchronized (ClientPool.class) {
+                slot.leases--;
+            }
+            Thread.currentThread().interrupt();
+            throw new MqttException(e);
+        } catch (ExecutionException e) {
+            synchronized (ClientPool.class) {
+                shared.abandon(slot);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof MqttException) {
+                throw (MqttException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new MqttException(cause);
+        }
+    }
+
+    /**
+     * Returns a leased client. The connection is closed once all of its leases are returned.
+     *
+     * @param key    The connection options the client was leased with.
+     * @param client The leased client.
+     * @throws IOException if closing the connection fails.
      */
-    public static synchronized void clearClient() throws IOException {
-        for (Closeable client : clients) {
+    public static void releaseClient(ConnectionKey key, BaseClient client) throws IOException {
+        boolean close;
+        synchronized (ClientPool.class) {
+            SharedConnections shared = sharedConnections.get(key);
+            close = null != shared && shared.release(client) && clients.remove(client);
+        }
+        if (close) {
             client.close();
         }
-        clients.clear();
+    }
+
+    /**
+     * The shared connections of a connection key, with the number of leases of each.
+     */
+    private static class SharedConnections {
+        private final Slot[] slots;
+        // The slots of the connected clients, also of those already replaced in their slot
+        private final Map<BaseClient, Slot> connected = new HashMap<BaseClient, Slot>();
+        private int next = 0;
+
+        SharedConnections(int size) {
+            slots = new Slot[size];
+        }
+
+        /**
+         * Takes a lease on the next slot, in a new slot if it is empty or its connection was lost. The caller
+         * connects a slot without a connect.
+         */
+        Slot reserve(ConnectionKey key) {
+            int index = next;
+            next = (next + 1) % slots.length;
+            Slot slot = slots[index];
+            if (null != slot && slot.isLost()) {
+                // Holders of the lost connection return it when they notice, it is only replaced here once the
+                // reconnector has given it up
+                log.info("Replacing lost shared connection " + index + " of " + key);
+                slot = null;
+            }
+            if (null == slot) {
+                slot = new Slot(index);
+                slots[index] = slot;
+            }
+            slot.leases++;
+            return slot;
+        }
+
+        /**
+         * Returns the lease of a slot whose connect failed, and empties the slot for the next lease to connect.
+         */
+        void abandon(Slot slot) {
+            slot.leases--;
+            if (slots[slot.index] == slot) {
+                slots[slot.index] = null;
+            }
+        }
+
+        boolean release(BaseClient client) {
+            Slot slot = connected.get(client);
+            if (null == slot) {
+                return false;
+            }
+            if (--slot.leases > 0) {
+                return false;
+            }
+            connected.remove(client);
+            if (slots[slot.index] == slot) {
+                slots[slot.index] = null;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A shared connection, reserved under the lock and connected outside it.
+     */
+    private static class Slot {
+        private final int index;
+        // Set by the first lease, which runs it
+        private FutureTask<BaseClient> connect;
+        private int leases = 0;
+
+        Slot(int index) {
+            this.index = index;
+        }
+
+        boolean isLost() {
+            if (!connect.isDone()) {
+                return false;
+            }
+            BaseClient client;
+            try {
+                client = connect.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                return true;
+            }
+            return null == client || (!client.isConnected() && !client.isReconnecting());
+        }
+    }
+
+    /**
+     * Connects a shared connection, outside the lock.
+     */
+    private static class Connect implements Callable<BaseClient> {
+        private final SharedConnections shared;
+        private final Slot slot;
+        private final ConnectionKey key;
+        private final String clientId;
+
+        Connect(SharedConnections shared, Slot slot, ConnectionKey key, String clientId) {
+            this.shared = shared;
+            this.slot = slot;
+            this.key = key;
+            this.clientId = clientId;
+        }
+
+        @Override
+        public BaseClient call() throws MqttException {
+            BaseClient client = ConnectionScheduler.getInstance().connect(key, clientId + "-" + slot.index);
+            if (null == client) {
+                return null;
+            }
+            boolean cleared;
+            synchronized (ClientPool.class) {
+                // The test ended while connecting
+                cleared = sharedConnections.get(key) != shared;
+                if (!cleared) {
+                    shared.connected.put(client, slot);
+                    clients.add(client);
+                }
+            }
+            if (cleared) {
+                client.forceClose();
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+            }
+            return client;
+        }
     }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.client;
+
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Closes clients in parallel within a deadline. Clients that have not disconnected cleanly when the deadline
+ * passes, or that fail to, are closed forcibly without waiting for the server. The last quarter of the time to the
+ * deadline is left to the forcible closes, so that the whole shutdown ends by the deadline.
+ * <p/>
+ * The deadline is set by the JMeter property mqtt.shutdown.timeout in milliseconds and the number of threads
+ * closing clients by mqtt.shutdown.threads.
+ */
+public class ClientShutdown {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String TIMEOUT_PROPERTY = "mqtt.shutdown.timeout";
+    private static final String THREADS_PROPERTY = "mqtt.shutdown.threads";
+
+    // Part of the timeout left to the forcible closes
+    private static final int FORCE_CLOSE_SHARE = 4;
+
+    private static final int PENDING = 0;
+    private static final int CLOSED_CLEANLY = 1;
+    private static final int CLOSED_FORCIBLY = 2;
+
+    private final List<Closeable> clients;
+    private final AtomicIntegerArray states;
+    private final AtomicInteger closedCleanly = new AtomicInteger(0);
+    private final AtomicInteger closedForcibly = new AtomicInteger(0);
+
+    private ClientShutdown(Collection<? extends Closeable> clients) {
+        this.clients = new ArrayList<Closeable>(clients);
+        this.states = new AtomicIntegerArray(this.clients.size());
+    }
+
+    /**
+     * Closes the given clients and logs how many closed cleanly and how many forcibly.
+     *
+     * @param clients The clients to close.
+     * @return The shutdown, holding the number of clients closed cleanly and forcibly.
+     */
+    public static ClientShutdown closeAll(Collection<? extends Closeable> clients) {
+        ClientShutdown shutdown = new ClientShutdown(clients);
+        if (!shutdown.clients.isEmpty()) {
+            long start = System.currentTimeMillis();
+            shutdown.run(JMeterUtils.getPropDefault(TIMEOUT_PROPERTY, 10000L),
+                         JMeterUtils.getPropDefault(THREADS_PROPERTY, 64));
+            log.info("Closed " + shutdown.clients.size() + " MQTT clients in " +
+                     (System.currentTimeMillis() - start) + " ms, " + shutdown.getClosedCleanly() + " cleanly and " +
+                     shutdown.getClosedForcibly() + " forcibly");
+        }
+        return shutdown;
+    }
+
+    public int getClosedCleanly() {
+        return closedCleanly.get();
+    }
+
+    public int getClosedForcibly() {
+        return closedForcibly.get();
+    }
+
+    private void run(long timeout, int threads) {
+        long deadline = System.currentTimeMillis() + timeout;
+        ExecutorService executor = newExecutor(threads, "MQTT client shutdown");
+        for (int i = 0; i < clients.size(); i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close(index);
+                }
+            });
+        }
+        executor.shutdown();
+        awaitTermination(executor, deadline - timeout / FORCE_CLOSE_SHARE - System.currentTimeMillis());
+        executor.shutdownNow();
+
+        // Whatever is still pending has missed the deadline
+        ExecutorService forceExecutor = newExecutor(threads, "MQTT client force close");
+        for (int i = 0; i < clients.size(); i++) {
+            final int index = i;
+            if (states.get(index) == PENDING) {
+                forceExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        forceClose(index);
+                    }
+                });
+            }
+        }
+        forceExecutor.shutdown();
+        awaitTermination(forceExecutor, deadline - System.currentTimeMillis());
+        forceExecutor.shutdownNow();
+    }
+
+    private void close(int index) {
+        Closeable client = clients.get(index);
+        try {
+            client.close();
+            if (states.compareAndSet(index, PENDING, CLOSED_CLEANLY)) {
+                closedCleanly.incrementAndGet();
+            }
+        } catch (IOException e) {
+            log.debug("Unable to close client cleanly : " + e.getMessage());
+            forceClose(index);
+        }
+    }
+
+    private void forceClose(int index) {
+        if (!states.compareAndSet(index, PENDING, CLOSED_FORCIBLY)) {
+            return;
+        }
+        closedForcibly.incrementAndGet();
+        Closeable client = clients.get(index);
+        if (client instanceof BaseClient) {
+            ((BaseClient) client).forceClose();
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor, long timeout) {
+        try {
+            executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newExecutor(int threads, final String name) {
+        return Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.client;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.protocol.mqtt.nio.Mqtt5Client;
+import org.apache.jmeter.protocol.mqtt.nio.NioClient;
+import org.apache.jmeter.protocol.mqtt.paho.clients.AsyncClient;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BlockingClient;
+import org.apache.jmeter.protocol.mqtt.paho.network.ConnectTimings;
+import org.apache.jmeter.protocol.mqtt.paho.network.TimingSocketFactory;
+import org.apache.jmeter.protocol.mqtt.paho.network.TlsTransport;
+import org.apache.jmeter.protocol.mqtt.paho.persistence.PersistenceFactory;
+import org.apache.jmeter.protocol.mqtt.utilities.Constants;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import javax.net.SocketFactory;
+
+/**
+ * The options a client connects with. Samplers with equal connection keys can share their connections.
+ */
+public class ConnectionKey {
+    private final String brokerUrl;
+    private final String userName;
+    private final String password;
+    private final boolean cleanSession;
+    private final int keepAlive;
+    private final String clientType;
+    private final int maxInFlight;
+    private final String persistenceType;
+
+    public ConnectionKey(String brokerUrl, String userName, String password, boolean cleanSession, int keepAlive,
+                         String clientType, int maxInFlight, String persistenceType) {
+        this.brokerUrl = StringUtils.defaultString(brokerUrl);
+        this.userName = StringUtils.defaultString(userName);
+        this.password = StringUtils.defaultString(password);
+        this.cleanSession = cleanSession;
+        this.keepAlive = keepAlive;
+        this.clientType = StringUtils.defaultString(clientType);
+        this.maxInFlight = maxInFlight;
+        this.persistenceType = StringUtils.defaultString(persistenceType);
+    }
+
+    public String getBrokerUrl() {
+        return brokerUrl;
+    }
+
+    public String getClientType() {
+        return clientType;
+    }
+
+    /**
+     * Gets whether clients connect over TLS.
+     *
+     * @return true for ssl:// broker URLs.
+     */
+    public boolean isTls() {
+        return brokerUrl.startsWith("ssl://");
+    }
+
+    /**
+     * Creates and connects a client with these options.
+     *
+     * @param clientId The client ID to connect with.
+     * @return The connected client, or null if the client type is unknown.
+     * @throws MqttException
+     */
+    public BaseClient newClient(String clientId) throws MqttException {
+        // Clients of ssl:// brokers share the TLS context of the JVM
+        return newClient(clientId, isTls() ? TlsTransport.getInstance().getSocketFactory(null) : null);
+    }
+
+    /**
+     * Creates and connects a client with these options over sockets of the given factory.
+     *
+     * @param clientId      The client ID to connect with.
+     * @param socketFactory The factory of the socket to connect with, null for the default of the broker URL.
+     * @return The connected client, or null if the client type is unknown.
+     * @throws MqttException
+     */
+    public BaseClient newClient(String clientId, SocketFactory socketFactory) throws MqttException {
+        if (Constants.MQTT_BLOCKING_CLIENT.equals(clientType)) {
+            return new BlockingClient(brokerUrl, clientId, cleanSession, userName, password, keepAlive,
+                                      PersistenceFactory.newPersistence(persistenceType, clientId), socketFactory);
+        } else if (Constants.MQTT_NIO_CLIENT.equals(clientType) || Constants.MQTT_V5_CLIENT.equals(clientType)) {
+            // Keeps its messages in flight in memory and connects without a socket factory
+            ConnectTimings timings = socketFactory instanceof TimingSocketFactory ?
+                    ((TimingSocketFactory) socketFactory).getTimings() : null;
+            if (Constants.MQTT_V5_CLIENT.equals(clientType)) {
+                return new Mqtt5Client(brokerUrl, clientId, cleanSession, userName, password, keepAlive,
+                                       maxInFlight, timings);
+            }
+            return new NioClient(brokerUrl, clientId, cleanSession, userName, password, keepAlive, maxInFlight,
+                                 timings);
+        } else if (Constants.MQTT_ASYNC_CLIENT.equals(clientType)) {
+            return new AsyncClient(brokerUrl, clientId, cleanSession, userName, password, keepAlive, maxInFlight,
+                                   PersistenceFactory.newPersistence(persistenceType, clientId), socketFactory);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ConnectionKey)) {
+            return false;
+        }
+        ConnectionKey other = (ConnectionKey) o;
+        return cleanSession == other.cleanSession && keepAlive == other.keepAlive &&
+               maxInFlight == other.maxInFlight && brokerUrl.equals(other.brokerUrl) &&
+               userName.equals(other.userName) && password.equals(other.password) &&
+               clientType.equals(other.clientType) && persistenceType.equals(other.persistenceType);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = brokerUrl.hashCode();
+        result = 31 * result + userName.hashCode();
+        result = 31 * result + password.hashCode();
+        result = 31 * result + (cleanSession ? 1 : 0);
+        result = 31 * result + keepAlive;
+        result = 31 * result + clientType.hashCode();
+        result = 31 * result + maxInFlight;
+        result = 31 * result + persistenceType.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return clientType + " " + (userName.isEmpty() ? "" : userName + "@") + brokerUrl;
+    }
+}
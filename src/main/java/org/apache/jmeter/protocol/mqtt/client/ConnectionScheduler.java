@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.client;
+
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyReporter;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the connects of all samplers in the JVM. Threads asking for a connection are given evenly spaced connect
+ * slots, so the connect rate follows the configured rate however fast the threads ramp up, and the number of
+ * connects in progress at the same time is bounded.
+ * <p/>
+ * The scheduler does not open connections of its own. The connects run in parallel on the threads asking for them :
+ * the JMeter threads, and for thousands of clients the device threads of a {@link DeviceFleet}, which connect all
+ * their devices at once and leave the pacing to the scheduler. A pre-connect phase would open the same connections
+ * at the same rate, only earlier.
+ * <p/>
+ * Configured by the JMeter properties
+ * <ul>
+ * <li>mqtt.connect.rate : connects per second, 0 for no limit (default)</li>
+ * <li>mqtt.connect.concurrency : connects in progress at the same time, 0 for no limit (default)</li>
+ * <li>mqtt.connect.jitter : maximum random delay in milliseconds added to each connect slot, default 0</li>
+ * </ul>
+ * The time to connect, up to the CONNACK, and the failed connects are reported as the connect-latency metric.
+ */
+public class ConnectionScheduler {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String RATE_PROPERTY = "mqtt.connect.rate";
+    private static final String CONCURRENCY_PROPERTY = "mqtt.connect.concurrency";
+    private static final String JITTER_PROPERTY = "mqtt.connect.jitter";
+
+    private static final ConnectionScheduler instance = new ConnectionScheduler();
+
+    private final LatencyReporter connectReporter = new LatencyReporter("connect-latency");
+    private final AtomicLong nextSlot = new AtomicLong(0);
+    private final Random random = new Random();
+    private volatile long slotInterval;
+    private volatile long jitter;
+    private volatile Semaphore concurrency;
+    private boolean started = false;
+
+    private ConnectionScheduler() {
+    }
+
+    public static ConnectionScheduler getInstance() {
+        return instance;
+    }
+
+    public LatencyReporter getConnectReporter() {
+        return connectReporter;
+    }
+
+    /**
+     * Reads the configuration and starts reporting, unless the scheduler is already started.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        double rate = 0;
+        try {
+            rate = Double.parseDouble(JMeterUtils.getPropDefault(RATE_PROPERTY, "0").trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + RATE_PROPERTY + ", connects are not rate limited : " + e.getMessage());
+        }
+        int maxConcurrency = JMeterUtils.getPropDefault(CONCURRENCY_PROPERTY, 0);
+        slotInterval = rate > 0 ? (long) (1000000000D / rate) : 0;
+        jitter = JMeterUtils.getPropDefault(JITTER_PROPERTY, 0L) * 1000000L;
+        concurrency = maxConcurrency > 0 ? new Semaphore(maxConcurrency, true) : null;
+        nextSlot.set(System.nanoTime());
+        if (slotInterval > 0 || null != concurrency || jitter > 0) {
+            log.info("Scheduling MQTT connects at " + (rate > 0 ? rate + "/s" : "any rate") + ", " +
+                     (maxConcurrency > 0 ? maxConcurrency : "any number of") + " at a time, with " +
+                     (jitter / 1000000L) + " ms jitter");
+        }
+        connectReporter.start();
+    }
+
+    /**
+     * Stops reporting, unless the scheduler is already stopped.
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        connectReporter.stop();
+    }
+
+    /**
+     * Connects a client once its connect slot is due.
+     *
+     * @param key      The options to connect with.
+     * @param clientId The client ID to connect with.
+     * @return The connected client, or null if the client type is unknown.
+     * @throws MqttException if the connect fails or the thread is interrupted while waiting for its slot.
+     */
+    public BaseClient connect(ConnectionKey key, String clientId) throws MqttException {
+        Semaphore permits = concurrency;
+        try {
+            awaitSlot();
+            if (null != permits) {
+                permits.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MqttException(e);
+        }
+        long start = System.nanoTime();
+        try {
+            BaseClient client = key.newClient(clientId);
+            if (null != client && !client.isConnected()) {
+                client.forceClose();
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            connectReporter.getHistogram().record(System.nanoTime() - start);
+            return client;
+        } catch (MqttException e) {
+            connectReporter.recordError();
+            throw e;
+        } finally {
+            if (null != permits) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Takes the next connect slot and sleeps until it is due.
+     *
+     * @throws InterruptedException if the thread is interrupted while sleeping.
+     */
+    private void awaitSlot() throws InterruptedException {
+        long interval = slotInterval;
+        long now = System.nanoTime();
+        long slot = now;
+        if (interval > 0) {
+            while (true) {
+                long next = nextSlot.get();
+                slot = Math.max(next, now);
+                if (nextSlot.compareAndSet(next, slot + interval)) {
+                    break;
+                }
+            }
+        }
+        long maxJitter = jitter;
+        if (maxJitter > 0) {
+            slot += (long) (random.nextDouble() * maxJitter);
+        }
+        long delay = slot - now;
+        if (delay > 0) {
+            Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+        }
+    }
+}
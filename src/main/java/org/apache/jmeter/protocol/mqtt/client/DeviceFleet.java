@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.client;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.protocol.mqtt.data.objects.LatencyHeader;
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyHistogram;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jmeter.protocol.mqtt.payload.GeneratedPayloadSource;
+import org.apache.jmeter.protocol.mqtt.payload.PayloadSource;
+import org.apache.jmeter.protocol.mqtt.payload.SizeDistribution;
+import org.apache.jmeter.protocol.mqtt.utilities.Clock;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fleet of simulated devices, each with its own client, run on threads of {@link DeviceThreads} rather than on
+ * the JMeter thread owning the fleet. A device connects through the {@link ConnectionScheduler}, subscribes if the
+ * fleet has a subscribe topic, and then publishes once per publish interval, starting at a random offset so the
+ * devices do not publish in step. With no publish interval the devices only hold their sessions open.
+ * <p/>
+ * A device whose connect fails, or whose connection is lost and not reconnected by the {@link Reconnector}, connects
+ * again after the publish interval, or after a second if it does not publish. The JMeter thread reads the counters
+ * of the fleet to report on it.
+ */
+public class DeviceFleet {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // Milliseconds before a device without a publish interval connects again
+    private static final long RETRY_INTERVAL = 1000;
+    // Milliseconds to wait for the devices to end once their clients are closed
+    private static final long STOP_TIMEOUT = 5000;
+    // The text replaced by the number of the device in topics
+    private static final String DEVICE_PLACEHOLDER = "{device}";
+
+    private final ConnectionKey connectionKey;
+    private final String clientIdPrefix;
+    private final int deviceCount;
+    private final String topic;
+    private final String subscribeTopic;
+    private final int qos;
+    private final SizeDistribution payloadSizes;
+    private final boolean latencyHeader;
+    private final long publishInterval;
+
+    private final Set<BaseClient> clients =
+            Collections.newSetFromMap(new ConcurrentHashMap<BaseClient, Boolean>());
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicInteger connected = new AtomicInteger(0);
+    private final AtomicLong connectFailures = new AtomicLong(0);
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicLong publishFailures = new AtomicLong(0);
+    private final AtomicLong publishTime = new AtomicLong(0);
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+    private volatile ExecutorService executor;
+
+    /**
+     * @param connectionKey   The options the devices connect with.
+     * @param clientIdPrefix  The prefix of the client IDs, followed by the number of the device.
+     * @param deviceCount     The number of devices.
+     * @param topic           The topic to publish to, {device} is replaced by the number of the device.
+     * @param subscribeTopic  The topic to subscribe to, {device} is replaced by the number of the device, empty for
+     *                        none. Received messages are only counted, and their latency recorded if they have a
+     *                        latency header.
+     * @param qos             The QoS to publish and subscribe with.
+     * @param payloadSizes    The sizes of the generated payloads to publish. Each device draws them with a random of
+     *                        its own, so the devices do not contend on one.
+     * @param latencyHeader   true to prepend a latency header to each payload.
+     * @param publishInterval The time between two publishes of a device in milliseconds, 0 to not publish.
+     */
+    public DeviceFleet(ConnectionKey connectionKey, String clientIdPrefix, int deviceCount, String topic,
+                       String subscribeTopic, int qos, SizeDistribution payloadSizes, boolean latencyHeader,
+                       long publishInterval) {
+        this.connectionKey = connectionKey;
+        this.clientIdPrefix = clientIdPrefix;
+        this.deviceCount = deviceCount;
+        this.topic = topic;
+        this.subscribeTopic = subscribeTopic;
+        this.qos = qos;
+        this.payloadSizes = payloadSizes;
+        this.latencyHeader = latencyHeader;
+        this.publishInterval = publishInterval;
+    }
+
+    /**
+     * Starts the devices, without waiting for them to connect.
+     *
+     * @param name The name of the threads of the devices.
+     */
+    public void start(String name) {
+        executor = DeviceThreads.newExecutor(name);
+        for (int i = 1; i <= deviceCount; i++) {
+            final int device = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runDevice(device);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the devices and closes their clients, then waits for the devices to end.
+     */
+    public void stop() {
+        stopped.countDown();
+        ExecutorService current = executor;
+        if (null != current) {
+            // Wakes up the devices waiting for a connect slot or their next publish
+            current.shutdownNow();
+        }
+        ClientShutdown.closeAll(clients);
+        clients.clear();
+        if (null != current) {
+            try {
+                current.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getDeviceCount() {
+        return deviceCount;
+    }
+
+    /**
+     * Gets the number of devices connected.
+     */
+    public int getConnected() {
+        return connected.get();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.get();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getPublishFailures() {
+        return publishFailures.get();
+    }
+
+    /**
+     * Gets the total time the devices spent publishing in nanoseconds.
+     */
+    public long getPublishTime() {
+        return publishTime.get();
+    }
+
+    public LatencyHistogram getPublishLatency() {
+        return publishLatency;
+    }
+
+    /**
+     * Takes the number of messages received by the devices since the last call.
+     *
+     * @return The number of messages.
+     */
+    public long takeReceived() {
+        long received = 0;
+        for (BaseClient client : clients) {
+            received += client.takeUnqueuedMessageCount();
+        }
+        return received;
+    }
+
+    private boolean isStopped() {
+        return 0 == stopped.getCount();
+    }
+
+    private void runDevice(int device) {
+        String clientId = clientIdPrefix + device;
+        String deviceNumber = Integer.toString(device);
+        String publishTopic = StringUtils.replace(topic, DEVICE_PLACEHOLDER, deviceNumber);
+        String deviceSubscribeTopic = StringUtils.replace(subscribeTopic, DEVICE_PLACEHOLDER, deviceNumber);
+        long retryInterval = publishInterval > 0 ? publishInterval : RETRY_INTERVAL;
+        Random random = new Random();
+        PayloadSource payloadSource = new GeneratedPayloadSource(payloadSizes, random);
+        try {
+            while (!isStopped()) {
+                BaseClient client = connect(clientId, deviceSubscribeTopic);
+                if (null == client) {
+                    stopped.await(retryInterval, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                connected.incrementAndGet();
+                try {
+                    if (publishInterval > 0) {
+                        publish(client, publishTopic, payloadSource, random);
+                    } else {
+                        holdSession(client);
+                    }
+                } finally {
+                    connected.decrementAndGet();
+                }
+                if (!isStopped()) {
+                    // Lost and not reconnected, a new client connects
+                    clients.remove(client);
+                    client.forceClose();
+                    stopped.await(retryInterval, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (RuntimeException e) {
+            log.warn("Simulated device " + clientId + " failed : " + e, e);
+        }
+    }
+
+    /**
+     * Connects the client of a device and subscribes it.
+     *
+     * @return The client, or null if the connect or the subscription failed.
+     */
+    private BaseClient connect(String clientId, String deviceSubscribeTopic) {
+        BaseClient client = null;
+        try {
+            client = ConnectionScheduler.getInstance().connect(connectionKey, clientId);
+            if (null == client) {
+                throw new IllegalStateException("Unknown client type " + connectionKey.getClientType());
+            }
+            clients.add(client);
+            if (isStopped()) {
+                // Too late to be closed by stop
+                clients.remove(client);
+                client.forceClose();
+                return null;
+            }
+            if (StringUtils.isNotEmpty(deviceSubscribeTopic)) {
+                client.setLatencyOnly(true);
+                client.subscribe(deviceSubscribeTopic, qos);
+            }
+            return client;
+        } catch (MqttException e) {
+            if (!isStopped()) {
+                connectFailures.incrementAndGet();
+                log.debug("Simulated device " + clientId + " failed to connect : " + e);
+            }
+            if (null != client) {
+                clients.remove(client);
+                client.forceClose();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Publishes once per publish interval while the client is connected or being reconnected.
+     */
+    private void publish(BaseClient client, String publishTopic, PayloadSource payloadSource, Random random)
+            throws InterruptedException {
+        int publisherId = publishTopic.hashCode() ^ System.identityHashCode(client);
+        long sequence = 0;
+        long next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos((long) (random.nextDouble() * publishInterval));
+        while (true) {
+            long delay = next - System.nanoTime();
+            if (delay > 0 && stopped.await(delay, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+            // A device falling behind publishes late rather than catching up in a burst
+            next = Math.max(next, System.nanoTime()) + TimeUnit.MILLISECONDS.toNanos(publishInterval);
+            if (client.isReconnecting()) {
+                client.awaitReconnect(publishInterval);
+                continue;
+            }
+            if (!client.isConnected()) {
+                return;
+            }
+            byte[] payload = payloadSource.nextPayload();
+            if (latencyHeader) {
+                payload = LatencyHeader.prepend(payload, publisherId, ++sequence, Clock.epochNanos());
+            }
+            long start = System.nanoTime();
+            try {
+                client.publish(new PublishMessage(publishTopic, qos, false, payload));
+                long time = System.nanoTime() - start;
+                publishLatency.record(time);
+                publishTime.addAndGet(time);
+                published.incrementAndGet();
+            } catch (MqttException e) {
+                if (isStopped()) {
+                    return;
+                }
+                publishFailures.incrementAndGet();
+                log.debug("Simulated device failed to publish to " + publishTopic + " : " + e);
+            }
+        }
+    }
+
+    /**
+     * Waits while the client is connected or being reconnected.
+     */
+    private void holdSession(BaseClient client) throws InterruptedException {
+        while (!stopped.await(RETRY_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (!client.isConnected() && !client.isReconnecting()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.client;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads simulated devices run on. On Java 21 and later every device gets a virtual thread, so a device
+ * blocked in a connect, publish or sleep costs a few hundred bytes of heap instead of a platform thread and its
+ * stack. Older JVMs, or the JMeter property mqtt.device.virtual.threads set to false, give each device a platform
+ * thread.
+ * <p/>
+ * The virtual thread API is looked up by reflection, as the plugin is built for older Java versions.
+ */
+public final class DeviceThreads {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String VIRTUAL_PROPERTY = "mqtt.device.virtual.threads";
+
+    private DeviceThreads() {
+    }
+
+    /**
+     * Creates an executor running each task on a new thread.
+     *
+     * @param name The prefix of the names of the threads.
+     * @return The executor.
+     */
+    public static ExecutorService newExecutor(String name) {
+        if (JMeterUtils.getPropDefault(VIRTUAL_PROPERTY, true)) {
+            ExecutorService executor = newVirtualExecutor(name);
+            if (null != executor) {
+                log.info("Running simulated MQTT devices of " + name + " on virtual threads");
+                return executor;
+            }
+        }
+        log.info("Running simulated MQTT devices of " + name + " on platform threads");
+        return newPlatformExecutor(name);
+    }
+
+    /**
+     * Gets whether devices run on virtual threads.
+     *
+     * @return true if the JVM has virtual threads and they are not disabled.
+     */
+    public static boolean isVirtual() {
+        return JMeterUtils.getPropDefault(VIRTUAL_PROPERTY, true) && null != VirtualThreads.FACTORY;
+    }
+
+    private static ExecutorService newVirtualExecutor(String name) {
+        if (null == VirtualThreads.FACTORY) {
+            return null;
+        }
+        try {
+            Object builder = VirtualThreads.OF_VIRTUAL.invoke(null);
+            builder = VirtualThreads.NAME.invoke(builder, name + " ", 1L);
+            ThreadFactory factory = (ThreadFactory) VirtualThreads.FACTORY.invoke(builder);
+            return (ExecutorService) VirtualThreads.NEW_EXECUTOR.invoke(null, factory);
+        } catch (Exception e) {
+            log.warn("Unable to create virtual threads : " + e);
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformExecutor(final String name) {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * The methods of the virtual thread API, all null on JVMs without virtual threads.
+     */
+    private static final class VirtualThreads {
+        static final Method OF_VIRTUAL;
+        static final Method NAME;
+        static final Method FACTORY;
+        static final Method NEW_EXECUTOR;
+
+        static {
+            Method ofVirtual = null;
+            Method name = null;
+            Method factory = null;
+            Method newExecutor = null;
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class, long.class);
+                factory = builder.getMethod("factory");
+                newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            } catch (Exception e) {
+                // Java 18 or older
+                ofVirtual = null;
+                name = null;
+                factory = null;
+                newExecutor = null;
+            }
+            OF_VIRTUAL = ofVirtual;
+            NAME = name;
+            FACTORY = factory;
+            NEW_EXECUTOR = newExecutor;
+        }
+    }
+}
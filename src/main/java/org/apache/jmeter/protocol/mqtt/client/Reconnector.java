@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.client;
+
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyReporter;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reconnects the clients of all samplers in the JVM when their connection is lost. A client is connected again
+ * with the same client ID, session and persisted messages in flight, and subscribes again to its topics. Attempts
+ * are retried with an exponentially growing delay, of which a random half is added as jitter so that clients which
+ * lost their connection at once do not reconnect at once.
+ * <p/>
+ * Configured by the JMeter properties
+ * <ul>
+ * <li>mqtt.reconnect : whether lost connections are reconnected, default true</li>
+ * <li>mqtt.reconnect.initial.delay : delay in milliseconds before the first attempt, default 100</li>
+ * <li>mqtt.reconnect.max.delay : maximum delay in milliseconds between attempts, default 30000</li>
+ * <li>mqtt.reconnect.max.attempts : attempts before a client is given up, 0 for no limit (default)</li>
+ * <li>mqtt.reconnect.threads : threads making the attempts, default 8</li>
+ * <li>mqtt.reconnect.wait : time in milliseconds a sample waits for its client to reconnect, default 1000</li>
+ * </ul>
+ * The time from losing a connection to being connected again and the failed attempts are reported as the
+ * reconnect-latency metric. The number of reconnects and of messages sent again are logged at the end of the test.
+ */
+public class Reconnector {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String ENABLED_PROPERTY = "mqtt.reconnect";
+    private static final String INITIAL_DELAY_PROPERTY = "mqtt.reconnect.initial.delay";
+    private static final String MAX_DELAY_PROPERTY = "mqtt.reconnect.max.delay";
+    private static final String MAX_ATTEMPTS_PROPERTY = "mqtt.reconnect.max.attempts";
+    private static final String THREADS_PROPERTY = "mqtt.reconnect.threads";
+    private static final String WAIT_PROPERTY = "mqtt.reconnect.wait";
+
+    private static final Reconnector instance = new Reconnector();
+
+    private final LatencyReporter reconnectReporter = new LatencyReporter("reconnect-latency");
+    private final AtomicLong reconnectCount = new AtomicLong(0);
+    private final AtomicLong replayedCount = new AtomicLong(0);
+    private final AtomicLong givenUpCount = new AtomicLong(0);
+    private final Random random = new Random();
+    private volatile ScheduledExecutorService executor;
+    private volatile long initialDelay;
+    private volatile long maxDelay;
+    private volatile int maxAttempts;
+    private volatile long sampleWait;
+
+    private Reconnector() {
+    }
+
+    public static Reconnector getInstance() {
+        return instance;
+    }
+
+    public LatencyReporter getReconnectReporter() {
+        return reconnectReporter;
+    }
+
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * Gets the time a sample waits for its client to reconnect before it fails.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getSampleWait() {
+        return sampleWait;
+    }
+
+    /**
+     * Reads the configuration and starts reconnecting lost clients, unless reconnecting is disabled or already
+     * started.
+     */
+    public synchronized void start() {
+        if (null != executor || !JMeterUtils.getPropDefault(ENABLED_PROPERTY, true)) {
+            return;
+        }
+        initialDelay = Math.max(JMeterUtils.getPropDefault(INITIAL_DELAY_PROPERTY, 100L), 1L);
+        maxDelay = Math.max(JMeterUtils.getPropDefault(MAX_DELAY_PROPERTY, 30000L), initialDelay);
+        maxAttempts = JMeterUtils.getPropDefault(MAX_ATTEMPTS_PROPERTY, 0);
+        sampleWait = JMeterUtils.getPropDefault(WAIT_PROPERTY, 1000L);
+        int threads = Math.max(JMeterUtils.getPropDefault(THREADS_PROPERTY, 8), 1);
+        reconnectCount.set(0);
+        replayedCount.set(0);
+        givenUpCount.set(0);
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MQTT reconnect-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reconnectReporter.start();
+    }
+
+    /**
+     * Stops reconnecting and reports the reconnects of the test, unless the reconnector is already stopped. Clients
+     * still waiting to be reconnected are left disconnected.
+     */
+    public synchronized void stop() {
+        if (null == executor) {
+            return;
+        }
+        executor.shutdownNow();
+        executor = null;
+        reconnectReporter.stop();
+        log.info("MQTT reconnects : " + reconnectCount.get() + ", messages sent again : " + replayedCount.get() +
+                 ", clients given up : " + givenUpCount.get());
+    }
+
+    /**
+     * Starts reconnecting a client which lost its connection. The client is marked as reconnecting until it is
+     * connected again or given up.
+     *
+     * @param client The client.
+     */
+    public void reconnect(BaseClient client) {
+        ScheduledExecutorService reconnectExecutor = executor;
+        if (null == reconnectExecutor) {
+            return;
+        }
+        client.setReconnecting(true);
+        new Attempt(client, reconnectExecutor).schedule();
+    }
+
+    /**
+     * Gets the delay before an attempt : the initial delay doubled for every failed attempt, up to the maximum
+     * delay, of which the second half is random.
+     *
+     * @param attempt The number of failed attempts.
+     * @return The delay in milliseconds.
+     */
+    private long getDelay(int attempt) {
+        // Doubling stops well before the delay could overflow
+        long delay = Math.min(maxDelay, initialDelay << Math.min(attempt, 30));
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * The reconnect attempts of a client, rescheduled until one succeeds.
+     */
+    private class Attempt implements Runnable {
+        private final BaseClient client;
+        private final ScheduledExecutorService reconnectExecutor;
+        private final long lostTime = System.nanoTime();
+        private int failedAttempts = 0;
+
+        Attempt(BaseClient client, ScheduledExecutorService reconnectExecutor) {
+            this.client = client;
+            this.reconnectExecutor = reconnectExecutor;
+        }
+
+        void schedule() {
+            try {
+                reconnectExecutor.schedule(this, getDelay(failedAttempts), TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // Rejected once the test ends
+                client.setReconnecting(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (client.isClosed() || reconnectExecutor.isShutdown()) {
+                client.setReconnecting(false);
+                return;
+            }
+            try {
+                int replayed = client.reconnect();
+                reconnectReporter.getHistogram().record(System.nanoTime() - lostTime);
+                reconnectCount.incrementAndGet();
+                replayedCount.addAndGet(replayed);
+                client.setReconnecting(false);
+                log.info("Reconnected after " + (failedAttempts + 1) + " attempts, sending " + replayed +
+                         " messages again");
+            } catch (MqttException e) {
+                reconnectReporter.recordError();
+                failedAttempts++;
+                if (maxAttempts > 0 && failedAttempts >= maxAttempts) {
+                    log.warn("Giving up reconnecting after " + failedAttempts + " attempts : " + e.getMessage());
+                    givenUpCount.incrementAndGet();
+                    client.setReconnecting(false);
+                    return;
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Reconnect attempt " + failedAttempts + " failed : " + e.getMessage());
+                }
+                schedule();
+            }
+        }
+    }
+}
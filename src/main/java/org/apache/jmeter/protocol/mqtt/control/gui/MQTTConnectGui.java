@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.control.gui;
+
+import org.apache.jmeter.gui.util.JLabeledRadioI18N;
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.protocol.mqtt.sampler.ConnectSampler;
+import org.apache.jmeter.protocol.mqtt.utilities.Constants;
+import org.apache.jmeter.protocol.mqtt.utilities.Utils;
+import org.apache.jmeter.samplers.gui.AbstractSamplerGui;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledPasswordField;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import javax.swing.BorderFactory;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * This is the MQTT Connect Sampler GUI class. All swing components of the UI are included in this class.
+ */
+public class MQTTConnectGui extends AbstractSamplerGui implements ActionListener {
+
+    private static final long serialVersionUID = 240L;
+
+    private static final String[] CLIENT_TYPES_ITEMS = {Constants.MQTT_BLOCKING_CLIENT, Constants.MQTT_ASYNC_CLIENT,
+            Constants.MQTT_NIO_CLIENT, Constants.MQTT_V5_CLIENT};
+    private static final String[] PERSISTENCE_ITEMS = {Constants.MQTT_PERSISTENCE_NONE,
+            Constants.MQTT_PERSISTENCE_MEMORY, Constants.MQTT_PERSISTENCE_FILE, Constants.MQTT_PERSISTENCE_LOG};
+
+    private final JLabeledTextField brokerUrlField = new JLabeledTextField(Constants.MQTT_PROVIDER_URL);
+    private final JLabeledTextField clientId = new JLabeledTextField(Constants.MQTT_CLIENT_ID);
+    private final JButton generateClientID = new JButton(Constants.MQTT_CLIENT_ID_GENERATOR);
+
+    private final JCheckBox cleanSession = new JCheckBox(Constants.MQTT_CLEAN_SESSION, false);
+    private final JCheckBox keepConnection = new JCheckBox(Constants.MQTT_KEEP_CONNECTION, false);
+
+    private final JLabeledTextField mqttKeepAlive = new JLabeledTextField(Constants.MQTT_KEEP_ALIVE);
+
+    private final JLabeledTextField mqttUser = new JLabeledTextField(Constants.MQTT_USERNAME);
+    private final JLabeledTextField mqttPwd = new JLabeledPasswordField(Constants.MQTT_PASSWORD);
+    private final JButton resetUserNameAndPassword = new JButton(Constants.MQTT_RESET_USERNAME_PASSWORD);
+
+    private final JLabeledRadioI18N persistence = new JLabeledRadioI18N(Constants.MQTT_PERSISTENCE,
+            PERSISTENCE_ITEMS, Constants.MQTT_PERSISTENCE_FILE);
+    private final JLabeledRadioI18N typeClientValue = new JLabeledRadioI18N(Constants.MQTT_CLIENT_TYPES,
+            CLIENT_TYPES_ITEMS, Constants.MQTT_BLOCKING_CLIENT);
+
+    public MQTTConnectGui() {
+        init();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getStaticLabel() {
+        return Constants.MQTT_CONNECT_TITLE;
+    }
+
+    /**
+     * Creates a test element for MQTT connect
+     * @see org.apache.jmeter.gui.JMeterGUIComponent#createTestElement()
+     */
+    @Override
+    public TestElement createTestElement() {
+        ConnectSampler sampler = new ConnectSampler();
+        modifyTestElement(sampler);
+        return sampler;
+    }
+
+    /**
+     * Modifies a given TestElement to mirror the data in the gui components.
+     *
+     * @see org.apache.jmeter.gui.JMeterGUIComponent#modifyTestElement(TestElement)
+     */
+    @Override
+    public void modifyTestElement(TestElement s) {
+        ConnectSampler sampler = (ConnectSampler) s;
+        this.configureTestElement(sampler);
+        sampler.setBrokerUrl(brokerUrlField.getText());
+        sampler.setClientId(clientId.getText());
+        sampler.setCleanSession(cleanSession.isSelected());
+        sampler.setKeepAlive(mqttKeepAlive.getText());
+        sampler.setUsername(mqttUser.getText());
+        sampler.setPassword(mqttPwd.getText());
+        sampler.setClientType(typeClientValue.getText());
+        sampler.setPersistence(persistence.getText());
+        sampler.setKeepConnection(keepConnection.isSelected());
+    }
+
+    /**
+     * Initializes all the UI elements
+     */
+    private void init() {
+        setLayout(new BorderLayout());
+        setBorder(makeBorder());
+        add(makeTitlePanel(), BorderLayout.NORTH);
+        JPanel mainPanel = new VerticalPanel();
+        add(mainPanel, BorderLayout.CENTER);
+        JPanel DPanel = new JPanel();
+        DPanel.setLayout(new BoxLayout(DPanel, BoxLayout.X_AXIS));
+        DPanel.add(brokerUrlField);
+        DPanel.add(clientId);
+        DPanel.add(generateClientID);
+        JPanel ControlPanel = new VerticalPanel();
+        ControlPanel.add(DPanel);
+        ControlPanel.add(cleanSession);
+        ControlPanel.add(createKeepAlivePane());
+        ControlPanel.add(createAuthPane());
+        ControlPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray),
+                "Connection Info"));
+        mainPanel.add(ControlPanel);
+        JPanel TPanel = new VerticalPanel();
+        TPanel.setLayout(new BoxLayout(TPanel, BoxLayout.X_AXIS));
+        typeClientValue.setLayout(new BoxLayout(typeClientValue, BoxLayout.X_AXIS));
+        TPanel.add(typeClientValue);
+        persistence.setLayout(new BoxLayout(persistence, BoxLayout.X_AXIS));
+        TPanel.add(persistence);
+        TPanel.add(keepConnection);
+        TPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray), "Option"));
+        mainPanel.add(TPanel);
+
+        generateClientID.setActionCommand(Constants.GENERATE_CLIENT_ID_COMMAND);
+        resetUserNameAndPassword.setActionCommand(Constants.RESET_CREDENTIALS);
+        generateClientID.addActionListener(this);
+        resetUserNameAndPassword.addActionListener(this);
+        brokerUrlField.setText(Constants.MQTT_URL_DEFAULT);
+    }
+
+    /**
+     * Creates the panel for user authentication. Username and password are included.
+     * @return JPanel Panel with checkbox to choose  user and password
+     */
+    private Component createAuthPane() {
+        mqttUser.setText(Constants.MQTT_USER_USERNAME);
+        mqttPwd.setText(Constants.MQTT_USER_PASSWORD);
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(mqttUser);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(mqttPwd);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(resetUserNameAndPassword);
+        return panel;
+    }
+
+    /**
+     * {@inheritDoc}. </br>.
+     * Loads fields from an existing sampler file.
+     *
+     * @param el The test element
+     */
+    @Override
+    public void configure(TestElement el) {
+        super.configure(el);
+        ConnectSampler sampler = (ConnectSampler) el;
+        brokerUrlField.setText(sampler.getBrokerUrl());
+        clientId.setText(sampler.getClientId());
+        cleanSession.setSelected(sampler.isCleanSession());
+        mqttKeepAlive.setText(Integer.toString(sampler.getKeepAlive()));
+        mqttUser.setText(sampler.getUsername());
+        mqttPwd.setText(sampler.getPassword());
+        typeClientValue.setText(sampler.getClientType());
+        persistence.setText(sampler.getPersistence());
+        keepConnection.setSelected(sampler.isKeepConnection());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+    }
+
+    /**
+     * Creates the mqtt client keep alive panel.
+     *
+     * @return The mqtt client keep alive panel.
+     */
+    private JPanel createKeepAlivePane() {
+        JPanel panel = new VerticalPanel();
+        this.mqttKeepAlive.setLayout((new BoxLayout(mqttKeepAlive, BoxLayout.X_AXIS)));
+        panel.add(mqttKeepAlive);
+        mqttKeepAlive.setText(Constants.MQTT_KEEP_ALIVE_DEFAULT);
+        return panel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if (Constants.GENERATE_CLIENT_ID_COMMAND.equals(e.getActionCommand())) {
+            clientId.setText(Utils.UUIDGenerator());
+        } else if (Constants.RESET_CREDENTIALS.equals(e.getActionCommand())) {
+            mqttUser.setText(Constants.MQTT_USER_USERNAME);
+            mqttPwd.setText(Constants.MQTT_USER_PASSWORD);
+        }
+    }
+}
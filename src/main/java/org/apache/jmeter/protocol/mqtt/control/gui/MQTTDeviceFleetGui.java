@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.control.gui;
+
+import org.apache.jmeter.gui.util.JLabeledRadioI18N;
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.protocol.mqtt.sampler.DeviceFleetSampler;
+import org.apache.jmeter.protocol.mqtt.utilities.Constants;
+import org.apache.jmeter.samplers.gui.AbstractSamplerGui;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledPasswordField;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import javax.swing.BorderFactory;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * This is the MQTT Device Fleet Sampler GUI class. All swing components of the UI are included in this class.
+ */
+public class MQTTDeviceFleetGui extends AbstractSamplerGui implements ActionListener {
+
+    private static final long serialVersionUID = 240L;
+
+    private static final String[] CLIENT_TYPES_ITEMS = {Constants.MQTT_BLOCKING_CLIENT, Constants.MQTT_ASYNC_CLIENT,
+            Constants.MQTT_NIO_CLIENT, Constants.MQTT_V5_CLIENT};
+    private static final String[] PERSISTENCE_ITEMS = {Constants.MQTT_PERSISTENCE_NONE,
+            Constants.MQTT_PERSISTENCE_MEMORY, Constants.MQTT_PERSISTENCE_FILE, Constants.MQTT_PERSISTENCE_LOG};
+    private static final String[] QOS_TYPES_ITEMS = {Constants.MQTT_AT_MOST_ONCE, Constants.MQTT_AT_LEAST_ONCE,
+            Constants.MQTT_EXACTLY_ONCE};
+
+    private final JLabeledTextField brokerUrlField = new JLabeledTextField(Constants.MQTT_PROVIDER_URL);
+    private final JLabeledTextField clientIdPrefix = new JLabeledTextField(Constants.MQTT_CLIENT_ID_PREFIX);
+
+    private final JCheckBox cleanSession = new JCheckBox(Constants.MQTT_CLEAN_SESSION, false);
+
+    private final JLabeledTextField mqttKeepAlive = new JLabeledTextField(Constants.MQTT_KEEP_ALIVE);
+
+    private final JLabeledTextField mqttUser = new JLabeledTextField(Constants.MQTT_USERNAME);
+    private final JLabeledTextField mqttPwd = new JLabeledPasswordField(Constants.MQTT_PASSWORD);
+    private final JButton resetUserNameAndPassword = new JButton(Constants.MQTT_RESET_USERNAME_PASSWORD);
+
+    private final JLabeledRadioI18N persistence = new JLabeledRadioI18N(Constants.MQTT_PERSISTENCE,
+            PERSISTENCE_ITEMS, Constants.MQTT_PERSISTENCE_NONE);
+    private final JLabeledRadioI18N typeClientValue = new JLabeledRadioI18N(Constants.MQTT_CLIENT_TYPES,
+            CLIENT_TYPES_ITEMS, Constants.MQTT_NIO_CLIENT);
+    private final JLabeledRadioI18N typeQoSValue = new JLabeledRadioI18N(Constants.MQTT_QOS, QOS_TYPES_ITEMS,
+            Constants.MQTT_AT_MOST_ONCE);
+
+    private final JLabeledTextField deviceCount = new JLabeledTextField(Constants.MQTT_DEVICE_COUNT);
+    private final JLabeledTextField publishInterval = new JLabeledTextField(Constants.MQTT_PUBLISH_INTERVAL);
+    private final JLabeledTextField sampleInterval = new JLabeledTextField(Constants.MQTT_SAMPLE_INTERVAL);
+
+    private final JLabeledTextField topicName = new JLabeledTextField(Constants.MQTT_TOPIC);
+    private final JLabeledTextField subscribeTopicName = new JLabeledTextField(Constants.MQTT_SUBSCRIBE_TOPIC);
+    private final JLabeledTextField payloadSizes = new JLabeledTextField(Constants.MQTT_PAYLOAD_SIZES);
+    private final JCheckBox latencyHeader = new JCheckBox(Constants.MQTT_LATENCY_HEADER, false);
+
+    public MQTTDeviceFleetGui() {
+        init();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getStaticLabel() {
+        return Constants.MQTT_DEVICE_FLEET_TITLE;
+    }
+
+    /**
+     * Creates a test element for MQTT device fleet
+     * @see org.apache.jmeter.gui.JMeterGUIComponent#createTestElement()
+     */
+    @Override
+    public TestElement createTestElement() {
+        DeviceFleetSampler sampler = new DeviceFleetSampler();
+        modifyTestElement(sampler);
+        return sampler;
+    }
+
+    /**
+     * Modifies a given TestElement to mirror the data in the gui components.
+     *
+     * @see org.apache.jmeter.gui.JMeterGUIComponent#modifyTestElement(TestElement)
+     */
+    @Override
+    public void modifyTestElement(TestElement s) {
+        DeviceFleetSampler sampler = (DeviceFleetSampler) s;
+        this.configureTestElement(sampler);
+        sampler.setBrokerUrl(brokerUrlField.getText());
+        sampler.setClientId(clientIdPrefix.getText());
+        sampler.setCleanSession(cleanSession.isSelected());
+        sampler.setKeepAlive(mqttKeepAlive.getText());
+        sampler.setUsername(mqttUser.getText());
+        sampler.setPassword(mqttPwd.getText());
+        sampler.setClientType(typeClientValue.getText());
+        sampler.setPersistence(persistence.getText());
+        sampler.setQOS(typeQoSValue.getText());
+        sampler.setDeviceCount(deviceCount.getText());
+        sampler.setPublishInterval(publishInterval.getText());
+        sampler.setSampleInterval(sampleInterval.getText());
+        sampler.setTopicName(topicName.getText());
+        sampler.setSubscribeTopicName(subscribeTopicName.getText());
+        sampler.setPayloadSizes(payloadSizes.getText());
+        sampler.setLatencyHeader(latencyHeader.isSelected());
+    }
+
+    /**
+     * Initializes all the UI elements
+     */
+    private void init() {
+        setLayout(new BorderLayout());
+        setBorder(makeBorder());
+        add(makeTitlePanel(), BorderLayout.NORTH);
+        JPanel mainPanel = new VerticalPanel();
+        add(mainPanel, BorderLayout.CENTER);
+        JPanel DPanel = new JPanel();
+        DPanel.setLayout(new BoxLayout(DPanel, BoxLayout.X_AXIS));
+        DPanel.add(brokerUrlField);
+        DPanel.add(clientIdPrefix);
+        JPanel ControlPanel = new VerticalPanel();
+        ControlPanel.add(DPanel);
+        ControlPanel.add(cleanSession);
+        ControlPanel.add(createKeepAlivePane());
+        ControlPanel.add(createAuthPane());
+        ControlPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray),
+                "Connection Info"));
+        mainPanel.add(ControlPanel);
+        JPanel TPanel = new VerticalPanel();
+        TPanel.setLayout(new BoxLayout(TPanel, BoxLayout.X_AXIS));
+        typeQoSValue.setLayout(new BoxLayout(typeQoSValue, BoxLayout.X_AXIS));
+        TPanel.add(typeQoSValue);
+        typeClientValue.setLayout(new BoxLayout(typeClientValue, BoxLayout.X_AXIS));
+        TPanel.add(typeClientValue);
+        persistence.setLayout(new BoxLayout(persistence, BoxLayout.X_AXIS));
+        TPanel.add(persistence);
+        TPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray), "Option"));
+        mainPanel.add(TPanel);
+        mainPanel.add(createDevicesPane());
+
+        JPanel contentPanel = new VerticalPanel();
+        contentPanel.add(topicName);
+        contentPanel.add(subscribeTopicName);
+        contentPanel.add(payloadSizes);
+        contentPanel.add(latencyHeader);
+        contentPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray), "Content"));
+        mainPanel.add(contentPanel);
+
+        resetUserNameAndPassword.setActionCommand(Constants.RESET_CREDENTIALS);
+        resetUserNameAndPassword.addActionListener(this);
+        brokerUrlField.setText(Constants.MQTT_URL_DEFAULT);
+        topicName.setText(Constants.MQTT_DEVICE_TOPIC_DEFAULT);
+        payloadSizes.setText(Constants.MQTT_PAYLOAD_SIZES_DEFAULT);
+    }
+
+    /**
+     * Creates the panel for user authentication. Username and password are included.
+     * @return JPanel Panel with checkbox to choose  user and password
+     */
+    private Component createAuthPane() {
+        mqttUser.setText(Constants.MQTT_USER_USERNAME);
+        mqttPwd.setText(Constants.MQTT_USER_PASSWORD);
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(mqttUser);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(mqttPwd);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(resetUserNameAndPassword);
+        return panel;
+    }
+
+    /**
+     * {@inheritDoc}. </br>.
+     * Loads fields from an existing sampler file.
+     *
+     * @param el The test element
+     */
+    @Override
+    public void configure(TestElement el) {
+        super.configure(el);
+        DeviceFleetSampler sampler = (DeviceFleetSampler) el;
+        brokerUrlField.setText(sampler.getBrokerUrl());
+        clientIdPrefix.setText(sampler.getClientId());
+        cleanSession.setSelected(sampler.isCleanSession());
+        mqttKeepAlive.setText(Integer.toString(sampler.getKeepAlive()));
+        mqttUser.setText(sampler.getUsername());
+        mqttPwd.setText(sampler.getPassword());
+        typeClientValue.setText(sampler.getClientType());
+        persistence.setText(sampler.getPersistence());
+        typeQoSValue.setText(sampler.getQOS());
+        deviceCount.setText(Integer.toString(sampler.getDeviceCount()));
+        publishInterval.setText(Long.toString(sampler.getPublishInterval()));
+        sampleInterval.setText(Long.toString(sampler.getSampleInterval()));
+        topicName.setText(sampler.getTopicName());
+        subscribeTopicName.setText(sampler.getSubscribeTopicName());
+        payloadSizes.setText(sampler.getPayloadSizes());
+        latencyHeader.setSelected(sampler.isLatencyHeader());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+    }
+
+    /**
+     * Creates the mqtt client keep alive panel.
+     *
+     * @return The mqtt client keep alive panel.
+     */
+    private JPanel createKeepAlivePane() {
+        JPanel panel = new VerticalPanel();
+        this.mqttKeepAlive.setLayout((new BoxLayout(mqttKeepAlive, BoxLayout.X_AXIS)));
+        panel.add(mqttKeepAlive);
+        mqttKeepAlive.setText(Constants.MQTT_KEEP_ALIVE_DEFAULT);
+        return panel;
+    }
+
+    /**
+     * Creates the devices panel. Each thread runs this number of devices, publishing once per publish interval, or
+     * only holding their sessions open if it is zero, and reports on them once per sample interval.
+     *
+     * @return The devices panel.
+     */
+    private JPanel createDevicesPane() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
+        panel.add(deviceCount);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(publishInterval);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(sampleInterval);
+        deviceCount.setText(Constants.MQTT_DEVICE_COUNT_DEFAULT);
+        publishInterval.setText(Constants.MQTT_PUBLISH_INTERVAL_DEFAULT);
+        sampleInterval.setText(Constants.MQTT_SAMPLE_INTERVAL_DEFAULT);
+        panel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray), "Devices"));
+        return panel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if (Constants.RESET_CREDENTIALS.equals(e.getActionCommand())) {
+            mqttUser.setText(Constants.MQTT_USER_USERNAME);
+            mqttPwd.setText(Constants.MQTT_USER_PASSWORD);
+        }
+    }
+}
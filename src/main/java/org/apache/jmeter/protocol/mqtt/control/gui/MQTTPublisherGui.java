@@ -57,9 +57,16 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
 
 
     private static final String[] CLIENT_TYPES_ITEMS = {Constants.MQTT_BLOCKING_CLIENT, Constants
-            .MQTT_ASYNC_CLIENT};
+            .MQTT_ASYNC_CLIENT, Constants.MQTT_NIO_CLIENT, Constants.MQTT_V5_CLIENT};
+    private static final String[] PERSISTENCE_ITEMS = {Constants.MQTT_PERSISTENCE_NONE,
+            Constants.MQTT_PERSISTENCE_MEMORY, Constants.MQTT_PERSISTENCE_FILE, Constants.MQTT_PERSISTENCE_LOG};
 
-    private static final String[] MESSAGE_INPUT_TYPE = {Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT, Constants.MQTT_MESSAGE_INPUT_TYPE_FILE};
+    private static final String[] MESSAGE_INPUT_TYPE = {Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT, Constants.MQTT_MESSAGE_INPUT_TYPE_FILE,
+            Constants.MQTT_MESSAGE_INPUT_TYPE_CORPUS, Constants.MQTT_MESSAGE_INPUT_TYPE_TEMPLATE,
+            Constants.MQTT_MESSAGE_INPUT_TYPE_GENERATED};
+
+    private static final String[] CORPUS_SELECTION_ITEMS = {Constants.MQTT_CORPUS_SELECTION_ROUND_ROBIN,
+            Constants.MQTT_CORPUS_SELECTION_RANDOM, Constants.MQTT_CORPUS_SELECTION_WEIGHTED};
 
     private final JLabeledTextField brokerUrlField = new JLabeledTextField(Constants.MQTT_PROVIDER_URL);
     private final JLabeledTextField clientId = new JLabeledTextField(Constants.MQTT_CLIENT_ID);
@@ -69,8 +76,16 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
 
     private final JCheckBox retained = new JCheckBox(Constants.MQTT_SEND_AS_RETAINED_MSG, false);
     private final JCheckBox cleanSession = new JCheckBox(Constants.MQTT_CLEAN_SESSION, false);
+    private final JCheckBox latencyHeader = new JCheckBox(Constants.MQTT_LATENCY_HEADER, false);
 
     private final JLabeledTextField mqttKeepAlive = new JLabeledTextField(Constants.MQTT_KEEP_ALIVE);
+    private final JLabeledTextField sharedConnections = new JLabeledTextField(Constants.MQTT_SHARED_CONNECTIONS);
+
+    private final JLabeledTextField mqttMaxInFlight = new JLabeledTextField(Constants.MQTT_MAX_IN_FLIGHT);
+
+    private final JLabeledTextField batchSize = new JLabeledTextField(Constants.MQTT_BATCH_SIZE);
+    private final JLabeledTextField batchDuration = new JLabeledTextField(Constants.MQTT_BATCH_DURATION);
+    private final JCheckBox batchSubResults = new JCheckBox(Constants.MQTT_BATCH_SUB_RESULTS, false);
 
     private final JLabeledTextField mqttUser = new JLabeledTextField(Constants.MQTT_USERNAME);
     private final JLabeledTextField mqttPwd = new JLabeledPasswordField(Constants.MQTT_PASSWORD);
@@ -78,6 +93,8 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
 
     private final JLabeledRadioI18N typeQoSValue = new JLabeledRadioI18N(Constants.MQTT_QOS, QOS_TYPES_ITEMS, Constants.MQTT_AT_MOST_ONCE);
 
+    private final JLabeledRadioI18N persistence = new JLabeledRadioI18N(Constants.MQTT_PERSISTENCE,
+            PERSISTENCE_ITEMS, Constants.MQTT_PERSISTENCE_FILE);
     private final JLabeledRadioI18N typeClientValue = new JLabeledRadioI18N(Constants.MQTT_CLIENT_TYPES, CLIENT_TYPES_ITEMS,
             Constants.MQTT_BLOCKING_CLIENT);
 
@@ -91,6 +108,13 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
 
     private final FilePanel fileChooser = new FilePanel(Constants.MQTT_FILE, "*");
 
+    private final JPanel corpusPanel = new JPanel();
+    private final JLabeledTextField corpusPath = new JLabeledTextField(Constants.MQTT_CORPUS_PATH);
+    private final JLabeledRadioI18N corpusSelection = new JLabeledRadioI18N(Constants.MQTT_CORPUS_SELECTION,
+            CORPUS_SELECTION_ITEMS, Constants.MQTT_CORPUS_SELECTION_ROUND_ROBIN);
+
+    private final JLabeledTextField payloadSizes = new JLabeledTextField(Constants.MQTT_PAYLOAD_SIZES);
+
 
     public MQTTPublisherGui() {
         init();
@@ -138,16 +162,29 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
         sampler.setMessageRetained(retained.isSelected());
         sampler.setCleanSession(cleanSession.isSelected());
         sampler.setKeepAlive(mqttKeepAlive.getText());
+        sampler.setSharedConnections(sharedConnections.getText());
         sampler.setUsername(mqttUser.getText());
         sampler.setPassword(mqttPwd.getText());
         sampler.setQOS(typeQoSValue.getText());
         sampler.setClientType(typeClientValue.getText());
+        sampler.setPersistence(persistence.getText());
+        sampler.setMaxInFlight(mqttMaxInFlight.getText());
+        sampler.setBatchSize(batchSize.getText());
+        sampler.setBatchDuration(batchDuration.getText());
+        sampler.setBatchSubResults(batchSubResults.isSelected());
         sampler.setMessageInputType(messageInputValue.getText());
-        if (messageInputValue.getText().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT)) {
+        if (messageInputValue.getText().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT)
+            || messageInputValue.getText().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_TEMPLATE)) {
             sampler.setMessageValue(textMessage.getText());
         } else if (messageInputValue.getText().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_FILE)) {
             sampler.setMessageValue(fileChooser.getFilename());
+        } else if (messageInputValue.getText().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_CORPUS)) {
+            sampler.setMessageValue(corpusPath.getText());
+        } else if (messageInputValue.getText().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_GENERATED)) {
+            sampler.setMessageValue(payloadSizes.getText());
         }
+        sampler.setCorpusSelection(corpusSelection.getText());
+        sampler.setLatencyHeader(latencyHeader.isSelected());
     }
 
     /**
@@ -171,6 +208,7 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
         ControlPanel.add(retained);
         ControlPanel.add(cleanSession);
         ControlPanel.add(createKeepAlivePane());
+        ControlPanel.add(createSharedConnectionsPane());
         ControlPanel.add(createAuthPane());
         ControlPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray),
                 "Connection Info"));
@@ -181,18 +219,35 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
         typeClientValue.setLayout(new BoxLayout(typeClientValue, BoxLayout.X_AXIS));
         TPanel.add(typeQoSValue);
         TPanel.add(typeClientValue);
+        persistence.setLayout(new BoxLayout(persistence, BoxLayout.X_AXIS));
+        TPanel.add(persistence);
+        TPanel.add(createMaxInFlightPane());
         TPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray), "Option"));
         mainPanel.add(TPanel);
+        mainPanel.add(createBatchPane());
 
         // Input type panels
         JPanel contentPanel = new VerticalPanel();
         messageInputValue.setLayout(new BoxLayout(messageInputValue, BoxLayout.X_AXIS));
         contentPanel.add(messageInputValue);
+        contentPanel.add(latencyHeader);
 
         JPanel filePanel = new JPanel(new BorderLayout());
         filePanel.add(this.fileChooser, BorderLayout.CENTER);
         contentPanel.add(filePanel);
 
+        // Payload corpus panel
+        corpusPanel.setLayout(new BoxLayout(corpusPanel, BoxLayout.X_AXIS));
+        corpusSelection.setLayout(new BoxLayout(corpusSelection, BoxLayout.X_AXIS));
+        corpusPanel.add(corpusPath);
+        corpusPanel.add(Box.createHorizontalStrut(10));
+        corpusPanel.add(corpusSelection);
+        contentPanel.add(corpusPanel);
+
+        // Generated payload panel
+        payloadSizes.setText(Constants.MQTT_PAYLOAD_SIZES_DEFAULT);
+        contentPanel.add(payloadSizes);
+
         // Text input panel
         JPanel messageContentPanel = new JPanel(new BorderLayout());
         messageContentPanel.add(this.textArea, BorderLayout.NORTH);
@@ -210,10 +265,7 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
         messageInputValue.addChangeListener(this);
         brokerUrlField.setText(Constants.MQTT_URL_DEFAULT);
 
-        this.textArea.setVisible(true);
-        this.textPanel.setVisible(true);
-        this.fileChooser.setVisible(false);
-
+        showInputTypePanel(Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT);
     }
 
     /**
@@ -251,23 +303,33 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
         retained.setSelected(sampler.isMessageRetained());
         cleanSession.setSelected(sampler.isCleanSession());
         mqttKeepAlive.setText(Integer.toString(sampler.getKeepAlive()));
+        sharedConnections.setText(Integer.toString(sampler.getSharedConnections()));
         mqttUser.setText(sampler.getUsername());
         mqttPwd.setText(sampler.getPassword());
         typeQoSValue.setText(sampler.getQOS());
         typeClientValue.setText(sampler.getClientType());
+        persistence.setText(sampler.getPersistence());
+        mqttMaxInFlight.setText(Integer.toString(sampler.getMaxInFlight()));
+        batchSize.setText(Integer.toString(sampler.getBatchSize()));
+        batchDuration.setText(Long.toString(sampler.getBatchDuration()));
+        batchSubResults.setSelected(sampler.isBatchSubResults());
         messageInputValue.setText(sampler.getMessageInputType());
 
-        if (sampler.getMessageInputType().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT)) {
+        if (sampler.getMessageInputType().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT)
+            || sampler.getMessageInputType().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_TEMPLATE)) {
             textMessage.setText(sampler.getMessageValue());
-            this.textArea.setVisible(true);
-            this.textPanel.setVisible(true);
-            this.fileChooser.setVisible(false);
         } else if (sampler.getMessageInputType().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_FILE)) {
             fileChooser.setFilename(sampler.getMessageValue());
-            this.textArea.setVisible(false);
-            this.textPanel.setVisible(false);
-            this.fileChooser.setVisible(true);
+        } else if (sampler.getMessageInputType().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_CORPUS)) {
+            corpusPath.setText(sampler.getMessageValue());
+        } else if (sampler.getMessageInputType().equals(Constants.MQTT_MESSAGE_INPUT_TYPE_GENERATED)) {
+            payloadSizes.setText(sampler.getMessageValue());
         }
+        if (!sampler.getCorpusSelection().isEmpty()) {
+            corpusSelection.setText(sampler.getCorpusSelection());
+        }
+        latencyHeader.setSelected(sampler.isLatencyHeader());
+        showInputTypePanel(sampler.getMessageInputType());
     }
 
     /**
@@ -311,6 +373,54 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
         return panel;
     }
 
+    /**
+     * Creates the shared connections panel. Zero gives each thread its own connection, otherwise threads with the
+     * same connection options share this number of connections.
+     *
+     * @return The shared connections panel.
+     */
+    private JPanel createSharedConnectionsPane() {
+        JPanel panel = new VerticalPanel();
+        this.sharedConnections.setLayout((new BoxLayout(sharedConnections, BoxLayout.X_AXIS)));
+        panel.add(sharedConnections);
+        sharedConnections.setText(Constants.MQTT_SHARED_CONNECTIONS_DEFAULT);
+        return panel;
+    }
+
+    /**
+     * Creates the max in-flight panel. The value is used by the async, NIO and MQTT 5 clients, zero waits for each
+     * publish to complete. The async client is capped at the 10 publishes Paho accepts, larger windows need the NIO
+     * or MQTT 5 client.
+     *
+     * @return The max in-flight panel.
+     */
+    private JPanel createMaxInFlightPane() {
+        JPanel panel = new VerticalPanel();
+        this.mqttMaxInFlight.setLayout((new BoxLayout(mqttMaxInFlight, BoxLayout.X_AXIS)));
+        panel.add(mqttMaxInFlight);
+        mqttMaxInFlight.setText(Constants.MQTT_MAX_IN_FLIGHT_DEFAULT);
+        return panel;
+    }
+
+    /**
+     * Creates the batch panel. A batch publishes several messages within a single sample.
+     *
+     * @return The batch panel.
+     */
+    private JPanel createBatchPane() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
+        panel.add(batchSize);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(batchDuration);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(batchSubResults);
+        batchSize.setText(Constants.MQTT_BATCH_SIZE_DEFAULT);
+        batchDuration.setText(Constants.MQTT_BATCH_DURATION_DEFAULT);
+        panel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray), "Batch"));
+        return panel;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -329,14 +439,22 @@ public class MQTTPublisherGui extends AbstractSamplerGui implements ChangeListen
      */
     @Override
     public void stateChanged(ChangeEvent e) {
-        if (Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT.equals(messageInputValue.getText())) {
-            this.textArea.setVisible(true);
-            this.textPanel.setVisible(true);
-            this.fileChooser.setVisible(false);
-        } else if (Constants.MQTT_MESSAGE_INPUT_TYPE_FILE.equals(messageInputValue.getText())) {
-            this.textArea.setVisible(false);
-            this.textPanel.setVisible(false);
-            this.fileChooser.setVisible(true);
-        }
+        showInputTypePanel(messageInputValue.getText());
+    }
+
+    /**
+     * Shows the panel for the given message input type and hides the others.
+     *
+     * @param messageInputType The message input type.
+     */
+    private void showInputTypePanel(String messageInputType) {
+        // Templates are edited in the text area
+        boolean isText = Constants.MQTT_MESSAGE_INPUT_TYPE_TEXT.equals(messageInputType)
+                         || Constants.MQTT_MESSAGE_INPUT_TYPE_TEMPLATE.equals(messageInputType);
+        this.textArea.setVisible(isText);
+        this.textPanel.setVisible(isText);
+        this.fileChooser.setVisible(Constants.MQTT_MESSAGE_INPUT_TYPE_FILE.equals(messageInputType));
+        this.corpusPanel.setVisible(Constants.MQTT_MESSAGE_INPUT_TYPE_CORPUS.equals(messageInputType));
+        this.payloadSizes.setVisible(Constants.MQTT_MESSAGE_INPUT_TYPE_GENERATED.equals(messageInputType));
     }
 }
@@ -17,6 +17,8 @@
 package org.apache.jmeter.protocol.mqtt.control.gui;
 
 import org.apache.jmeter.gui.util.JLabeledRadioI18N;
+import org.apache.jmeter.gui.util.JSyntaxTextArea;
+import org.apache.jmeter.gui.util.JTextScrollPane;
 import org.apache.jmeter.gui.util.VerticalPanel;
 import org.apache.jmeter.protocol.mqtt.sampler.SubscriberSampler;
 import org.apache.jmeter.protocol.mqtt.utilities.Constants;
@@ -32,6 +34,7 @@ import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -48,23 +51,46 @@ public class MQTTSubscriberGui extends AbstractSamplerGui implements ActionListe
     private static final org.apache.log.Logger log = LoggingManager.getLoggerForClass();
 
     private static final String[] QOS_TYPES_ITEMS = {Constants.MQTT_AT_MOST_ONCE, Constants.MQTT_AT_LEAST_ONCE, Constants.MQTT_EXACTLY_ONCE};
-    private static final String[] CLIENT_TYPES_ITEMS = {Constants.MQTT_BLOCKING_CLIENT, Constants.MQTT_ASYNC_CLIENT};
+    private static final String[] CLIENT_TYPES_ITEMS = {Constants.MQTT_BLOCKING_CLIENT, Constants.MQTT_ASYNC_CLIENT,
+            Constants.MQTT_NIO_CLIENT, Constants.MQTT_V5_CLIENT};
+    private static final String[] RECEIVE_BUFFER_POLICY_ITEMS = {Constants.MQTT_RECEIVE_BUFFER_BLOCK,
+            Constants.MQTT_RECEIVE_BUFFER_DROP_NEWEST, Constants.MQTT_RECEIVE_BUFFER_DROP_OLDEST,
+            Constants.MQTT_RECEIVE_BUFFER_COUNT_ONLY};
+    private static final String[] PERSISTENCE_ITEMS = {Constants.MQTT_PERSISTENCE_NONE,
+            Constants.MQTT_PERSISTENCE_MEMORY, Constants.MQTT_PERSISTENCE_FILE, Constants.MQTT_PERSISTENCE_LOG};
 
     private final JLabeledTextField brokerUrlField = new JLabeledTextField(Constants.MQTT_PROVIDER_URL);
     private final JLabeledTextField clientId = new JLabeledTextField(Constants.MQTT_CLIENT_ID);
     private final JButton generateClientID = new JButton(Constants.MQTT_CLIENT_ID_GENERATOR);
 
     private final JLabeledTextField mqttDestination = new JLabeledTextField(Constants.MQTT_TOPIC);
+    private final JLabel topicFiltersLabel = new JLabel(Constants.MQTT_TOPIC_FILTERS);
+    private final JSyntaxTextArea topicFilters = new JSyntaxTextArea(5, 50);
+    private final JTextScrollPane topicFiltersPanel = new JTextScrollPane(topicFilters);
+    private final JLabeledTextField topicFiltersFile = new JLabeledTextField(Constants.MQTT_TOPIC_FILTERS_FILE);
+    private final JLabeledTextField subscribeBatchSize = new JLabeledTextField(Constants.MQTT_SUBSCRIBE_BATCH_SIZE);
 
     private final JCheckBox cleanSession = new JCheckBox(Constants.MQTT_CLEAN_SESSION, false);
+    private final JCheckBox latencyOnly = new JCheckBox(Constants.MQTT_LATENCY_ONLY, false);
+    private final JCheckBox metadataOnly = new JCheckBox(Constants.MQTT_METADATA_ONLY, false);
 
     private final JLabeledTextField mqttKeepAlive = new JLabeledTextField(Constants.MQTT_KEEP_ALIVE);
+    private final JLabeledTextField sharedConnections = new JLabeledTextField(Constants.MQTT_SHARED_CONNECTIONS);
+    private final JLabeledTextField mqttReceiveTimeout = new JLabeledTextField(Constants.MQTT_RECEIVE_TIMEOUT);
+    private final JLabeledTextField batchSize = new JLabeledTextField(Constants.MQTT_BATCH_SIZE);
+    private final JLabeledTextField batchDuration = new JLabeledTextField(Constants.MQTT_BATCH_DURATION);
+    private final JLabeledTextField receiveBufferCapacity =
+            new JLabeledTextField(Constants.MQTT_RECEIVE_BUFFER_CAPACITY);
 
     private final JLabeledTextField mqttUser = new JLabeledTextField(Constants.MQTT_USERNAME);
     private final JLabeledTextField mqttPwd = new JLabeledPasswordField(Constants.MQTT_PASSWORD);
     private final JButton resetUserNameAndPassword = new JButton(Constants.MQTT_RESET_USERNAME_PASSWORD);
 
     private final JLabeledRadioI18N typeQoSValue = new JLabeledRadioI18N(Constants.MQTT_QOS, QOS_TYPES_ITEMS, Constants.MQTT_AT_MOST_ONCE);
+    private final JLabeledRadioI18N persistence = new JLabeledRadioI18N(Constants.MQTT_PERSISTENCE,
+            PERSISTENCE_ITEMS, Constants.MQTT_PERSISTENCE_FILE);
+    private final JLabeledRadioI18N receiveBufferPolicy = new JLabeledRadioI18N(Constants.MQTT_RECEIVE_BUFFER_POLICY,
+            RECEIVE_BUFFER_POLICY_ITEMS, Constants.MQTT_RECEIVE_BUFFER_BLOCK);
     private final JLabeledRadioI18N typeClientValue = new JLabeledRadioI18N(Constants.MQTT_CLIENT_TYPES, CLIENT_TYPES_ITEMS,
             Constants.MQTT_BLOCKING_CLIENT);
 
@@ -111,13 +137,24 @@ public class MQTTSubscriberGui extends AbstractSamplerGui implements ActionListe
         sampler.setBrokerUrl(brokerUrlField.getText());
         sampler.setClientId(clientId.getText());
         sampler.setTopicName(mqttDestination.getText());
+        sampler.setTopicFilters(topicFilters.getText());
+        sampler.setTopicFiltersFile(topicFiltersFile.getText());
+        sampler.setSubscribeBatchSize(subscribeBatchSize.getText());
         sampler.setCleanSession(cleanSession.isSelected());
         sampler.setKeepAlive(mqttKeepAlive.getText());
+        sampler.setSharedConnections(sharedConnections.getText());
         sampler.setUsername(mqttUser.getText());
         sampler.setPassword(mqttPwd.getText());
         sampler.setQOS(typeQoSValue.getText());
         sampler.setClientType(typeClientValue.getText());
-
+        sampler.setPersistence(persistence.getText());
+        sampler.setLatencyOnly(latencyOnly.isSelected());
+        sampler.setMetadataOnly(metadataOnly.isSelected());
+        sampler.setReceiveTimeout(mqttReceiveTimeout.getText());
+        sampler.setBatchSize(batchSize.getText());
+        sampler.setBatchDuration(batchDuration.getText());
+        sampler.setReceiveBufferCapacity(receiveBufferCapacity.getText());
+        sampler.setReceiveBufferPolicy(receiveBufferPolicy.getText());
     }
 
     /**
@@ -140,18 +177,27 @@ public class MQTTSubscriberGui extends AbstractSamplerGui implements ActionListe
         ControlPanel.add(createDestinationPane());
         ControlPanel.add(cleanSession);
         ControlPanel.add(createKeepAlivePane());
+        ControlPanel.add(createSharedConnectionsPane());
         ControlPanel.add(createAuthPane());
         ControlPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray),
                 "Connection Info"));
         mainPanel.add(ControlPanel);
+        mainPanel.add(createTopicFiltersPane());
         JPanel TPanel = new VerticalPanel();
         TPanel.setLayout(new BoxLayout(TPanel, BoxLayout.X_AXIS));
         typeQoSValue.setLayout(new BoxLayout(typeQoSValue, BoxLayout.X_AXIS));
         typeClientValue.setLayout(new BoxLayout(typeClientValue, BoxLayout.X_AXIS));
         TPanel.add(typeQoSValue);
         TPanel.add(typeClientValue);
+        persistence.setLayout(new BoxLayout(persistence, BoxLayout.X_AXIS));
+        TPanel.add(persistence);
+        TPanel.add(createReceiveTimeoutPane());
+        TPanel.add(latencyOnly);
+        TPanel.add(metadataOnly);
         TPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray), "Option"));
         mainPanel.add(TPanel);
+        mainPanel.add(createBatchPane());
+        mainPanel.add(createReceiveBufferPane());
 
         generateClientID.setActionCommand(Constants.GENERATE_CLIENT_ID_COMMAND);
         resetUserNameAndPassword.setActionCommand(Constants.RESET_CREDENTIALS);
@@ -192,12 +238,24 @@ public class MQTTSubscriberGui extends AbstractSamplerGui implements ActionListe
         brokerUrlField.setText(sampler.getBrokerUrl());
         clientId.setText(sampler.getClientId());
         mqttDestination.setText(sampler.getTopicName());
+        topicFilters.setText(sampler.getTopicFilters());
+        topicFiltersFile.setText(sampler.getTopicFiltersFile());
+        subscribeBatchSize.setText(Integer.toString(sampler.getSubscribeBatchSize()));
         cleanSession.setSelected(sampler.isCleanSession());
         mqttKeepAlive.setText(Integer.toString(sampler.getKeepAlive()));
+        sharedConnections.setText(Integer.toString(sampler.getSharedConnections()));
         mqttUser.setText(sampler.getUsername());
         mqttPwd.setText(sampler.getPassword());
         typeQoSValue.setText(sampler.getQOS());
         typeClientValue.setText(sampler.getClientType());
+        persistence.setText(sampler.getPersistence());
+        latencyOnly.setSelected(sampler.isLatencyOnly());
+        metadataOnly.setSelected(sampler.isMetadataOnly());
+        mqttReceiveTimeout.setText(Long.toString(sampler.getReceiveTimeout()));
+        batchSize.setText(Integer.toString(sampler.getBatchSize()));
+        batchDuration.setText(Long.toString(sampler.getBatchDuration()));
+        receiveBufferCapacity.setText(Integer.toString(sampler.getReceiveBufferCapacity()));
+        receiveBufferPolicy.setText(sampler.getReceiveBufferPolicy());
     }
 
     /**
@@ -223,6 +281,30 @@ public class MQTTSubscriberGui extends AbstractSamplerGui implements ActionListe
         panel.add(TPanel);        return panel;
     }
 
+    /**
+     * Creates the topic filters panel. The filters are subscribed to besides the topic, several per SUBSCRIBE
+     * packet.
+     *
+     * @return The topic filters panel.
+     */
+    private JPanel createTopicFiltersPane() {
+        JPanel panel = new VerticalPanel();
+        JPanel filtersPanel = new JPanel(new BorderLayout());
+        filtersPanel.add(topicFiltersLabel, BorderLayout.NORTH);
+        filtersPanel.add(topicFiltersPanel, BorderLayout.CENTER);
+        panel.add(filtersPanel);
+        JPanel filePanel = new JPanel();
+        filePanel.setLayout(new BoxLayout(filePanel, BoxLayout.X_AXIS));
+        filePanel.add(topicFiltersFile);
+        filePanel.add(Box.createHorizontalStrut(10));
+        filePanel.add(subscribeBatchSize);
+        panel.add(filePanel);
+        subscribeBatchSize.setText(Constants.MQTT_SUBSCRIBE_BATCH_SIZE_DEFAULT);
+        panel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray),
+                "Topic Filters"));
+        return panel;
+    }
+
     /**
      * Creates the mqtt client keep alive panel.
      *
@@ -240,6 +322,69 @@ public class MQTTSubscriberGui extends AbstractSamplerGui implements ActionListe
         return panel;
     }
 
+    /**
+     * Creates the shared connections panel. Zero gives each thread its own connection, otherwise threads with the
+     * same connection options share this number of connections.
+     *
+     * @return The shared connections panel.
+     */
+    private JPanel createSharedConnectionsPane() {
+        JPanel panel = new VerticalPanel();
+        this.sharedConnections.setLayout((new BoxLayout(sharedConnections, BoxLayout.X_AXIS)));
+        panel.add(sharedConnections);
+        sharedConnections.setText(Constants.MQTT_SHARED_CONNECTIONS_DEFAULT);
+        return panel;
+    }
+
+    /**
+     * Creates the receive timeout panel.
+     *
+     * @return The receive timeout panel.
+     */
+    private JPanel createReceiveTimeoutPane() {
+        JPanel panel = new VerticalPanel();
+        this.mqttReceiveTimeout.setLayout((new BoxLayout(mqttReceiveTimeout, BoxLayout.X_AXIS)));
+        panel.add(mqttReceiveTimeout);
+        mqttReceiveTimeout.setText(Constants.MQTT_RECEIVE_TIMEOUT_DEFAULT);
+        return panel;
+    }
+
+    /**
+     * Creates the batch panel. A batch receives several messages within a single sample.
+     *
+     * @return The batch panel.
+     */
+    private JPanel createBatchPane() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
+        panel.add(batchSize);
+        panel.add(Box.createHorizontalStrut(10));
+        panel.add(batchDuration);
+        batchSize.setText(Constants.MQTT_BATCH_SIZE_DEFAULT);
+        batchDuration.setText(Constants.MQTT_BATCH_DURATION_DEFAULT);
+        panel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray), "Batch"));
+        return panel;
+    }
+
+    /**
+     * Creates the receive buffer panel. The buffer holds the received messages until they are sampled, and what
+     * happens to messages arriving when it is full depends on its policy.
+     *
+     * @return The receive buffer panel.
+     */
+    private JPanel createReceiveBufferPane() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.X_AXIS));
+        panel.add(receiveBufferCapacity);
+        panel.add(Box.createHorizontalStrut(10));
+        receiveBufferPolicy.setLayout(new BoxLayout(receiveBufferPolicy, BoxLayout.X_AXIS));
+        panel.add(receiveBufferPolicy);
+        receiveBufferCapacity.setText(Constants.MQTT_RECEIVE_BUFFER_CAPACITY_DEFAULT);
+        panel.setBorder(BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.gray),
+                "Receive Buffer"));
+        return panel;
+    }
+
     /**
      * {@inheritDoc}
      */
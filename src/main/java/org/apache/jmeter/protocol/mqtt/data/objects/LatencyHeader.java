@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.data.objects;
+
+/**
+ * A compact binary header that publishers put in front of the payload so that subscribers can measure end to end
+ * latency and detect lost or reordered messages. All numbers are big endian.
+ * <pre>
+ * offset  size  field
+ *      0     3  magic "JMQ"
+ *      3     1  version
+ *      4     4  publisher id
+ *      8     8  sequence number of the message for the publisher
+ *     16     8  send time in nanoseconds since the epoch
+ * </pre>
+ */
+public final class LatencyHeader {
+    public static final int LENGTH = 24;
+
+    private static final byte VERSION = 1;
+    private static final byte[] SIGNATURE = {'J', 'M', 'Q', VERSION};
+
+    private LatencyHeader() {
+    }
+
+    /**
+     * Creates a payload which is the header followed by the given payload.
+     *
+     * @param payload     The payload.
+     * @param publisherId The id of the publisher.
+     * @param sequence    The sequence number of the message.
+     * @param sendTime    The send time in nanoseconds since the epoch.
+     * @return The new payload.
+     */
+    public static byte[] prepend(byte[] payload, int publisherId, long sequence, long sendTime) {
+        byte[] message = new byte[LENGTH + payload.length];
+        System.arraycopy(SIGNATURE, 0, message, 0, SIGNATURE.length);
+        writeInt(message, 4, publisherId);
+        writeLong(message, 8, sequence);
+        writeLong(message, 16, sendTime);
+        System.arraycopy(payload, 0, message, LENGTH, payload.length);
+        return message;
+    }
+
+    /**
+     * Checks whether a payload starts with a header.
+     *
+     * @param payload The payload.
+     * @return true if the payload has a header.
+     */
+    public static boolean isPresent(byte[] payload) {
+        if (null == payload || payload.length < LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (payload[i] != SIGNATURE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static int getPublisherId(byte[] payload) {
+        return (int) readNumber(payload, 4, 4);
+    }
+
+    public static long getSequence(byte[] payload) {
+        return readNumber(payload, 8, 8);
+    }
+
+    public static long getSendTime(byte[] payload) {
+        return readNumber(payload, 16, 8);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void writeLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readNumber(byte[] buffer, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
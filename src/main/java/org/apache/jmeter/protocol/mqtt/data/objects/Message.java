@@ -16,38 +16,116 @@
 
 package org.apache.jmeter.protocol.mqtt.data.objects;
 
+import org.apache.jmeter.protocol.mqtt.utilities.Clock;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.util.zip.CRC32;
+
 /**
- * Message object to hold MQTT message content.
+ * Message object to hold MQTT message content. A message received in metadata only mode does not keep its payload,
+ * only its length, its latency header and optionally a CRC32 of it.
  */
 public class Message {
     private byte[] payload;
+    private int payloadLength;
+    // -1 if the payload was not hashed
+    private long payloadHash = -1;
     private int qos = 0;
     private boolean retained = false;
     private boolean dup = false;
     private long currentTimestamp;
+    private long receivedTime;
+    // System.nanoTime() when the message arrived and when the sampler took it, 0 until taken
+    private long arrivalTime;
+    private long dequeuedTime = 0;
+    private boolean latencyHeader = false;
+    private int publisherId;
+    private long sequence;
+    private long sendTime;
 
     public Message(byte[] payload, int qos, boolean retained, boolean dup, long currentTimestamp) {
         this.payload = payload;
+        this.payloadLength = payload.length;
         this.qos = qos;
         this.retained = retained;
         this.dup = dup;
         this.currentTimestamp = currentTimestamp;
+        this.receivedTime = currentTimestamp * 1000000L;
+        this.arrivalTime = System.nanoTime();
+        readLatencyHeader();
     }
 
     public Message(MqttMessage mqttMessage) {
+        this(mqttMessage, System.nanoTime(), true, false);
+    }
+
+    /**
+     * @param mqttMessage The received message.
+     * @param arrivalTime The value of {@link System#nanoTime()} when the message arrived.
+     * @param keepPayload false to only keep the metadata of the message, so that the payload can be collected at
+     *                    once.
+     * @param hashPayload true to keep a CRC32 of the payload.
+     */
+    public Message(MqttMessage mqttMessage, long arrivalTime, boolean keepPayload, boolean hashPayload) {
+        this.arrivalTime = arrivalTime;
+        this.receivedTime = Clock.toEpochNanos(arrivalTime);
         this.payload = mqttMessage.getPayload();
+        this.payloadLength = payload.length;
         this.qos = mqttMessage.getQos();
         this.retained = mqttMessage.isRetained();
         this.dup = mqttMessage.isDuplicate();
         this.currentTimestamp = System.currentTimeMillis();
+        readLatencyHeader();
+        if (hashPayload) {
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            payloadHash = crc.getValue();
+        }
+        if (!keepPayload) {
+            payload = null;
+        }
+    }
+
+    private void readLatencyHeader() {
+        if (LatencyHeader.isPresent(payload)) {
+            latencyHeader = true;
+            publisherId = LatencyHeader.getPublisherId(payload);
+            sequence = LatencyHeader.getSequence(payload);
+            sendTime = LatencyHeader.getSendTime(payload);
+        }
     }
 
+    /**
+     * Gets the payload.
+     *
+     * @return The payload, or null if only the metadata of the message was kept.
+     */
     public byte[] getPayload() {
         return payload;
     }
 
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Gets whether the message has its payload.
+     *
+     * @return false if only the metadata of the message was kept.
+     */
+    public boolean hasPayload() {
+        return null != payload;
+    }
+
+    /**
+     * Gets the CRC32 of the payload.
+     *
+     * @return The CRC32, or -1 if the payload was not hashed.
+     */
+    public long getPayloadHash() {
+        return payloadHash;
+    }
+
     public int getQos() {
         return qos;
     }
@@ -63,4 +141,85 @@ public class Message {
     public long getCurrentTimestamp() {
         return currentTimestamp;
     }
+
+    /**
+     * Gets the time the message was received.
+     *
+     * @return The time in nanoseconds since the epoch.
+     */
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    /**
+     * Gets the time the message arrived, to compare with other {@link System#nanoTime()} values.
+     *
+     * @return The value of {@link System#nanoTime()} when the message arrived.
+     */
+    public long getArrivalTime() {
+        return arrivalTime;
+    }
+
+    /**
+     * Gets the time the sampler took the message.
+     *
+     * @return The value of {@link System#nanoTime()} when the message was taken, 0 if it was not taken yet.
+     */
+    public long getDequeuedTime() {
+        return dequeuedTime;
+    }
+
+    /**
+     * Marks the message as taken by the sampler.
+     *
+     * @param dequeuedTime The value of {@link System#nanoTime()}.
+     */
+    public void setDequeuedTime(long dequeuedTime) {
+        this.dequeuedTime = dequeuedTime;
+    }
+
+    /**
+     * Gets the time the message waited in the client until the sampler took it. A long wait means the sampler, not
+     * the broker, limits how fast messages are received.
+     *
+     * @return The time in nanoseconds, or -1 if the message was not taken yet.
+     */
+    public long getQueueDwellTime() {
+        return 0 == dequeuedTime ? -1 : dequeuedTime - arrivalTime;
+    }
+
+    /**
+     * Gets whether the payload starts with a {@link LatencyHeader}.
+     *
+     * @return true if the message has a latency header.
+     */
+    public boolean hasLatencyHeader() {
+        return latencyHeader;
+    }
+
+    public int getPublisherId() {
+        return publisherId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the time the message was sent according to its latency header.
+     *
+     * @return The time in nanoseconds since the epoch.
+     */
+    public long getSendTime() {
+        return sendTime;
+    }
+
+    /**
+     * Gets the time from publishing to receiving the message.
+     *
+     * @return The latency in nanoseconds, or -1 if the message does not have a latency header.
+     */
+    public long getEndToEndLatency() {
+        return latencyHeader ? receivedTime - sendTime : -1;
+    }
 }
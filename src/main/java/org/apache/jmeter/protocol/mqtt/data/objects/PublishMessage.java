@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.data.objects;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Immutable description of a message to publish. The Paho message is built once so that the same instance can be
+ * handed to the client for every publish. Paho keeps the message id and duplicate flag of a publish on its own wire
+ * message, so a single instance can be in flight several times at once.
+ */
+public final class PublishMessage {
+    private final String topicName;
+    private final int qos;
+    private final boolean retained;
+    private final byte[] payload;
+    private final MqttMessage mqttMessage;
+
+    public PublishMessage(String topicName, int qos, boolean retained, byte[] payload) {
+        this.topicName = topicName;
+        this.qos = qos;
+        this.retained = retained;
+        this.payload = payload;
+        this.mqttMessage = new MqttMessage(payload);
+        this.mqttMessage.setQos(qos);
+        this.mqttMessage.setRetained(retained);
+    }
+
+    public String getTopicName() {
+        return topicName;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    public boolean isRetained() {
+        return retained;
+    }
+
+    /**
+     * Gets the payload. The array is shared and must not be modified.
+     *
+     * @return The payload.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public MqttMessage getMqttMessage() {
+        return mqttMessage;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.data.objects;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The topic filters of a subscriber, each with its own QoS, in the order they were added. A filter added again keeps
+ * its place and takes the new QoS.
+ * <p/>
+ * Filters are read one per line, optionally followed by a comma and the QoS 0, 1 or 2, e.g. fleet/+/telemetry,1.
+ * Filters without a QoS take the default QoS, and blank lines are skipped.
+ */
+public class TopicFilters {
+    private final Map<String, Integer> filters = new LinkedHashMap<String, Integer>();
+
+    /**
+     * Adds a filter.
+     *
+     * @param filter The topic filter.
+     * @param qos    The QoS of the subscription.
+     */
+    public void add(String filter, int qos) {
+        filters.put(filter, qos);
+    }
+
+    /**
+     * Adds the filters of a text.
+     *
+     * @param text       The filters, one per line.
+     * @param defaultQos The QoS of the filters without one.
+     */
+    public void parse(String text, int defaultQos) {
+        for (String line : StringUtils.split(text, "\r\n")) {
+            addLine(line, defaultQos);
+        }
+    }
+
+    /**
+     * Adds the filters of a UTF-8 file.
+     *
+     * @param file       The file, with a filter per line.
+     * @param defaultQos The QoS of the filters without one.
+     * @throws IOException if the file could not be read.
+     */
+    public void load(File file, int defaultQos) throws IOException {
+        for (String line : FileUtils.readLines(file, "UTF-8")) {
+            addLine(line, defaultQos);
+        }
+    }
+
+    private void addLine(String line, int defaultQos) {
+        String filter = line.trim();
+        if (filter.isEmpty()) {
+            return;
+        }
+        int qos = defaultQos;
+        int separator = filter.lastIndexOf(',');
+        if (separator >= 0) {
+            String suffix = filter.substring(separator + 1).trim();
+            // Anything else is part of the filter
+            if ("0".equals(suffix) || "1".equals(suffix) || "2".equals(suffix)) {
+                qos = Integer.parseInt(suffix);
+                filter = filter.substring(0, separator).trim();
+            }
+        }
+        add(filter, qos);
+    }
+
+    public int size() {
+        return filters.size();
+    }
+
+    public boolean isEmpty() {
+        return filters.isEmpty();
+    }
+
+    public String[] getTopicNames() {
+        return filters.keySet().toArray(new String[filters.size()]);
+    }
+
+    /**
+     * Gets the QoS of the filters, in the order of {@link #getTopicNames()}.
+     */
+    public int[] getQos() {
+        int[] qos = new int[filters.size()];
+        int i = 0;
+        for (Integer filterQos : filters.values()) {
+            qos[i++] = filterQos;
+        }
+        return qos;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with a fixed memory footprint, in the spirit of HdrHistogram. Values are counted
+ * in log-linear buckets : every power of two range is split into {@value #SUB_BUCKET_COUNT} linear sub-buckets, which
+ * keeps the relative error of a recorded value below 1% over the whole range of a long.
+ * <p/>
+ * Recording only increments an atomic counter, so it can be called from client callback threads without locking.
+ * Snapshots are taken by copying the counts, and the counts of an interval are the difference of two snapshots.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 2 * SUB_BUCKET_COUNT + (62 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong maxValue = new AtomicLong(0);
+
+    /**
+     * Records a value. Negative values, which can occur when clocks of different machines are not synchronized, are
+     * recorded as 0.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the counts recorded so far.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, maxValue.get());
+    }
+
+    /**
+     * Clears all counts. Values recorded while the histogram is being cleared may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        maxValue.set(0);
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return 2 * SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Gets the highest value counted in a bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - 2 * SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + 1;
+        long subBucket = (index - 2 * SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * The counts of a histogram at a point in time, or over an interval.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long max;
+        private final long totalCount;
+
+        private Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            this.totalCount = total;
+            this.max = max;
+        }
+
+        /**
+         * Gets the counts recorded since an earlier snapshot of the same histogram. The maximum of the interval is
+         * the highest value of the highest bucket recorded in the interval.
+         *
+         * @param earlier The earlier snapshot.
+         * @return The snapshot of the interval.
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[counts.length];
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                delta[i] = counts[i] - earlier.counts[i];
+                if (delta[i] > 0) {
+                    highest = i;
+                }
+            }
+            return new Snapshot(delta, highest < 0 ? 0 : Math.min(highestValueOf(highest), max));
+        }
+
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Gets the value below which the given percentage of recorded values fall.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The value, or 0 if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (0 == totalCount) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100D * totalCount));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.metrics;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the percentiles of a {@link LatencyHistogram} of nanosecond values for every reporting interval and for the
+ * whole test. Reports go to the JMeter log and, if a report directory is configured, to a CSV file named after the
+ * reporter.
+ * <p/>
+ * The reporter is configured with the JMeter properties <code>mqtt.metrics.report.interval</code>, the interval in
+ * seconds (10 by default, 0 disables interval reports), and <code>mqtt.metrics.report.dir</code>, the directory of the
+ * CSV files.
+ */
+public class LatencyReporter {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String REPORT_INTERVAL_PROPERTY = "mqtt.metrics.report.interval";
+    private static final String REPORT_DIR_PROPERTY = "mqtt.metrics.report.dir";
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String CSV_HEADER = "timestamp,scope,count,p50_ms,p90_ms,p99_ms,p99.9_ms,max_ms,errors";
+
+    private static final LatencyReporter endToEndReporter = new LatencyReporter("end-to-end-latency");
+    private static final LatencyReporter queueDwellReporter = new LatencyReporter("queue-dwell");
+    private static final LatencyReporter subscribeReporter = new LatencyReporter("subscribe-latency");
+
+    private final String name;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong errorCount = new AtomicLong(0);
+    private long lastErrorCount;
+    private ScheduledExecutorService scheduler;
+    private PrintWriter csvWriter;
+    private LatencyHistogram.Snapshot lastSnapshot;
+
+    public LatencyReporter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the reporter of the latency from publishing a message to receiving it.
+     *
+     * @return The end to end latency reporter.
+     */
+    public static LatencyReporter getEndToEndReporter() {
+        return endToEndReporter;
+    }
+
+    /**
+     * Gets the reporter of the time received messages wait in the client until the sampler takes them.
+     *
+     * @return The queue dwell reporter.
+     */
+    public static LatencyReporter getQueueDwellReporter() {
+        return queueDwellReporter;
+    }
+
+    /**
+     * Gets the reporter of the time from sending a SUBSCRIBE packet to its acknowledgement.
+     *
+     * @return The subscribe latency reporter.
+     */
+    public static LatencyReporter getSubscribeReporter() {
+        return subscribeReporter;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Counts a failed operation, which has no latency to record.
+     */
+    public void recordError() {
+        errorCount.incrementAndGet();
+    }
+
+    /**
+     * Gets the interval between reports.
+     *
+     * @return The interval in seconds, 0 or less if interval reports are disabled.
+     */
+    public static long getReportInterval() {
+        return JMeterUtils.getPropDefault(REPORT_INTERVAL_PROPERTY, 10);
+    }
+
+    /**
+     * Gets the directory of the CSV reports.
+     *
+     * @return The directory, empty if reports are only logged.
+     */
+    public static String getReportDir() {
+        return JMeterUtils.getPropDefault(REPORT_DIR_PROPERTY, StringUtils.EMPTY);
+    }
+
+    /**
+     * Clears the histogram and starts reporting, unless the reporter is already started.
+     */
+    public synchronized void start() {
+        if (null != scheduler) {
+            return;
+        }
+        histogram.reset();
+        lastSnapshot = histogram.snapshot();
+        errorCount.set(0);
+        lastErrorCount = 0;
+
+        String reportDir = getReportDir();
+        if (StringUtils.isNotBlank(reportDir)) {
+            File csvFile = new File(reportDir, name + ".csv");
+            try {
+                boolean newFile = !csvFile.exists();
+                csvWriter = new PrintWriter(new FileWriter(csvFile, true));
+                if (newFile) {
+                    csvWriter.println(CSV_HEADER);
+                }
+            } catch (IOException e) {
+                log.error("Unable to open " + csvFile + " for the " + name + " report", e);
+            }
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MQTT " + name + " reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = getReportInterval();
+        if (interval > 0) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    reportInterval();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops reporting and reports the whole test, unless the reporter is already stopped.
+     */
+    public synchronized void stop() {
+        if (null == scheduler) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        reportInterval();
+        report("total", histogram.snapshot(), errorCount.get());
+        if (null != csvWriter) {
+            csvWriter.close();
+            csvWriter = null;
+        }
+    }
+
+    private synchronized void reportInterval() {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        LatencyHistogram.Snapshot interval = snapshot.since(lastSnapshot);
+        lastSnapshot = snapshot;
+        long errors = errorCount.get();
+        long intervalErrors = errors - lastErrorCount;
+        lastErrorCount = errors;
+        if (interval.getTotalCount() > 0 || intervalErrors > 0) {
+            report("interval", interval, intervalErrors);
+        }
+    }
+
+    private void report(String scope, LatencyHistogram.Snapshot snapshot, long errors) {
+        StringBuilder values = new StringBuilder();
+        values.append(snapshot.getTotalCount());
+        for (double percentile : PERCENTILES) {
+            values.append(',').append(toMillis(snapshot.getValueAtPercentile(percentile)));
+        }
+        values.append(',').append(toMillis(snapshot.getMax()));
+        values.append(',').append(errors);
+
+        log.info("MQTT " + name + " " + scope + " (count,p50,p90,p99,p99.9,max ms,errors) : " + values);
+        if (null != csvWriter) {
+            csvWriter.println(System.currentTimeMillis() + "," + scope + "," + values);
+            csvWriter.flush();
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.3f", nanos / 1000000D);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which threads add to without contending, in the spirit of LongAdder : every thread adds to one of a few
+ * cells picked by its ID, and the value is the sum of the cells. The cells are a cache line apart so that threads
+ * adding to different cells do not share a cache line.
+ */
+public class StripedCounter {
+    // Longs in a cache line of 64 bytes
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripes() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+        int stripes = 1;
+        while (stripes < processors) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * Adds to the counter.
+     *
+     * @param value The value to add.
+     */
+    public void add(long value) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.addAndGet(stripe * PADDING, value);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Gets the sum of the cells. Values added while the cells are summed may or may not be included.
+     *
+     * @return The value of the counter.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Sets the counter to 0. Values added while the counter is being reset may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.metrics;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the messages, bytes and end to end latency received on each topic by all clients in the JVM, so that the
+ * skew of the traffic of wildcard subscriptions can be observed. The counters of a topic are striped, so client
+ * callback threads receiving on the same topic do not contend. Topics beyond the maximum number of topics are counted
+ * together as {@value #OTHER_TOPICS}, which bounds the memory taken by the statistics.
+ * <p/>
+ * For every reporting interval of the {@link LatencyReporter} and for the whole test, the busiest topics are reported
+ * to the JMeter log, and to the CSV file topic-stats.csv in the report directory if one is configured.
+ * <p/>
+ * Configured by the JMeter properties
+ * <ul>
+ * <li>mqtt.topic.stats.max.topics : maximum number of topics counted apart, 0 disables the statistics, default
+ * 1000</li>
+ * <li>mqtt.topic.stats.levels : number of leading topic levels the statistics are kept by, e.g. 2 counts
+ * fleet/7/telemetry and fleet/7/status as fleet/7, 0 for whole topics (default)</li>
+ * <li>mqtt.topic.stats.top : number of busiest topics reported, default 10</li>
+ * </ul>
+ */
+public class TopicStatistics {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String MAX_TOPICS_PROPERTY = "mqtt.topic.stats.max.topics";
+    private static final String LEVELS_PROPERTY = "mqtt.topic.stats.levels";
+    private static final String TOP_PROPERTY = "mqtt.topic.stats.top";
+    private static final String CSV_FILE = "topic-stats.csv";
+    private static final String CSV_HEADER = "timestamp,scope,topic,messages,bytes,latency_count,mean_ms,max_ms";
+
+    public static final String OTHER_TOPICS = "(other topics)";
+
+    private static final TopicStatistics instance = new TopicStatistics();
+
+    private final ConcurrentMap<String, TopicCounters> topics = new ConcurrentHashMap<String, TopicCounters>();
+    private final AtomicInteger topicCount = new AtomicInteger(0);
+    private volatile TopicCounters otherTopics = new TopicCounters(OTHER_TOPICS);
+    private volatile boolean enabled = false;
+    private volatile int maxTopics;
+    private volatile int levels;
+    private int top;
+    private ScheduledExecutorService scheduler;
+    private PrintWriter csvWriter;
+
+    private TopicStatistics() {
+    }
+
+    public static TopicStatistics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Reads the configuration, clears the statistics and starts reporting, unless the statistics are disabled or
+     * already started.
+     */
+    public synchronized void start() {
+        if (null != scheduler) {
+            return;
+        }
+        maxTopics = JMeterUtils.getPropDefault(MAX_TOPICS_PROPERTY, 1000);
+        if (maxTopics <= 0) {
+            return;
+        }
+        levels = Math.max(JMeterUtils.getPropDefault(LEVELS_PROPERTY, 0), 0);
+        top = Math.max(JMeterUtils.getPropDefault(TOP_PROPERTY, 10), 1);
+        topics.clear();
+        topicCount.set(0);
+        otherTopics = new TopicCounters(OTHER_TOPICS);
+
+        String reportDir = LatencyReporter.getReportDir();
+        if (StringUtils.isNotBlank(reportDir)) {
+            File csvFile = new File(reportDir, CSV_FILE);
+            try {
+                boolean newFile = !csvFile.exists();
+                csvWriter = new PrintWriter(new FileWriter(csvFile, true));
+                if (newFile) {
+                    csvWriter.println(CSV_HEADER);
+                }
+            } catch (IOException e) {
+                log.error("Unable to open " + csvFile + " for the topic statistics", e);
+            }
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MQTT topic statistics reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = LatencyReporter.getReportInterval();
+        if (interval > 0) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    report("interval", true);
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+        enabled = true;
+    }
+
+    /**
+     * Stops counting and reports the whole test, unless the statistics are already stopped.
+     */
+    public synchronized void stop() {
+        if (null == scheduler) {
+            return;
+        }
+        enabled = false;
+        scheduler.shutdownNow();
+        scheduler = null;
+        report("interval", true);
+        report("total", false);
+        if (null != csvWriter) {
+            csvWriter.close();
+            csvWriter = null;
+        }
+    }
+
+    /**
+     * Counts a received message without a latency.
+     *
+     * @param topic The topic the message was published to.
+     * @param bytes The length of the payload.
+     */
+    public void record(String topic, int bytes) {
+        if (enabled) {
+            countersOf(topic).record(bytes);
+        }
+    }
+
+    /**
+     * Counts a received message and its end to end latency.
+     *
+     * @param topic   The topic the message was published to.
+     * @param bytes   The length of the payload.
+     * @param latency The end to end latency in nanoseconds, negative values are counted as 0.
+     */
+    public void record(String topic, int bytes, long latency) {
+        if (enabled) {
+            countersOf(topic).record(bytes, Math.max(latency, 0));
+        }
+    }
+
+    /**
+     * Gets the number of messages counted on a topic since the statistics started.
+     *
+     * @param topic The topic, or the leading levels of the topics if the statistics are kept by topic levels.
+     * @return The number of messages, 0 if the topic is not counted apart.
+     */
+    public long getMessageCount(String topic) {
+        TopicCounters counters = OTHER_TOPICS.equals(topic) ? otherTopics : topics.get(topic);
+        return null == counters ? 0 : counters.messages.get();
+    }
+
+    /**
+     * Gets the number of topics counted apart.
+     */
+    public int getTopicCount() {
+        return topicCount.get();
+    }
+
+    private TopicCounters countersOf(String topic) {
+        String key = keyOf(topic, levels);
+        TopicCounters counters = topics.get(key);
+        if (null != counters) {
+            return counters;
+        }
+        if (topicCount.incrementAndGet() > maxTopics) {
+            topicCount.decrementAndGet();
+            return otherTopics;
+        }
+        counters = new TopicCounters(key);
+        TopicCounters existing = topics.putIfAbsent(key, counters);
+        if (null != existing) {
+            topicCount.decrementAndGet();
+            return existing;
+        }
+        return counters;
+    }
+
+    /**
+     * Gets the leading levels of a topic.
+     *
+     * @param topic  The topic.
+     * @param levels The number of levels, 0 for the whole topic.
+     * @return The topic up to but excluding the separator after the levels, or the whole topic if it has no more
+     * levels.
+     */
+    static String keyOf(String topic, int levels) {
+        if (levels <= 0) {
+            return topic;
+        }
+        int end = -1;
+        for (int level = 0; level < levels; level++) {
+            end = topic.indexOf('/', end + 1);
+            if (end < 0) {
+                return topic;
+            }
+        }
+        return topic.substring(0, end);
+    }
+
+    private synchronized void report(String scope, boolean interval) {
+        List<Counts> counts = new ArrayList<Counts>();
+        long totalMessages = 0;
+        for (TopicCounters counters : topics.values()) {
+            Counts topicCounts = counters.counts(interval);
+            if (topicCounts.messages > 0) {
+                counts.add(topicCounts);
+                totalMessages += topicCounts.messages;
+            }
+        }
+        int topicsReceived = counts.size();
+        Counts other = otherTopics.counts(interval);
+        if (other.messages > 0) {
+            counts.add(other);
+            totalMessages += other.messages;
+        }
+        if (0 == totalMessages) {
+            return;
+        }
+        Collections.sort(counts, new Comparator<Counts>() {
+            @Override
+            public int compare(Counts left, Counts right) {
+                return left.messages < right.messages ? 1 : left.messages > right.messages ? -1 : 0;
+            }
+        });
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("MQTT topic statistics ").append(scope).append(" : ").append(totalMessages)
+                .append(" messages on ").append(topicsReceived).append(" topics");
+        if (other.messages > 0) {
+            summary.append(" and ").append(other.messages).append(" on ").append(OTHER_TOPICS);
+        }
+        Counts hottest = counts.get(0);
+        if (topicsReceived > 0 && hottest != other) {
+            double share = hottest.messages * 100D / totalMessages;
+            double mean = (double) (totalMessages - other.messages) / topicsReceived;
+            summary.append(", busiest ").append(hottest.topic).append(" with ")
+                    .append(String.format(Locale.ENGLISH, "%.1f%% (%.1fx the mean)", share,
+                                          hottest.messages / mean));
+        }
+        int reported = Math.min(top, counts.size());
+        for (int i = 0; i < reported; i++) {
+            summary.append("\n  ").append(counts.get(i).topic).append(" (messages,bytes,mean,max ms) : ")
+                    .append(counts.get(i).values());
+        }
+        log.info(summary.toString());
+
+        if (null != csvWriter) {
+            // Every topic for the whole test, the busiest ones for an interval
+            int written = interval ? reported : counts.size();
+            long timestamp = System.currentTimeMillis();
+            for (int i = 0; i < written; i++) {
+                Counts topicCounts = counts.get(i);
+                csvWriter.println(timestamp + "," + scope + "," + csvField(topicCounts.topic) + "," +
+                                  topicCounts.messages + "," + topicCounts.bytes + "," + topicCounts.latencyCount +
+                                  "," + toMillis(topicCounts.meanLatency()) + "," + toMillis(topicCounts.maxLatency));
+            }
+            csvWriter.flush();
+        }
+    }
+
+    private static String csvField(String value) {
+        if (!StringUtils.containsAny(value, ",\"\n\r")) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.3f", nanos / 1000000D);
+    }
+
+    /**
+     * The counters of one topic.
+     */
+    private static final class TopicCounters {
+        private final String topic;
+        private final StripedCounter messages = new StripedCounter();
+        private final StripedCounter bytes = new StripedCounter();
+        private final StripedCounter latencyCount = new StripedCounter();
+        private final StripedCounter latencySum = new StripedCounter();
+        private final AtomicLong maxLatency = new AtomicLong(0);
+        private final AtomicLong intervalMaxLatency = new AtomicLong(0);
+
+        // The values at the last interval report, only used by the reporter
+        private long lastMessages;
+        private long lastBytes;
+        private long lastLatencyCount;
+        private long lastLatencySum;
+
+        private TopicCounters(String topic) {
+            this.topic = topic;
+        }
+
+        private void record(int length) {
+            messages.increment();
+            bytes.add(length);
+        }
+
+        private void record(int length, long latency) {
+            record(length);
+            latencyCount.increment();
+            latencySum.add(latency);
+            updateMax(maxLatency, latency);
+            updateMax(intervalMaxLatency, latency);
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * Gets the counts since the last interval report, or since the start.
+         */
+        private Counts counts(boolean interval) {
+            long messageCount = messages.get();
+            long byteCount = bytes.get();
+            long latencies = latencyCount.get();
+            long latencyTotal = latencySum.get();
+            if (!interval) {
+                return new Counts(topic, messageCount, byteCount, latencies, latencyTotal, maxLatency.get());
+            }
+            Counts counts = new Counts(topic, messageCount - lastMessages, byteCount - lastBytes,
+                                       latencies - lastLatencyCount, latencyTotal - lastLatencySum,
+                                       intervalMaxLatency.getAndSet(0));
+            lastMessages = messageCount;
+            lastBytes = byteCount;
+            lastLatencyCount = latencies;
+            lastLatencySum = latencyTotal;
+            return counts;
+        }
+    }
+
+    private static final class Counts {
+        private final String topic;
+        private final long messages;
+        private final long bytes;
+        private final long latencyCount;
+        private final long latencySum;
+        private final long maxLatency;
+
+        private Counts(String topic, long messages, long bytes, long latencyCount, long latencySum,
+                       long maxLatency) {
+            this.topic = topic;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.latencyCount = latencyCount;
+            this.latencySum = latencySum;
+            this.maxLatency = maxLatency;
+        }
+
+        private long meanLatency() {
+            return 0 == latencyCount ? 0 : latencySum / latencyCount;
+        }
+
+        private String values() {
+            StringBuilder values = new StringBuilder();
+            values.append(messages).append(',').append(bytes);
+            if (latencyCount > 0) {
+                values.append(',').append(toMillis(meanLatency())).append(',').append(toMillis(maxLatency));
+            } else {
+                values.append(",-,-");
+            }
+            return values.toString();
+        }
+    }
+}
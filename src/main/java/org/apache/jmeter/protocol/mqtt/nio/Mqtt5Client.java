@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.nio;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
+import org.apache.jmeter.protocol.mqtt.paho.network.ConnectTimings;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An MQTT 5 client on the event loops of the {@link NioClient}.
+ * <p/>
+ * Topics are replaced by topic aliases, up to the number of aliases the broker allows : the first publishes to a
+ * topic carry the topic name and its alias, the later ones only the alias. The publishes in flight are limited by the
+ * receive maximum of the broker as well as the max in-flight of the client, and every CONNECT and PUBLISH carries
+ * the user properties of the client.
+ * <p/>
+ * Configured by the JMeter properties mqtt.v5.topic.alias.maximum (the number of topic aliases the client uses in
+ * either direction, 0 for none), mqtt.v5.user.properties (e.g. tenant=acme, site=lab) and mqtt.v5.session.expiry
+ * (the seconds a session which is not clean outlives its connection).
+ */
+public class Mqtt5Client extends NioClient {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String TOPIC_ALIAS_MAXIMUM_PROPERTY = "mqtt.v5.topic.alias.maximum";
+    private static final String USER_PROPERTIES_PROPERTY = "mqtt.v5.user.properties";
+    private static final String SESSION_EXPIRY_PROPERTY = "mqtt.v5.session.expiry";
+
+    private static final int MAX_TOPIC_ALIAS = 65535;
+
+    private static volatile EncodedUserProperties lastUserProperties;
+
+    private final int topicAliasMaximum;
+    private final byte[] userProperties;
+    private final long sessionExpiry;
+
+    // The limits of the broker, set by each CONNACK
+    private volatile int receiveMaximum = Mqtt5Codec.DEFAULT_RECEIVE_MAXIMUM;
+    private volatile int maximumQos = 2;
+    private volatile long maximumPacketSize = 0;
+    private volatile TopicAliases topicAliases;
+
+    // Only used by the loop thread
+    private final Map<Integer, String> inboundAliases = new HashMap<Integer, String>();
+
+    /**
+     * Constructs and connects a client.
+     *
+     * @param brokerUrl    The URL of the broker, tcp:// only.
+     * @param clientId     The client ID.
+     * @param cleanSession Whether the session starts clean.
+     * @param userName     The user name, empty for none.
+     * @param password     The password, empty for none.
+     * @param keepAlive    The keep alive interval in seconds, replaced by the one of the broker if it sets one.
+     * @param maxInFlight  The maximum number of QoS 1 and 2 publishes in flight, 0 to wait for each publish. The
+     *                     receive maximum of the broker limits them further.
+     * @param timings      The timings to record the TCP connect and CONNACK into, null for none.
+     * @throws MqttException if the connect fails.
+     */
+    public Mqtt5Client(String brokerUrl, String clientId, boolean cleanSession, String userName, String password,
+                       int keepAlive, int maxInFlight, ConnectTimings timings) throws MqttException {
+        super(brokerUrl, clientId, cleanSession, userName, password, keepAlive, maxInFlight, timings, "MQTT 5");
+        this.topicAliasMaximum = Math.max(0, Math.min(MAX_TOPIC_ALIAS,
+                JMeterUtils.getPropDefault(TOPIC_ALIAS_MAXIMUM_PROPERTY, MAX_TOPIC_ALIAS)));
+        this.userProperties = encodedUserProperties(JMeterUtils.getPropDefault(USER_PROPERTIES_PROPERTY, ""));
+        this.sessionExpiry = cleanSession ? 0 : JMeterUtils.getPropDefault(SESSION_EXPIRY_PROPERTY, 3600L);
+        open();
+    }
+
+    /**
+     * Gets the encoded user properties, parsed once for all the clients of a test.
+     */
+    private static byte[] encodedUserProperties(String text) {
+        EncodedUserProperties encoded = lastUserProperties;
+        if (null == encoded || !encoded.text.equals(text)) {
+            encoded = new EncodedUserProperties(text, Mqtt5Codec.encodeUserProperties(parseUserProperties(text)));
+            lastUserProperties = encoded;
+        }
+        return encoded.encoded;
+    }
+
+    /**
+     * Parses user properties of the form name=value, separated by commas.
+     *
+     * @param text The user properties.
+     * @return The names and values of the properties, in order.
+     */
+    static Map<String, String> parseUserProperties(String text) {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        for (String property : StringUtils.split(text, ',')) {
+            String name = StringUtils.substringBefore(property, "=").trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (!property.contains("=")) {
+                log.warn("Ignoring the MQTT 5 user property '" + property.trim() + "' without a value");
+                continue;
+            }
+            properties.put(name, StringUtils.substringAfter(property, "=").trim());
+        }
+        return properties;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    ByteBuffer connectPacket(String clientId, boolean cleanSession, int keepAlive, String userName,
+                             String password) {
+        return Mqtt5Codec.connect(clientId, cleanSession, keepAlive, userName, password, sessionExpiry,
+                                  topicAliasMaximum, userProperties);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    boolean sendPublish(NioConnection target, PublishMessage message, int messageId, NioToken written)
+            throws MqttException {
+        if (message.getQos() > maximumQos) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, new IOException(
+                    "QoS " + message.getQos() + " is above the maximum QoS " + maximumQos + " of the broker"));
+        }
+        TopicAliases aliases = topicAliases;
+        TopicAlias alias = null == aliases || aliases.connection != target ? null :
+                aliases.get(message.getTopicName());
+        if (null == alias) {
+            return target.send(checkSize(Mqtt5Codec.publish(message, messageId, false, 0, true, userProperties)),
+                               written);
+        }
+        // Until a publish carrying the topic name is queued, the broker may not know the alias
+        boolean established = alias.established;
+        if (!target.send(checkSize(Mqtt5Codec.publish(message, messageId, false, alias.alias, !established,
+                                                      userProperties)), written)) {
+            return false;
+        }
+        alias.established = true;
+        return true;
+    }
+
+    private ByteBuffer checkSize(ByteBuffer packet) throws MqttException {
+        long maximum = maximumPacketSize;
+        if (maximum > 0 && packet.remaining() > maximum) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, new IOException(
+                    "Packet of " + packet.remaining() + " bytes exceeds the maximum packet size " + maximum +
+                    " of the broker"));
+        }
+        return packet;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    ByteBuffer resendPacket(PublishMessage message, int messageId) {
+        // The aliases of the lost connection are gone
+        return Mqtt5Codec.publish(message, messageId, true, 0, true, userProperties);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    ByteBuffer subscribePacket(int messageId, String[] topics, int[] qos) {
+        return Mqtt5Codec.subscribe(messageId, topics, qos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void connectAccepted(NioConnection source, ByteBuffer body) throws IOException {
+        Mqtt5Codec.Properties properties = Mqtt5Codec.readProperties(body);
+        receiveMaximum = properties.receiveMaximum;
+        maximumQos = properties.maximumQos;
+        maximumPacketSize = properties.maximumPacketSize;
+        if (properties.serverKeepAlive >= 0) {
+            source.setKeepAlive(properties.serverKeepAlive);
+        }
+        topicAliases = new TopicAliases(source, Math.min(topicAliasMaximum, properties.topicAliasMaximum));
+        inboundAliases.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    MqttException connectRefused(int returnCode) {
+        switch (returnCode) {
+            case 0x84: // Unsupported protocol version
+                return new MqttException(MqttException.REASON_CODE_INVALID_PROTOCOL_VERSION);
+            case 0x85: // Client identifier not valid
+                return new MqttException(MqttException.REASON_CODE_INVALID_CLIENT_ID);
+            case 0x88: // Server unavailable
+            case 0x89: // Server busy
+                return new MqttException(MqttException.REASON_CODE_BROKER_UNAVAILABLE);
+            case 0x86: // Bad user name or password
+                return new MqttException(MqttException.REASON_CODE_FAILED_AUTHENTICATION);
+            case 0x87: // Not authorized
+                return new MqttException(MqttException.REASON_CODE_NOT_AUTHORIZED);
+            default:
+                return new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, new IOException(
+                        "Connect refused by the broker with reason code 0x" + Integer.toHexString(returnCode)));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    String receivedTopic(String topic, ByteBuffer body) throws IOException {
+        int alias = Mqtt5Codec.readProperties(body).topicAlias;
+        if (0 == alias) {
+            return topic;
+        }
+        if (alias > topicAliasMaximum) {
+            throw new IOException("Topic alias " + alias + " above the maximum " + topicAliasMaximum);
+        }
+        if (!topic.isEmpty()) {
+            inboundAliases.put(alias, topic);
+            return topic;
+        }
+        String aliased = inboundAliases.get(alias);
+        if (null == aliased) {
+            throw new IOException("Unknown topic alias " + alias);
+        }
+        return aliased;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void subscribeAcknowledged(ByteBuffer body) throws IOException {
+        Mqtt5Codec.readProperties(body);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    int sendQuota() {
+        return receiveMaximum;
+    }
+
+    /**
+     * The topic aliases of the publishes on one connection, given to topics as they are first published to.
+     */
+    private static final class TopicAliases {
+        private final NioConnection connection;
+        private final int maximum;
+        private final Map<String, TopicAlias> aliases = new ConcurrentHashMap<String, TopicAlias>();
+        private final AtomicInteger lastAlias = new AtomicInteger(0);
+
+        private TopicAliases(NioConnection connection, int maximum) {
+            this.connection = connection;
+            this.maximum = maximum;
+        }
+
+        /**
+         * Gets the alias of a topic.
+         *
+         * @return The alias, or null if all aliases are taken.
+         */
+        private TopicAlias get(String topic) {
+            TopicAlias alias = aliases.get(topic);
+            if (null != alias || lastAlias.get() >= maximum) {
+                return alias;
+            }
+            synchronized (this) {
+                alias = aliases.get(topic);
+                if (null == alias && lastAlias.get() < maximum) {
+                    alias = new TopicAlias(lastAlias.incrementAndGet());
+                    aliases.put(topic, alias);
+                }
+            }
+            return alias;
+        }
+    }
+
+    private static final class EncodedUserProperties {
+        private final String text;
+        private final byte[] encoded;
+
+        private EncodedUserProperties(String text, byte[] encoded) {
+            this.text = text;
+            this.encoded = encoded;
+        }
+    }
+
+    private static final class TopicAlias {
+        private final int alias;
+        // Whether a publish carrying the topic name was queued
+        private volatile boolean established = false;
+
+        private TopicAlias(int alias) {
+            this.alias = alias;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.nio;
+
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Encodes the MQTT 5 packets of the {@link Mqtt5Client} which differ from MQTT 3.1.1, and decodes the properties
+ * of received packets. Packets are built with the helpers of {@link MqttCodec}.
+ */
+final class Mqtt5Codec {
+    static final int PROTOCOL_LEVEL = 5;
+
+    // Property identifiers
+    static final int SESSION_EXPIRY_INTERVAL = 0x11;
+    static final int SERVER_KEEP_ALIVE = 0x13;
+    static final int REASON_STRING = 0x1F;
+    static final int RECEIVE_MAXIMUM = 0x21;
+    static final int TOPIC_ALIAS_MAXIMUM = 0x22;
+    static final int TOPIC_ALIAS = 0x23;
+    static final int MAXIMUM_QOS = 0x24;
+    static final int USER_PROPERTY = 0x26;
+    static final int MAXIMUM_PACKET_SIZE = 0x27;
+
+    // The receive maximum of a broker which does not send one
+    static final int DEFAULT_RECEIVE_MAXIMUM = 65535;
+
+    private static final byte[] NO_TOPIC = new byte[0];
+
+    private Mqtt5Codec() {
+    }
+
+    /**
+     * Encodes a CONNECT packet.
+     *
+     * @param clientId          The client ID.
+     * @param cleanStart        Whether the session starts clean.
+     * @param keepAlive         The keep alive interval in seconds.
+     * @param userName          The user name, null or empty for none.
+     * @param password          The password, null or empty for none.
+     * @param sessionExpiry     The session expiry interval in seconds, 0 to end the session with the connection.
+     * @param topicAliasMaximum The highest topic alias the broker may use, 0 for none.
+     * @param userProperties    The encoded user properties, see {@link #encodeUserProperties(Map)}.
+     * @return The packet.
+     */
+    static ByteBuffer connect(String clientId, boolean cleanStart, int keepAlive, String userName, String password,
+                              long sessionExpiry, int topicAliasMaximum, byte[] userProperties) {
+        byte[] clientIdBytes = clientId.getBytes(MqttCodec.UTF_8);
+        byte[] userNameBytes = null == userName || userName.isEmpty() ? null : userName.getBytes(MqttCodec.UTF_8);
+        byte[] passwordBytes = null == password || password.isEmpty() ? null : password.getBytes(MqttCodec.UTF_8);
+
+        int propertiesLength = (sessionExpiry > 0 ? 5 : 0) + (topicAliasMaximum > 0 ? 3 : 0) +
+                               userProperties.length;
+        int flags = cleanStart ? 0x02 : 0;
+        int length = 2 + MqttCodec.PROTOCOL_NAME.length + 1 + 1 + 2 +
+                     MqttCodec.variableIntSize(propertiesLength) + propertiesLength + 2 + clientIdBytes.length;
+        if (null != userNameBytes) {
+            flags |= 0x80;
+            length += 2 + userNameBytes.length;
+        }
+        if (null != passwordBytes) {
+            flags |= 0x40;
+            length += 2 + passwordBytes.length;
+        }
+
+        ByteBuffer packet = MqttCodec.allocate(MqttCodec.CONNECT << 4, length);
+        MqttCodec.putBytes(packet, MqttCodec.PROTOCOL_NAME);
+        packet.put((byte) PROTOCOL_LEVEL);
+        packet.put((byte) flags);
+        packet.putShort((short) keepAlive);
+        MqttCodec.putVariableInt(packet, propertiesLength);
+        if (sessionExpiry > 0) {
+            packet.put((byte) SESSION_EXPIRY_INTERVAL);
+            packet.putInt((int) Math.min(sessionExpiry, 0xFFFFFFFFL));
+        }
+        if (topicAliasMaximum > 0) {
+            packet.put((byte) TOPIC_ALIAS_MAXIMUM);
+            packet.putShort((short) topicAliasMaximum);
+        }
+        packet.put(userProperties);
+        MqttCodec.putBytes(packet, clientIdBytes);
+        if (null != userNameBytes) {
+            MqttCodec.putBytes(packet, userNameBytes);
+        }
+        if (null != passwordBytes) {
+            MqttCodec.putBytes(packet, passwordBytes);
+        }
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes a PUBLISH packet.
+     *
+     * @param message        The message to publish.
+     * @param messageId      The message id, ignored for QoS 0.
+     * @param dup            Whether the message is sent again.
+     * @param topicAlias     The topic alias, 0 for none.
+     * @param sendTopic      Whether to send the topic name. Without it the broker takes the topic of the alias.
+     * @param userProperties The encoded user properties, see {@link #encodeUserProperties(Map)}.
+     * @return The packet.
+     */
+    static ByteBuffer publish(PublishMessage message, int messageId, boolean dup, int topicAlias, boolean sendTopic,
+                              byte[] userProperties) {
+        byte[] topic = sendTopic ? message.getTopicName().getBytes(MqttCodec.UTF_8) : NO_TOPIC;
+        byte[] payload = message.getPayload();
+        int qos = message.getQos();
+
+        int header = MqttCodec.PUBLISH << 4 | qos << 1;
+        if (dup) {
+            header |= 0x08;
+        }
+        if (message.isRetained()) {
+            header |= 0x01;
+        }
+        int propertiesLength = (topicAlias > 0 ? 3 : 0) + userProperties.length;
+        ByteBuffer packet = MqttCodec.allocate(header, 2 + topic.length + (qos > 0 ? 2 : 0) +
+                                                       MqttCodec.variableIntSize(propertiesLength) +
+                                                       propertiesLength + payload.length);
+        MqttCodec.putBytes(packet, topic);
+        if (qos > 0) {
+            packet.putShort((short) messageId);
+        }
+        MqttCodec.putVariableInt(packet, propertiesLength);
+        if (topicAlias > 0) {
+            packet.put((byte) TOPIC_ALIAS);
+            packet.putShort((short) topicAlias);
+        }
+        packet.put(userProperties);
+        packet.put(payload);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes a SUBSCRIBE packet for one or more topic filters, without properties.
+     *
+     * @param messageId The message id.
+     * @param topics    The topic filters.
+     * @param qos       The maximum QoS of each subscription, the only subscription option set.
+     * @return The packet.
+     */
+    static ByteBuffer subscribe(int messageId, String[] topics, int[] qos) {
+        byte[][] topicBytes = MqttCodec.encodeTopics(topics);
+        ByteBuffer packet = MqttCodec.allocate(MqttCodec.SUBSCRIBE << 4 | 0x02,
+                                               2 + 1 + MqttCodec.filtersLength(topicBytes));
+        packet.putShort((short) messageId);
+        packet.put((byte) 0);
+        MqttCodec.putFilters(packet, topicBytes, qos);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes user properties once, to be added to every packet as they are.
+     *
+     * @param userProperties The names and values of the properties.
+     * @return The encoded properties, empty for none.
+     */
+    static byte[] encodeUserProperties(Map<String, String> userProperties) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> property : userProperties.entrySet()) {
+            byte[] name = property.getKey().getBytes(MqttCodec.UTF_8);
+            byte[] value = property.getValue().getBytes(MqttCodec.UTF_8);
+            ByteBuffer encoded = ByteBuffer.allocate(1 + 2 + name.length + 2 + value.length);
+            encoded.put((byte) USER_PROPERTY);
+            MqttCodec.putBytes(encoded, name);
+            MqttCodec.putBytes(encoded, value);
+            out.write(encoded.array(), 0, encoded.capacity());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the properties of a received packet.
+     *
+     * @param in The buffer positioned at the property length, positioned after the properties on return.
+     * @return The properties the client uses, the others are skipped.
+     * @throws IOException if the properties are malformed.
+     */
+    static Properties readProperties(ByteBuffer in) throws IOException {
+        try {
+            return readKnownProperties(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed properties", e);
+        } catch (IllegalArgumentException e) {
+            // A position beyond the limit
+            throw new IOException("Malformed properties", e);
+        }
+    }
+
+    private static Properties readKnownProperties(ByteBuffer in) throws IOException {
+        Properties properties = new Properties();
+        int length = readVariableInt(in);
+        if (length > in.remaining()) {
+            throw new IOException("Malformed properties");
+        }
+        int end = in.position() + length;
+        while (in.position() < end) {
+            int identifier = readVariableInt(in);
+            switch (identifier) {
+                case SERVER_KEEP_ALIVE:
+                    properties.serverKeepAlive = in.getShort() & 0xFFFF;
+                    break;
+                case RECEIVE_MAXIMUM:
+                    properties.receiveMaximum = in.getShort() & 0xFFFF;
+                    break;
+                case TOPIC_ALIAS_MAXIMUM:
+                    properties.topicAliasMaximum = in.getShort() & 0xFFFF;
+                    break;
+                case TOPIC_ALIAS:
+                    properties.topicAlias = in.getShort() & 0xFFFF;
+                    break;
+                case MAXIMUM_QOS:
+                    properties.maximumQos = in.get() & 0xFF;
+                    break;
+                case MAXIMUM_PACKET_SIZE:
+                    properties.maximumPacketSize = in.getInt() & 0xFFFFFFFFL;
+                    break;
+                case REASON_STRING:
+                    properties.reasonString = MqttCodec.readString(in);
+                    break;
+                default:
+                    skipProperty(in, identifier);
+                    break;
+            }
+        }
+        if (in.position() != end) {
+            throw new IOException("Malformed properties");
+        }
+        return properties;
+    }
+
+    private static void skipProperty(ByteBuffer in, int identifier) throws IOException {
+        switch (identifier) {
+            // Bytes
+            case 0x01:
+            case 0x17:
+            case 0x19:
+            case 0x25:
+            case 0x28:
+            case 0x29:
+            case 0x2A:
+                in.get();
+                break;
+            // Four byte integers
+            case 0x02:
+            case 0x11:
+            case 0x18:
+                in.getInt();
+                break;
+            // Variable byte integer
+            case 0x0B:
+                readVariableInt(in);
+                break;
+            // Strings and binary data
+            case 0x03:
+            case 0x08:
+            case 0x09:
+            case 0x12:
+            case 0x15:
+            case 0x16:
+            case 0x1A:
+            case 0x1C:
+                in.position(in.position() + (in.getShort() & 0xFFFF));
+                break;
+            // String pair
+            case USER_PROPERTY:
+                in.position(in.position() + (in.getShort() & 0xFFFF));
+                in.position(in.position() + (in.getShort() & 0xFFFF));
+                break;
+            default:
+                throw new IOException("Unknown property " + identifier);
+        }
+    }
+
+    private static int readVariableInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        int multiplier = 1;
+        for (int i = 0; i < 4; i++) {
+            int digit = in.get();
+            value += (digit & 0x7F) * multiplier;
+            if ((digit & 0x80) == 0) {
+                return value;
+            }
+            multiplier <<= 7;
+        }
+        throw new IOException("Malformed variable byte integer");
+    }
+
+    /**
+     * The properties of a received packet the client uses, with their defaults for absent properties.
+     */
+    static final class Properties {
+        int serverKeepAlive = -1;
+        int receiveMaximum = DEFAULT_RECEIVE_MAXIMUM;
+        int topicAliasMaximum = 0;
+        int topicAlias = 0;
+        int maximumQos = 2;
+        // 0 for no maximum
+        long maximumPacketSize = 0;
+        String reasonString;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.nio;
+
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes and decodes the MQTT 3.1.1 packets of the NIO client. The acknowledgements, PINGREQ and DISCONNECT are
+ * also valid MQTT 5 packets, the other MQTT 5 packets are encoded by {@link Mqtt5Codec}.
+ */
+final class MqttCodec {
+    static final int CONNECT = 1;
+    static final int CONNACK = 2;
+    static final int PUBLISH = 3;
+    static final int PUBACK = 4;
+    static final int PUBREC = 5;
+    static final int PUBREL = 6;
+    static final int PUBCOMP = 7;
+    static final int SUBSCRIBE = 8;
+    static final int SUBACK = 9;
+    static final int PINGREQ = 12;
+    static final int PINGRESP = 13;
+    static final int DISCONNECT = 14;
+
+    // The lowest return code of a failed subscription, and the lowest MQTT 5 reason code of a failure
+    static final int SUBACK_FAILURE = 0x80;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final byte[] PROTOCOL_NAME = "MQTT".getBytes(UTF_8);
+    private static final int PROTOCOL_LEVEL = 4;
+    private static final int MAX_REMAINING_LENGTH = 268435455;
+
+    private MqttCodec() {
+    }
+
+    /**
+     * Encodes a CONNECT packet.
+     *
+     * @param clientId     The client ID.
+     * @param cleanSession Whether the session starts clean.
+     * @param keepAlive    The keep alive interval in seconds.
+     * @param userName     The user name, null or empty for none.
+     * @param password     The password, null or empty for none.
+     * @return The packet.
+     */
+    static ByteBuffer connect(String clientId, boolean cleanSession, int keepAlive, String userName,
+                              String password) {
+        byte[] clientIdBytes = clientId.getBytes(UTF_8);
+        byte[] userNameBytes = null == userName || userName.isEmpty() ? null : userName.getBytes(UTF_8);
+        byte[] passwordBytes = null == password || password.isEmpty() ? null : password.getBytes(UTF_8);
+
+        int flags = cleanSession ? 0x02 : 0;
+        int length = 2 + PROTOCOL_NAME.length + 1 + 1 + 2 + 2 + clientIdBytes.length;
+        if (null != userNameBytes) {
+            flags |= 0x80;
+            length += 2 + userNameBytes.length;
+        }
+        if (null != passwordBytes) {
+            flags |= 0x40;
+            length += 2 + passwordBytes.length;
+        }
+
+        ByteBuffer packet = allocate(CONNECT << 4, length);
+        putBytes(packet, PROTOCOL_NAME);
+        packet.put((byte) PROTOCOL_LEVEL);
+        packet.put((byte) flags);
+        packet.putShort((short) keepAlive);
+        putBytes(packet, clientIdBytes);
+        if (null != userNameBytes) {
+            putBytes(packet, userNameBytes);
+        }
+        if (null != passwordBytes) {
+            putBytes(packet, passwordBytes);
+        }
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes a PUBLISH packet.
+     *
+     * @param message   The message to publish.
+     * @param messageId The message id, ignored for QoS 0.
+     * @param dup       Whether the message is sent again.
+     * @return The packet.
+     */
+    static ByteBuffer publish(PublishMessage message, int messageId, boolean dup) {
+        byte[] topic = message.getTopicName().getBytes(UTF_8);
+        byte[] payload = message.getPayload();
+        int qos = message.getQos();
+
+        int header = PUBLISH << 4 | qos << 1;
+        if (dup) {
+            header |= 0x08;
+        }
+        if (message.isRetained()) {
+            header |= 0x01;
+        }
+        ByteBuffer packet = allocate(header, 2 + topic.length + (qos > 0 ? 2 : 0) + payload.length);
+        putBytes(packet, topic);
+        if (qos > 0) {
+            packet.putShort((short) messageId);
+        }
+        packet.put(payload);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes a PUBACK, PUBREC, PUBREL or PUBCOMP packet.
+     *
+     * @param type      The packet type.
+     * @param messageId The message id acknowledged.
+     * @return The packet.
+     */
+    static ByteBuffer ack(int type, int messageId) {
+        // PUBREL is the only acknowledgement with fixed header flags
+        ByteBuffer packet = allocate(type << 4 | (PUBREL == type ? 0x02 : 0), 2);
+        packet.putShort((short) messageId);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Encodes a SUBSCRIBE packet for one or more topic filters.
+     *
+     * @param messageId The message id.
+     * @param topics    The topic filters.
+     * @param qos       The maximum QoS of each subscription.
+     * @return The packet.
+     */
+    static ByteBuffer subscribe(int messageId, String[] topics, int[] qos) {
+        byte[][] topicBytes = encodeTopics(topics);
+        ByteBuffer packet = allocate(SUBSCRIBE << 4 | 0x02, 2 + filtersLength(topicBytes));
+        packet.putShort((short) messageId);
+        putFilters(packet, topicBytes, qos);
+        packet.flip();
+        return packet;
+    }
+
+    static byte[][] encodeTopics(String[] topics) {
+        byte[][] topicBytes = new byte[topics.length][];
+        for (int i = 0; i < topics.length; i++) {
+            topicBytes[i] = topics[i].getBytes(UTF_8);
+        }
+        return topicBytes;
+    }
+
+    /**
+     * Gets the length of the topic filters of a SUBSCRIBE packet, each followed by its options.
+     */
+    static int filtersLength(byte[][] topicBytes) {
+        int length = 0;
+        for (byte[] topic : topicBytes) {
+            length += 2 + topic.length + 1;
+        }
+        return length;
+    }
+
+    static void putFilters(ByteBuffer packet, byte[][] topicBytes, int[] qos) {
+        for (int i = 0; i < topicBytes.length; i++) {
+            putBytes(packet, topicBytes[i]);
+            packet.put((byte) qos[i]);
+        }
+    }
+
+    static ByteBuffer pingReq() {
+        return ByteBuffer.wrap(new byte[]{(byte) (PINGREQ << 4), 0});
+    }
+
+    static ByteBuffer disconnect() {
+        return ByteBuffer.wrap(new byte[]{(byte) (DISCONNECT << 4), 0});
+    }
+
+    /**
+     * Gets the length of the packet starting at the position of a buffer, without moving the position.
+     *
+     * @param in The received bytes.
+     * @return The length of the packet including its fixed header, or -1 if the buffer does not hold the fixed
+     * header yet.
+     * @throws IOException if the remaining length is malformed.
+     */
+    static int packetLength(ByteBuffer in) throws IOException {
+        int position = in.position();
+        int remainingLength = 0;
+        int multiplier = 1;
+        for (int i = 1; i <= 4; i++) {
+            if (in.limit() <= position + i) {
+                return -1;
+            }
+            int digit = in.get(position + i);
+            remainingLength += (digit & 0x7F) * multiplier;
+            if ((digit & 0x80) == 0) {
+                return 1 + i + remainingLength;
+            }
+            multiplier <<= 7;
+        }
+        throw new IOException("Malformed remaining length");
+    }
+
+    /**
+     * Gets the length of the fixed header of the packet starting at the position of a buffer, once
+     * {@link #packetLength(ByteBuffer)} found it complete.
+     *
+     * @param in The received bytes.
+     * @return The length of the fixed header.
+     */
+    static int headerLength(ByteBuffer in) {
+        int position = in.position();
+        int length = 2;
+        while ((in.get(position + length - 1) & 0x80) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Reads a length prefixed UTF-8 string.
+     *
+     * @param in The buffer positioned at the string.
+     * @return The string.
+     */
+    static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Allocates a packet and puts its fixed header.
+     *
+     * @param header          The first byte of the fixed header.
+     * @param remainingLength The length of the packet after the fixed header.
+     * @return The packet, positioned after the fixed header.
+     */
+    static ByteBuffer allocate(int header, int remainingLength) {
+        if (remainingLength > MAX_REMAINING_LENGTH) {
+            throw new IllegalArgumentException("Packet of " + remainingLength + " bytes is too large");
+        }
+        ByteBuffer packet = ByteBuffer.allocate(1 + variableIntSize(remainingLength) + remainingLength);
+        packet.put((byte) header);
+        putVariableInt(packet, remainingLength);
+        return packet;
+    }
+
+    /**
+     * Puts a variable byte integer, as the remaining length or the length of MQTT 5 properties are encoded.
+     *
+     * @param packet The packet.
+     * @param value  The value.
+     */
+    static void putVariableInt(ByteBuffer packet, int value) {
+        int rest = value;
+        do {
+            int digit = rest & 0x7F;
+            rest >>>= 7;
+            packet.put((byte) (rest > 0 ? digit | 0x80 : digit));
+        } while (rest > 0);
+    }
+
+    static int variableIntSize(int value) {
+        int size = 1;
+        while (value > 127) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Puts length prefixed bytes, as strings and binary data are encoded.
+     *
+     * @param packet The packet.
+     * @param bytes  The bytes.
+     */
+    static void putBytes(ByteBuffer packet, byte[] bytes) {
+        packet.putShort((short) bytes.length);
+        packet.put(bytes);
+    }
+}
@@ -0,0 +1,863 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.nio;
+
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jmeter.protocol.mqtt.paho.network.ConnectTimings;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An MQTT 3.1.1 client driven by the event loops of the {@link NioEngine} instead of threads of its own, so a
+ * single JMeter node can hold far more connections than with the Paho clients.
+ * <p/>
+ * Publishes, subscribes, QoS 0, 1 and 2 flows, keep alive and reconnects behave as with the Paho clients : without
+ * an in-flight window every publish returns once it is complete, with one publishes only wait for a free slot. A
+ * QoS 0 publish is complete once it is written to the socket, and takes a slot until then.
+ * Messages in flight are kept in memory, and with a persistent session sent again with the DUP flag after a
+ * reconnect. Only tcp:// brokers are supported.
+ * <p/>
+ * The packets which differ between MQTT versions are encoded and decoded by methods a client of another version
+ * overrides, see {@link Mqtt5Client}.
+ */
+public class NioClient extends BaseClient {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final int DEFAULT_PORT = 1883;
+    // Milliseconds to wait for the CONNACK, as the Paho default
+    private static final long CONNECT_TIMEOUT = 30000;
+    // Milliseconds to wait for the disconnect packet to be sent
+    private static final long DISCONNECT_TIMEOUT = 10000;
+    private static final int MAX_MESSAGE_ID = 65535;
+    // Released to the window of a lost connection, more than can ever be waiting for it
+    private static final int WAKE_UP_PERMITS = 1 << 20;
+
+    private final String brokerUrl;
+    private final String clientId;
+    private final boolean cleanSession;
+    private final String userName;
+    private final String password;
+    private final int keepAlive;
+    private final int maxInFlight;
+    private final InetSocketAddress address;
+    private final ConnectTimings timings;
+    private final String description;
+
+    // QoS 1 and 2 publishes awaiting their acknowledgement, by message id in the order they were sent so that they
+    // are sent again in that order. Guarded by messageIdLock.
+    private final Map<Integer, Pending> inFlight = new LinkedHashMap<Integer, Pending>();
+    private final Map<Integer, NioToken> subscribes = new ConcurrentHashMap<Integer, NioToken>();
+    // QoS 2 messages received and awaiting their PUBREL
+    private final Map<Integer, ReceivedMessage> inboundQos2 = new ConcurrentHashMap<Integer, ReceivedMessage>();
+    private final Object messageIdLock = new Object();
+    private int lastMessageId = 0;
+    private volatile Semaphore inFlightWindow;
+    private volatile NioConnection connection;
+    private volatile NioToken connectToken;
+    private volatile boolean connected = false;
+    private volatile int replayed = 0;
+    private final AtomicLong bytesSent = new AtomicLong(0);
+    // Messages held back while the receive buffer is full, and the connection no longer read from meanwhile
+    private final Queue<ReceivedMessage> heldBack = new ConcurrentLinkedQueue<ReceivedMessage>();
+    private volatile NioConnection pausedConnection;
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean(false);
+    private final Runnable resumeTask = new Runnable() {
+        @Override
+        public void run() {
+            resumeScheduled.set(false);
+            deliverHeldBack();
+        }
+    };
+
+    /**
+     * Constructs and connects a client.
+     *
+     * @param brokerUrl    the url of the server to connect to, tcp:// only
+     * @param clientId     the client id to connect with
+     * @param cleanSession clear state at end of connection or not (durable or non-durable subscriptions)
+     * @param userName     the username to connect with
+     * @param password     the password for the user
+     * @param keepAlive    the keep alive interval in seconds
+     * @param maxInFlight  the number of publishes that may be awaiting completion at once. Zero or less waits for
+     *                     every publish to complete before returning.
+     * @param timings      the timings to record the TCP connect into, null for none
+     * @throws MqttException if the broker URL is not supported or the connect fails.
+     */
+    public NioClient(String brokerUrl, String clientId, boolean cleanSession, String userName, String password,
+                     int keepAlive, int maxInFlight, ConnectTimings timings) throws MqttException {
+        this(brokerUrl, clientId, cleanSession, userName, password, keepAlive, maxInFlight, timings, "NIO");
+        open();
+    }
+
+    /**
+     * Constructs a client without connecting it, so that a subclass can connect it with {@link #open()} once it is
+     * initialized.
+     *
+     * @param description The kind of client, for the log.
+     * @throws MqttException if the broker URL is not supported.
+     */
+    NioClient(String brokerUrl, String clientId, boolean cleanSession, String userName, String password,
+              int keepAlive, int maxInFlight, ConnectTimings timings, String description) throws MqttException {
+        this.brokerUrl = brokerUrl;
+        this.clientId = clientId;
+        this.cleanSession = cleanSession;
+        this.userName = userName;
+        this.password = password;
+        this.keepAlive = keepAlive;
+        this.maxInFlight = maxInFlight;
+        this.timings = timings;
+        this.description = description;
+        this.address = resolve(brokerUrl);
+        if (maxInFlight > 0) {
+            inFlightWindow = new Semaphore(maxInFlight);
+        }
+    }
+
+    /**
+     * Connects the client for the first time.
+     *
+     * @throws MqttException if the connect fails.
+     */
+    final void open() throws MqttException {
+        log.info("Connecting to " + brokerUrl + " with client ID '" + clientId + "' and cleanSession is " +
+                 String.valueOf(cleanSession) + " as an " + description + " client");
+        connect();
+        log.info("Connected");
+    }
+
+    private static InetSocketAddress resolve(String brokerUrl) throws MqttException {
+        URI uri;
+        try {
+            uri = new URI(brokerUrl);
+        } catch (URISyntaxException e) {
+            throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, e);
+        }
+        if (!"tcp".equals(uri.getScheme()) || null == uri.getHost()) {
+            throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR,
+                                    new IllegalArgumentException("The NIO clients only connect to tcp:// brokers : " +
+                                                                 brokerUrl));
+        }
+        return new InetSocketAddress(uri.getHost(), uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort());
+    }
+
+    /**
+     * Opens a new connection and waits for the CONNACK. With a persistent session the messages in flight are sent
+     * again.
+     *
+     * @return The number of messages sent again.
+     */
+    private int connect() throws MqttException {
+        NioToken token = new NioToken();
+        connectToken = token;
+        NioConnection newConnection;
+        try {
+            newConnection = new NioConnection(this, NioEngine.getInstance().nextLoop(), address, keepAlive,
+                                              CONNECT_TIMEOUT, timings);
+        } catch (IOException e) {
+            throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, e);
+        }
+        connection = newConnection;
+        newConnection.open();
+        token.waitForCompletion(0);
+        return replayed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int reconnectClient() throws MqttException {
+        return connect();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publish(String topicName, int qos, byte[] payload, boolean isRetained) throws MqttException {
+        publish(new PublishMessage(topicName, qos, isRetained, payload));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publish(PublishMessage message) throws MqttException {
+        NioConnection current = getConnection();
+        Semaphore window = inFlightWindow;
+        if (null != window) {
+            try {
+                window.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MqttException(e);
+            }
+        }
+        if (0 == message.getQos()) {
+            // A QoS 0 publish is complete once it is written. It holds its permit until then, so that the queue of
+            // the connection stays as bounded as the window.
+            NioToken written = new NioToken(window);
+            boolean sent;
+            try {
+                sent = sendPublish(current, message, 0, written);
+            } catch (MqttException e) {
+                written.fail(e);
+                throw e;
+            }
+            if (!sent) {
+                written.fail(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+            }
+            if (!sent || maxInFlight <= 0) {
+                written.waitForCompletion(0);
+            }
+            return;
+        }
+
+        Pending pending = new Pending(message, window);
+        int messageId;
+        try {
+            messageId = addInFlight(pending);
+        } catch (MqttException e) {
+            pending.release();
+            throw e;
+        }
+        boolean sent;
+        try {
+            sent = sendPublish(current, message, messageId, null);
+        } catch (MqttException e) {
+            removeInFlight(messageId);
+            pending.release();
+            throw e;
+        }
+        if (!sent) {
+            // Not accepted, so it is not sent again either
+            removeInFlight(messageId);
+            pending.release();
+            throw new MqttException(MqttException.REASON_CODE_CONNECTION_LOST);
+        }
+        if (maxInFlight <= 0) {
+            pending.token.waitForCompletion(0);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void subscribe(String topicName, int qos) throws MqttException {
+        initReceivedMessages();
+        addSubscription(topicName, qos);
+
+        log.info("Subscribing to topic \"" + topicName + "\" qos " + qos);
+        sendSubscribe(new String[]{topicName}, new int[]{qos});
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void subscribe(String[] topicNames, int[] qos) throws MqttException {
+        initReceivedMessages();
+        for (int i = 0; i < topicNames.length; i++) {
+            addSubscription(topicNames[i], qos[i]);
+        }
+
+        log.debug("Subscribing to " + topicNames.length + " topics");
+        sendSubscribe(topicNames, qos);
+    }
+
+    private void sendSubscribe(String[] topicNames, int[] qos) throws MqttException {
+        NioConnection current = getConnection();
+        NioToken token = new NioToken();
+        int messageId = addSubscribe(token);
+        if (!current.send(subscribePacket(messageId, topicNames, qos))) {
+            subscribes.remove(messageId);
+            throw new MqttException(MqttException.REASON_CODE_CONNECTION_LOST);
+        }
+        token.waitForCompletion(0);
+    }
+
+    private NioConnection getConnection() throws MqttException {
+        NioConnection current = connection;
+        if (!connected || null == current) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+        return current;
+    }
+
+    private int addInFlight(Pending pending) throws MqttException {
+        synchronized (messageIdLock) {
+            int messageId = nextMessageId();
+            inFlight.put(messageId, pending);
+            return messageId;
+        }
+    }
+
+    private Pending removeInFlight(int messageId) {
+        synchronized (messageIdLock) {
+            return inFlight.remove(messageId);
+        }
+    }
+
+    private int addSubscribe(NioToken token) throws MqttException {
+        synchronized (messageIdLock) {
+            int messageId = nextMessageId();
+            subscribes.put(messageId, token);
+            return messageId;
+        }
+    }
+
+    private int nextMessageId() throws MqttException {
+        for (int i = 0; i < MAX_MESSAGE_ID; i++) {
+            lastMessageId = lastMessageId % MAX_MESSAGE_ID + 1;
+            if (!inFlight.containsKey(lastMessageId) && !subscribes.containsKey(lastMessageId)) {
+                return lastMessageId;
+            }
+        }
+        throw new MqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+    }
+
+    /**
+     * Sends the CONNECT once the TCP connection is established. Called on the loop thread.
+     *
+     * @param established The connection.
+     */
+    void connectionEstablished(NioConnection established) {
+        established.send(connectPacket(clientId, cleanSession, keepAlive, userName, password));
+    }
+
+    /**
+     * Encodes the CONNECT packet.
+     */
+    ByteBuffer connectPacket(String clientId, boolean cleanSession, int keepAlive, String userName,
+                             String password) {
+        return MqttCodec.connect(clientId, cleanSession, keepAlive, userName, password);
+    }
+
+    /**
+     * Encodes a publish and queues it on a connection.
+     *
+     * @param target    The connection.
+     * @param message   The message.
+     * @param messageId The message id, ignored for QoS 0.
+     * @param written   The token completed once the publish is written, null for none.
+     * @return false if the connection is closed.
+     * @throws MqttException if the broker does not accept the message.
+     */
+    boolean sendPublish(NioConnection target, PublishMessage message, int messageId, NioToken written)
+            throws MqttException {
+        return target.send(MqttCodec.publish(message, messageId, false), written);
+    }
+
+    /**
+     * Encodes a publish sent again on a new connection.
+     */
+    ByteBuffer resendPacket(PublishMessage message, int messageId) {
+        return MqttCodec.publish(message, messageId, true);
+    }
+
+    /**
+     * Encodes a SUBSCRIBE packet.
+     */
+    ByteBuffer subscribePacket(int messageId, String[] topics, int[] qos) {
+        return MqttCodec.subscribe(messageId, topics, qos);
+    }
+
+    /**
+     * Reads what follows the return code of a successful CONNACK. Called on the loop thread before the client is
+     * connected.
+     *
+     * @param source The connection.
+     * @param body   The CONNACK, positioned after the return code.
+     * @throws IOException if the packet is malformed.
+     */
+    void connectAccepted(NioConnection source, ByteBuffer body) throws IOException {
+    }
+
+    /**
+     * Gets the exception of a connect refused by the broker.
+     *
+     * @param returnCode The return code of the CONNACK.
+     * @return The exception.
+     */
+    MqttException connectRefused(int returnCode) {
+        // The return codes of a CONNACK are the reason codes of the Paho exceptions
+        return new MqttException(returnCode);
+    }
+
+    /**
+     * Reads what follows the message id of a received publish, up to the payload.
+     *
+     * @param topic The topic name of the publish.
+     * @param body  The publish, positioned after the message id.
+     * @return The topic of the message.
+     * @throws IOException if the packet is malformed.
+     */
+    String receivedTopic(String topic, ByteBuffer body) throws IOException {
+        return topic;
+    }
+
+    /**
+     * Reads what follows the message id of a SUBACK, up to the return codes.
+     *
+     * @param body The SUBACK, positioned after the message id.
+     * @throws IOException if the packet is malformed.
+     */
+    void subscribeAcknowledged(ByteBuffer body) throws IOException {
+    }
+
+    /**
+     * Gets the number of QoS 1 and 2 publishes the broker takes in flight at once.
+     *
+     * @return The number, 0 for any number.
+     */
+    int sendQuota() {
+        return 0;
+    }
+
+    /**
+     * Counts the bytes written to the network. Called on the loop thread.
+     *
+     * @param count The number of bytes written.
+     */
+    void bytesWritten(long count) {
+        bytesSent.addAndGet(count);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long takeBytesSent() {
+        return bytesSent.getAndSet(0);
+    }
+
+    /**
+     * Handles a packet from the broker. Called on the loop thread.
+     *
+     * @param source The connection the packet was received on.
+     * @param header The first byte of the fixed header.
+     * @param body   The rest of the packet, only valid during the call.
+     * @throws IOException if the packet is not expected from a broker.
+     */
+    void packetReceived(NioConnection source, int header, ByteBuffer body) throws IOException {
+        int type = header >>> 4;
+        switch (type) {
+            case MqttCodec.CONNACK:
+                connectAcknowledged(source, body);
+                break;
+            case MqttCodec.PUBLISH:
+                publishReceived(source, header, body);
+                break;
+            case MqttCodec.PUBACK:
+            case MqttCodec.PUBCOMP:
+                Pending completed = removeInFlight(body.getShort() & 0xFFFF);
+                if (null != completed) {
+                    completed.complete(reasonCode(body));
+                }
+                break;
+            case MqttCodec.PUBREC:
+                int received = body.getShort() & 0xFFFF;
+                int reasonCode = reasonCode(body);
+                if (reasonCode >= MqttCodec.SUBACK_FAILURE) {
+                    // Refused by an MQTT 5 broker, which ends the flow
+                    Pending refused = removeInFlight(received);
+                    if (null != refused) {
+                        refused.complete(reasonCode);
+                    }
+                    break;
+                }
+                Pending pending;
+                synchronized (messageIdLock) {
+                    pending = inFlight.get(received);
+                }
+                if (null != pending) {
+                    pending.released = true;
+                }
+                source.send(MqttCodec.ack(MqttCodec.PUBREL, received));
+                break;
+            case MqttCodec.PUBREL:
+                int released = body.getShort() & 0xFFFF;
+                ReceivedMessage message = inboundQos2.remove(released);
+                if (null != message) {
+                    deliver(source, message);
+                }
+                source.send(MqttCodec.ack(MqttCodec.PUBCOMP, released));
+                break;
+            case MqttCodec.SUBACK:
+                NioToken token = subscribes.remove(body.getShort() & 0xFFFF);
+                subscribeAcknowledged(body);
+                if (null != token) {
+                    // A return code per topic filter
+                    boolean refused = false;
+                    while (body.hasRemaining()) {
+                        refused |= (body.get() & 0xFF) >= MqttCodec.SUBACK_FAILURE;
+                    }
+                    if (refused) {
+                        token.fail(new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED));
+                    } else {
+                        token.complete();
+                    }
+                }
+                break;
+            case MqttCodec.PINGRESP:
+                source.pingResponseReceived();
+                break;
+            case MqttCodec.DISCONNECT:
+                // Only sent by MQTT 5 brokers
+                source.close(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, new IOException(
+                        "Disconnected by the broker with reason code 0x" + Integer.toHexString(reasonCode(body)))));
+                break;
+            default:
+                throw new IOException("Unexpected packet type " + type);
+        }
+    }
+
+    /**
+     * Reads the reason code of an acknowledgement, which MQTT 5 brokers omit on success and MQTT 3.1.1 brokers never
+     * send.
+     */
+    private static int reasonCode(ByteBuffer body) {
+        return body.hasRemaining() ? body.get() & 0xFF : 0;
+    }
+
+    private void connectAcknowledged(NioConnection source, ByteBuffer body) throws IOException {
+        body.get(); // Session present flag
+        int returnCode = body.get() & 0xFF;
+        if (0 != returnCode) {
+            source.close(connectRefused(returnCode));
+            return;
+        }
+        connectAccepted(source, body);
+        if (cleanSession) {
+            inboundQos2.clear();
+            inFlightWindow = newWindow(0);
+            replayed = 0;
+        } else {
+            // Sent again in the order they were first sent, as MQTT requires
+            List<Map.Entry<Integer, Pending>> resent;
+            synchronized (messageIdLock) {
+                resent = new ArrayList<Map.Entry<Integer, Pending>>(inFlight.entrySet());
+            }
+            // The messages sent again take their place in the window of the new connection
+            Semaphore window = newWindow(resent.size());
+            inFlightWindow = window;
+            // A publish acknowledged by PUBREC only awaits its PUBCOMP
+            for (Map.Entry<Integer, Pending> entry : resent) {
+                Pending pending = entry.getValue();
+                pending.window = window;
+                source.send(pending.released ? MqttCodec.ack(MqttCodec.PUBREL, entry.getKey()) :
+                            resendPacket(pending.message, entry.getKey()));
+            }
+            replayed = resent.size();
+        }
+        source.setConnected();
+        connected = true;
+        connectToken.complete();
+    }
+
+    /**
+     * Creates the window of the publishes in flight on a connection.
+     *
+     * @param inUse The number of publishes already in flight.
+     * @return The window, null if publishes are not limited.
+     */
+    private Semaphore newWindow(int inUse) {
+        int size = maxInFlight;
+        int quota = sendQuota();
+        if (quota > 0 && (size <= 0 || quota < size)) {
+            size = quota;
+        }
+        return size > 0 ? new Semaphore(size - inUse) : null;
+    }
+
+    private void publishReceived(NioConnection source, int header, ByteBuffer body) throws IOException {
+        int qos = (header >>> 1) & 0x03;
+        String topic = MqttCodec.readString(body);
+        int messageId = qos > 0 ? body.getShort() & 0xFFFF : 0;
+        topic = receivedTopic(topic, body);
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        ReceivedMessage message = new ReceivedMessage(topic, payload, qos, (header & 0x01) != 0, (header & 0x08) != 0);
+
+        switch (qos) {
+            case 0:
+                deliver(source, message);
+                break;
+            case 1:
+                deliver(source, message);
+                source.send(MqttCodec.ack(MqttCodec.PUBACK, messageId));
+                break;
+            default:
+                // Delivered once on PUBREL, however often the broker sends it again before
+                if (!inboundQos2.containsKey(messageId)) {
+                    inboundQos2.put(messageId, message);
+                }
+                source.send(MqttCodec.ack(MqttCodec.PUBREC, messageId));
+                break;
+        }
+    }
+
+    private void deliver(NioConnection source, ReceivedMessage message) {
+        message.arrivalTime = System.nanoTime();
+        if (!heldBack.isEmpty() || isReceiveBufferBlocking()) {
+            // Blocking would stall every connection of the loop, the connection is no longer read from instead
+            heldBack.add(message);
+            countHeldBackMessage();
+            if (pausedConnection != source) {
+                pausedConnection = source;
+                source.setReading(false);
+            }
+            return;
+        }
+        deliverNow(message);
+    }
+
+    private void deliverNow(ReceivedMessage message) {
+        try {
+            messageReceived(message.topic, message, message.arrivalTime);
+        } catch (Exception e) {
+            log.warn("Unable to handle message : " + e, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void receiveBufferDrained() {
+        NioConnection current = connection;
+        if (!heldBack.isEmpty() && null != current && resumeScheduled.compareAndSet(false, true) &&
+            !current.execute(resumeTask)) {
+            resumeScheduled.set(false);
+        }
+    }
+
+    /**
+     * Delivers the messages held back while there is room for them, then reads from the broker again. Called on the
+     * loop thread.
+     */
+    private void deliverHeldBack() {
+        ReceivedMessage message;
+        while (!isReceiveBufferBlocking() && null != (message = heldBack.poll())) {
+            deliverNow(message);
+        }
+        NioConnection paused = pausedConnection;
+        if (heldBack.isEmpty() && null != paused) {
+            pausedConnection = null;
+            paused.setReading(true);
+        }
+    }
+
+    /**
+     * Fails what waits on a closed connection, and reconnects later if it was lost. Called on the loop thread or
+     * the thread closing the connection.
+     *
+     * @param closed The connection.
+     * @param cause  The reason the connection was closed.
+     */
+    void connectionClosed(NioConnection closed, Throwable cause) {
+        if (closed != connection) {
+            return;
+        }
+        boolean wasConnected = connected;
+        connected = false;
+
+        NioToken token = connectToken;
+        if (null != token && !token.isDone()) {
+            // The connect failed, reported to the thread connecting
+            token.fail(cause instanceof MqttException ? (MqttException) cause :
+                       new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, cause));
+            return;
+        }
+
+        MqttException reason = cause instanceof MqttException ? (MqttException) cause :
+                new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, cause);
+
+        for (NioToken subscribe : subscribes.values()) {
+            subscribe.fail(reason);
+        }
+        subscribes.clear();
+        // With a persistent session the publishes stay in flight to be sent again after a reconnect
+        List<Pending> pendings;
+        synchronized (messageIdLock) {
+            pendings = new ArrayList<Pending>(inFlight.values());
+            if (cleanSession) {
+                inFlight.clear();
+            }
+        }
+        for (Pending pending : pendings) {
+            pending.token.fail(reason);
+        }
+        // Publishes in flight on the lost connection may never complete. The publishers waiting for the window fail
+        // on the lost connection, the next connection starts with a window of its own.
+        Semaphore window = inFlightWindow;
+        if (null != window) {
+            window.release(WAKE_UP_PERMITS);
+        }
+        if (wasConnected && !isClosed()) {
+            connectionLost(reason);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connectionLost(Throwable cause) {
+        log.info("Connection to " + brokerUrl + " lost!" + cause);
+        reconnectLater();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void disconnect() throws MqttException {
+        setClosed();
+        NioConnection current = connection;
+        if (null == current || current.isClosed()) {
+            return;
+        }
+        if (!connected) {
+            current.close(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+            return;
+        }
+        current.send(MqttCodec.disconnect());
+        try {
+            current.closeAfterFlush().waitForCompletion(DISCONNECT_TIMEOUT);
+        } finally {
+            current.close(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        }
+        log.info("Disconnected");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            disconnect();
+        } catch (MqttException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void forceClose() {
+        setClosed();
+        NioConnection current = connection;
+        if (null != current) {
+            current.close(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        }
+    }
+
+    /**
+     * A QoS 1 or 2 publish awaiting its acknowledgement.
+     */
+    private static final class Pending {
+        private final PublishMessage message;
+        // Replaced by the window of the new connection when the message is sent again
+        private volatile Semaphore window;
+        private final NioToken token = new NioToken();
+        // Set once the PUBREC of a QoS 2 publish is received
+        private volatile boolean released = false;
+
+        private Pending(PublishMessage message, Semaphore window) {
+            this.message = message;
+            this.window = window;
+        }
+
+        /**
+         * Completes the publish, or fails it if the broker refused it.
+         *
+         * @param reasonCode The reason code of the acknowledgement.
+         */
+        private void complete(int reasonCode) {
+            if (reasonCode >= MqttCodec.SUBACK_FAILURE) {
+                token.fail(new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, new IOException(
+                        "Publish refused by the broker with reason code 0x" + Integer.toHexString(reasonCode))));
+            } else {
+                token.complete();
+            }
+            release();
+        }
+
+        private void release() {
+            Semaphore current = window;
+            if (null != current) {
+                current.release();
+            }
+        }
+    }
+
+    /**
+     * A received message, with the duplicate flag only Paho may otherwise set.
+     */
+    private static final class ReceivedMessage extends MqttMessage {
+        private final String topic;
+        // When the message was handed to the client, before it is held back
+        private long arrivalTime;
+
+        private ReceivedMessage(String topic, byte[] payload, int qos, boolean retained, boolean duplicate) {
+            super(payload);
+            this.topic = topic;
+            setQos(qos);
+            setRetained(retained);
+            setDuplicate(duplicate);
+        }
+    }
+}
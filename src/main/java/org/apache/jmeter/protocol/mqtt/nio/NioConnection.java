@@ -0,0 +1,461 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.nio;
+
+import org.apache.jmeter.protocol.mqtt.paho.network.ConnectTimings;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single TCP connection of a {@link NioClient}, driven by one event loop. Any thread may send packets, they are
+ * queued and written by the loop. Received bytes are split into packets which are handed to the client on the loop
+ * thread. A connection is never reused, the client opens a new one to reconnect.
+ * <p/>
+ * A packet may be sent with a token, which the loop completes once the packet is written and which fails if the
+ * connection closes first. The token follows its packet in the queue, so the queue holds packets and tokens.
+ */
+final class NioConnection {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // Buffers handed to a single gathering write
+    private static final int MAX_WRITE_BUFFERS = 64;
+    // Reads of a readable connection before the loop moves on to the others
+    private static final int MAX_READS = 16;
+
+    private final NioClient client;
+    private final NioEventLoop loop;
+    private final InetSocketAddress address;
+    // Replaced by the keep alive of an MQTT 5 broker, only used by the loop thread
+    private long keepAlive;
+    private final long connectTimeout;
+    private final ConnectTimings timings;
+    private final SocketChannel channel;
+    // Packets and the tokens of the packets ahead of them
+    private final Queue<Object> outbound = new ConcurrentLinkedQueue<Object>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final NioToken closeToken = new NioToken();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                close(e);
+            } catch (CancelledKeyException e) {
+                // Closed by another thread
+            }
+        }
+    };
+    private volatile boolean closeAfterFlush = false;
+
+    // Only used by the loop thread
+    private final ArrayDeque<Object> writing = new ArrayDeque<Object>();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BUFFERS];
+    private final Runnable failWritesTask = new Runnable() {
+        @Override
+        public void run() {
+            failWrites(writing);
+        }
+    };
+    private SelectionKey key;
+    // Bytes of a packet not yet received completely, ready for more to be put
+    private ByteBuffer partial;
+    private long connectStart = System.nanoTime();
+    private boolean connected = false;
+    private boolean reading = true;
+    private long lastWrite;
+    private long pingSent = 0;
+
+    /**
+     * @param client         The client the packets are handed to.
+     * @param loop           The loop driving the connection.
+     * @param address        The address of the broker.
+     * @param keepAlive      The keep alive interval in seconds, 0 for none.
+     * @param connectTimeout The time to wait for the CONNACK in milliseconds.
+     * @param timings        The timings to record the TCP connect into, null for none.
+     * @throws IOException if the channel can not be opened.
+     */
+    NioConnection(NioClient client, NioEventLoop loop, InetSocketAddress address, int keepAlive,
+                  long connectTimeout, ConnectTimings timings) throws IOException {
+        this.client = client;
+        this.loop = loop;
+        this.address = address;
+        this.keepAlive = TimeUnit.SECONDS.toNanos(keepAlive);
+        this.connectTimeout = TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+        this.timings = timings;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    /**
+     * Starts connecting the channel on the loop thread. The client is told once the TCP connection is established.
+     *
+     * @throws MqttException if the loop is stopped.
+     */
+    void open() throws MqttException {
+        boolean accepted = loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connectStart = System.nanoTime();
+                    loop.add(NioConnection.this);
+                    key = channel.register(loop.getSelector(), 0, NioConnection.this);
+                    if (channel.connect(address)) {
+                        connectionEstablished();
+                    } else {
+                        key.interestOps(SelectionKey.OP_CONNECT);
+                    }
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+        });
+        if (!accepted) {
+            MqttException e = new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+            close(e);
+            throw e;
+        }
+    }
+
+    void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            connectionEstablished();
+        }
+    }
+
+    private void connectionEstablished() {
+        if (null != timings) {
+            timings.setTcpConnectTime(System.nanoTime() - connectStart);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        lastWrite = System.nanoTime();
+        client.connectionEstablished(this);
+    }
+
+    /**
+     * Marks the connection as accepted by the broker, which starts the keep alive.
+     */
+    void setConnected() {
+        connected = true;
+    }
+
+    /**
+     * Queues a packet to be written by the loop.
+     *
+     * @param packet The packet.
+     * @return false if the connection is closed and the packet is dropped.
+     */
+    boolean send(ByteBuffer packet) {
+        if (closed.get()) {
+            return false;
+        }
+        outbound.offer(packet);
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Queues a packet to be written by the loop, and completes a token once it is written.
+     *
+     * @param packet  The packet.
+     * @param written The token completed once the packet is written, failed if the connection closes first. Null
+     *                for none.
+     * @return false if the connection is closed and the packet is dropped, the token is then left as it is.
+     */
+    boolean send(ByteBuffer packet, NioToken written) {
+        if (null == written) {
+            return send(packet);
+        }
+        if (closed.get()) {
+            return false;
+        }
+        outbound.offer(packet);
+        outbound.offer(written);
+        if (closed.get()) {
+            // Closed meanwhile, the tokens may have been queued after they were failed
+            failWrites(outbound);
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true) && !loop.execute(flushTask)) {
+            close(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        }
+    }
+
+    /**
+     * Writes the queued packets, as far as the socket takes them. The rest is written once the socket is writable.
+     *
+     * @throws IOException if the write fails.
+     */
+    void flush() throws IOException {
+        flushScheduled.set(false);
+        if (closed.get() || null == key) {
+            return;
+        }
+        Object queued;
+        while (null != (queued = outbound.poll())) {
+            writing.add(queued);
+        }
+
+        while (!writing.isEmpty()) {
+            int count = 0;
+            for (Object buffer : writing) {
+                if (buffer instanceof ByteBuffer) {
+                    writeBatch[count++] = (ByteBuffer) buffer;
+                    if (count == MAX_WRITE_BUFFERS) {
+                        break;
+                    }
+                }
+            }
+            long written = count > 0 ? channel.write(writeBatch, 0, count) : 0;
+            for (int i = 0; i < count; i++) {
+                writeBatch[i] = null;
+            }
+            if (written > 0) {
+                lastWrite = System.nanoTime();
+                client.bytesWritten(written);
+            }
+            while (!writing.isEmpty() && isWritten(writing.peek())) {
+                Object head = writing.poll();
+                if (head instanceof NioToken) {
+                    ((NioToken) head).complete();
+                }
+            }
+            if (!writing.isEmpty() && 0 == written) {
+                // The socket is full, continue once it is writable
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        if (closeAfterFlush && outbound.isEmpty()) {
+            close(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        }
+    }
+
+    private static boolean isWritten(Object queued) {
+        return queued instanceof NioToken || !((ByteBuffer) queued).hasRemaining();
+    }
+
+    /**
+     * Fails the tokens of packets that will never be written.
+     *
+     * @param queue The packets and tokens, emptied.
+     */
+    private static void failWrites(Queue<Object> queue) {
+        MqttException reason = null;
+        Object queued;
+        while (null != (queued = queue.poll())) {
+            if (queued instanceof NioToken) {
+                if (null == reason) {
+                    reason = new MqttException(MqttException.REASON_CODE_CONNECTION_LOST);
+                }
+                ((NioToken) queued).fail(reason);
+            }
+        }
+    }
+
+    /**
+     * Reads what the socket has received and hands the complete packets to the client.
+     *
+     * @throws IOException if the read fails, the broker closed the connection or a packet is malformed.
+     */
+    void read() throws IOException {
+        ByteBuffer buffer = loop.getReadBuffer();
+        for (int reads = 0; reads < MAX_READS && reading && !closed.get(); reads++) {
+            buffer.clear();
+            int count = channel.read(buffer);
+            if (count < 0) {
+                throw new EOFException("Connection closed by broker");
+            }
+            if (0 == count) {
+                return;
+            }
+            buffer.flip();
+            process(buffer);
+            if (count < buffer.capacity()) {
+                return;
+            }
+        }
+    }
+
+    private void process(ByteBuffer received) throws IOException {
+        ByteBuffer in = received;
+        if (null != partial) {
+            if (partial.remaining() < received.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(
+                        Math.max(partial.capacity() * 2, partial.position() + received.remaining()));
+                partial.flip();
+                grown.put(partial);
+                partial = grown;
+            }
+            partial.put(received);
+            partial.flip();
+            in = partial;
+        }
+
+        while (in.remaining() >= 2 && !closed.get()) {
+            int length = MqttCodec.packetLength(in);
+            if (length < 0 || in.remaining() < length) {
+                break;
+            }
+            int start = in.position();
+            int header = in.get(start) & 0xFF;
+            ByteBuffer body = in.duplicate();
+            body.position(start + MqttCodec.headerLength(in));
+            body.limit(start + length);
+            in.position(start + length);
+            client.packetReceived(this, header, body);
+        }
+
+        // Keep what is left of a packet until the rest is received
+        if (!in.hasRemaining()) {
+            partial = null;
+        } else if (in == partial) {
+            partial.compact();
+        } else {
+            int length = MqttCodec.packetLength(in);
+            partial = ByteBuffer.allocate(Math.max(length, in.remaining()));
+            partial.put(in);
+        }
+    }
+
+    /**
+     * Fails a connect which takes too long, and keeps the connection alive once connected.
+     *
+     * @param now The current time in nanoseconds.
+     */
+    void tick(long now) {
+        if (!connected) {
+            if (now - connectStart >= connectTimeout) {
+                close(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+            }
+            return;
+        }
+        if (0 == keepAlive) {
+            return;
+        }
+        if (0 != pingSent) {
+            if (now - pingSent >= keepAlive) {
+                log.info("No response to keep alive from " + address);
+                close(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+            }
+        } else if (now - lastWrite >= keepAlive) {
+            pingSent = now;
+            send(MqttCodec.pingReq());
+        }
+    }
+
+    /**
+     * Sets the keep alive interval the broker asked for. Called on the loop thread.
+     *
+     * @param keepAlive The keep alive interval in seconds, 0 for none.
+     */
+    void setKeepAlive(int keepAlive) {
+        this.keepAlive = TimeUnit.SECONDS.toNanos(keepAlive);
+    }
+
+    /**
+     * Stops or starts reading from the broker, which lets TCP hold back what the broker sends. Packets already read
+     * are still handed to the client. Called on the loop thread.
+     *
+     * @param reading false to stop reading.
+     */
+    void setReading(boolean reading) {
+        this.reading = reading;
+        if (closed.get() || null == key || !key.isValid()) {
+            return;
+        }
+        key.interestOps(reading ? key.interestOps() | SelectionKey.OP_READ :
+                        key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Runs a task on the loop thread of the connection.
+     *
+     * @param task The task.
+     * @return false if the loop is stopped.
+     */
+    boolean execute(Runnable task) {
+        return loop.execute(task);
+    }
+
+    void pingResponseReceived() {
+        pingSent = 0;
+    }
+
+    /**
+     * Closes the connection once the packets queued so far are written.
+     *
+     * @return The token completed once the connection is closed.
+     */
+    NioToken closeAfterFlush() {
+        closeAfterFlush = true;
+        scheduleFlush();
+        return closeToken;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Closes the connection and tells the client, unless it is already closed. May be called from any thread.
+     *
+     * @param cause The reason the connection is closed.
+     */
+    void close(Throwable cause) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Closing channel : " + e.getMessage());
+        }
+        loop.remove(this);
+        failWrites(outbound);
+        // What the loop took from the queue is only touched by the loop. Once stopped the loop will not touch it.
+        if (loop.inLoop() || !loop.execute(failWritesTask)) {
+            failWrites(writing);
+        }
+        // The client is told first, so that it is no longer connected once a disconnect returns
+        client.connectionClosed(this, cause);
+        closeToken.complete();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.nio;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The event loops of all NIO clients of the JVM. The loops are started with the first connect of a test and the
+ * connections are spread over them in turn, so a few threads drive any number of connections.
+ * <p/>
+ * The number of loops is set by the JMeter property mqtt.nio.threads, default the number of processors.
+ */
+public class NioEngine {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String THREADS_PROPERTY = "mqtt.nio.threads";
+    // Milliseconds to wait for each loop to close its connections
+    private static final long STOP_TIMEOUT = 5000;
+
+    private static final NioEngine instance = new NioEngine();
+
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+    private volatile NioEventLoop[] loops;
+
+    private NioEngine() {
+    }
+
+    public static NioEngine getInstance() {
+        return instance;
+    }
+
+    /**
+     * Gets the loop to drive a new connection, starting the loops if needed.
+     *
+     * @return The loop.
+     * @throws MqttException if a selector can not be opened.
+     */
+    NioEventLoop nextLoop() throws MqttException {
+        NioEventLoop[] current = loops;
+        if (null == current) {
+            current = startLoops();
+        }
+        return current[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+    }
+
+    private synchronized NioEventLoop[] startLoops() throws MqttException {
+        if (null != loops) {
+            return loops;
+        }
+        int threads = Math.max(JMeterUtils.getPropDefault(THREADS_PROPERTY,
+                                                          Runtime.getRuntime().availableProcessors()), 1);
+        NioEventLoop[] started = new NioEventLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                started[i] = new NioEventLoop("MQTT NIO-" + (i + 1));
+            }
+        } catch (IOException e) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+        }
+        for (NioEventLoop loop : started) {
+            loop.start();
+        }
+        log.info("Started " + threads + " MQTT NIO event loops");
+        loops = started;
+        return started;
+    }
+
+    /**
+     * Stops the loops, closing the connections still open, unless the loops are not started.
+     */
+    public synchronized void stop() {
+        NioEventLoop[] current = loops;
+        if (null == current) {
+            return;
+        }
+        loops = null;
+        int connections = 0;
+        for (NioEventLoop loop : current) {
+            connections += loop.getConnectionCount();
+            loop.stop(STOP_TIMEOUT);
+        }
+        log.info("Stopped " + current.length + " MQTT NIO event loops, closing " + connections + " connections");
+    }
+}
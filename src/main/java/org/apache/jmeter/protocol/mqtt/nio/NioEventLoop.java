@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.nio;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A thread driving the sockets of many connections through a single selector. Other threads hand work to the loop
+ * as tasks. Once a second the loop checks the connect timeouts and keep alives of its connections.
+ */
+final class NioEventLoop implements Runnable {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean(false);
+    private final Set<NioConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<NioConnection, Boolean>());
+    // Shared by all connections of the loop, partial packets are copied out of it
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+    private long lastTick = System.nanoTime();
+
+    NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     *
+     * @param task The task.
+     * @return false if the loop is stopped and the task will not run.
+     */
+    boolean execute(Runnable task) {
+        if (!running) {
+            return false;
+        }
+        tasks.offer(task);
+        if (!inLoop() && wakeUpPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    void add(NioConnection connection) {
+        connections.add(connection);
+    }
+
+    void remove(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Stops the loop, closing the connections it still drives.
+     *
+     * @param timeout The maximum time to wait for the loop thread to end in milliseconds.
+     */
+    void stop(long timeout) {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(TICK_INTERVAL));
+                } else {
+                    selector.selectNow();
+                }
+                wakeUpPending.set(false);
+                processSelectedKeys();
+                runTasks();
+
+                long now = System.nanoTime();
+                if (now - lastTick >= TICK_INTERVAL) {
+                    lastTick = now;
+                    for (NioConnection connection : connections) {
+                        connection.tick(now);
+                    }
+                }
+            } catch (Throwable t) {
+                log.warn("Unexpected error in MQTT NIO event loop : " + t, t);
+            }
+        }
+
+        MqttException closed = new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+        for (NioConnection connection : new ArrayList<NioConnection>(connections)) {
+            connection.close(closed);
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Closing selector : " + e.getMessage());
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    connection.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (CancelledKeyException e) {
+                // Closed by another thread
+            } catch (IOException e) {
+                connection.close(e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while (null != (task = tasks.poll())) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warn("Unexpected error in MQTT NIO task : " + e, e);
+            }
+        }
+    }
+}
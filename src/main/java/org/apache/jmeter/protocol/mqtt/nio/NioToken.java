@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.nio;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The completion of an operation of the NIO client, completed or failed by the event loop and waited for by the
+ * thread that started it. The first outcome wins, later ones are ignored. Waiting does not hold a monitor, so it does
+ * not pin the carrier of a virtual thread.
+ */
+final class NioToken {
+    private final CountDownLatch done = new CountDownLatch(1);
+    // Released on the first outcome
+    private final Semaphore permit;
+    private volatile MqttException exception;
+
+    NioToken() {
+        this(null);
+    }
+
+    /**
+     * @param permit The window to release a permit to once the operation completes or fails, null for none.
+     */
+    NioToken(Semaphore permit) {
+        this.permit = permit;
+    }
+
+    synchronized void complete() {
+        if (!isDone()) {
+            done.countDown();
+            releasePermit();
+        }
+    }
+
+    synchronized void fail(MqttException exception) {
+        if (!isDone()) {
+            this.exception = exception;
+            done.countDown();
+            releasePermit();
+        }
+    }
+
+    private void releasePermit() {
+        if (null != permit) {
+            permit.release();
+        }
+    }
+
+    boolean isDone() {
+        return 0 == done.getCount();
+    }
+
+    /**
+     * Waits for the operation to complete.
+     *
+     * @param timeout The maximum time to wait in milliseconds, 0 or less to wait until it completes.
+     * @throws MqttException if the operation failed, did not complete in time or the thread was interrupted.
+     */
+    void waitForCompletion(long timeout) throws MqttException {
+        try {
+            if (timeout <= 0) {
+                done.await();
+            } else if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MqttException(e);
+        }
+        MqttException failure = exception;
+        if (null != failure) {
+            throw failure;
+        }
+    }
+}
@@ -16,20 +16,21 @@
 
 package org.apache.jmeter.protocol.mqtt.paho.clients;
 
-import org.apache.jmeter.protocol.mqtt.data.objects.Message;
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
 import org.apache.jorphan.logging.LoggingManager;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
-import java.io.File;
+import javax.net.SocketFactory;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A sample application that demonstrates how to use the Paho MQTT v3.1 Client API in
@@ -56,8 +57,27 @@ import java.util.concurrent.atomic.AtomicLong;
 public class AsyncClient extends BaseClient {
 
     private static final org.apache.log.Logger log = LoggingManager.getLoggerForClass();
+    // Milliseconds to wait for the disconnect packet to be sent when closing forcibly
+    private static final long FORCE_DISCONNECT_TIMEOUT = 1;
+
+    /**
+     * Paho 1.0.2 hard codes the number of messages a connection may have in flight : QoS 1 and 2 publishes until
+     * they are acknowledged, QoS 0 publishes while they are written.
+     */
+    private static final int PAHO_MAX_INFLIGHT = 10;
+    // Whether a larger max in-flight has been warned about, once per JVM rather than for each of many clients
+    private static final AtomicBoolean inFlightCapWarned = new AtomicBoolean(false);
+    // Milliseconds a publish turned away by Paho waits at most for the next completion before it is tried again.
+    // Completions normally end the wait, the bound only covers those lost with a connection.
+    private static final long COMPLETION_WAIT = 100;
+    // Granted QoS of a topic filter refused by the broker
+    private static final int SUBSCRIBE_FAILURE = 0x80;
+
     private MqttAsyncClient client;
     private String brokerUrl;
+    private MqttConnectOptions conOpt;
+    private int maxInFlight;
+    private volatile InFlightWindow inFlightWindow;
 
     /**
      * Constructs an instance of the sample client wrapper
@@ -67,20 +87,30 @@ public class AsyncClient extends BaseClient {
      * @param cleanSession clear state at end of connection or not (durable or non-durable subscriptions)
      * @param userName     the username to connect with
      * @param password     the password for the user
+     * @param keepAlive    the keep alive interval in seconds
+     * @param maxInFlight  the number of publishes that may be awaiting completion at once, at most the 10 Paho
+     *                     accepts. Zero or less waits for every publish to complete before returning.
+     * @param persistence  the store of in-flight messages
+     * @param socketFactory the factory of the socket to connect with, null for the default of the broker URL
      * @throws MqttException
      */
-    public AsyncClient(String brokerUrl, String clientId, boolean cleanSession,
-                       String userName, String password, int keepAlive) throws MqttException {
+    public AsyncClient(String brokerUrl, String clientId, boolean cleanSession, String userName, String password,
+                       int keepAlive, int maxInFlight, MqttClientPersistence persistence,
+                       SocketFactory socketFactory) throws MqttException {
         this.brokerUrl = brokerUrl;
-
-        String testPlanFileDir = System.getProperty("java.io.tmpdir") + File.separator + "mqtt" + File.separator +
-                                                            clientId + File.separator + Thread.currentThread().getId();
-        MqttDefaultFilePersistence dataStore = new MqttDefaultFilePersistence(testPlanFileDir);
+        this.maxInFlight = maxInFlight;
+        if (maxInFlight > 0) {
+            inFlightWindow = new InFlightWindow(maxInFlight);
+        }
+        if (maxInFlight > PAHO_MAX_INFLIGHT && inFlightCapWarned.compareAndSet(false, true)) {
+            log.warn("Max in-flight " + maxInFlight + " is capped at " + PAHO_MAX_INFLIGHT + " by the async " +
+                     "client, use the NIO client for larger windows");
+        }
 
         try {
             // Construct the connection options object that contains connection parameters
             // such as cleanSession and LWT
-            MqttConnectOptions conOpt = new MqttConnectOptions();
+            conOpt = new MqttConnectOptions();
             conOpt.setCleanSession(cleanSession);
             if (password != null && !password.isEmpty()) {
                 conOpt.setPassword(password.toCharArray());
@@ -91,9 +121,12 @@ public class AsyncClient extends BaseClient {
 
             // Setting keep alive time
             conOpt.setKeepAliveInterval(keepAlive);
+            if (null != socketFactory) {
+                conOpt.setSocketFactory(socketFactory);
+            }
 
             // Construct a non-blocking MQTT client instance
-            client = new MqttAsyncClient(this.brokerUrl, clientId, dataStore);
+            client = new MqttAsyncClient(this.brokerUrl, clientId, persistence);
 
             // Set this wrapper as the callback handler
             client.setCallback(this);
@@ -108,7 +141,9 @@ public class AsyncClient extends BaseClient {
             log.info("Connected");
 
         } catch (MqttException e) {
+            // Thrown like the blocking client does, so that a failed connect is not taken for a connected client
             log.info("Unable to set up client: " + e.toString());
+            throw e;
         }
     }
 
@@ -117,18 +152,68 @@ public class AsyncClient extends BaseClient {
      */
     @Override
     public void publish(String topicName, int qos, byte[] payload, boolean isRetained) throws MqttException {
-        // Construct the message to send
-        MqttMessage message = new MqttMessage(payload);
-        message.setRetained(isRetained);
-        message.setQos(qos);
-
-        // Send the message to the server, control is returned as soon
-        // as the MQTT client has accepted to deliver the message.
-        // Use the delivery token to wait until the message has been
-        // delivered
-        IMqttDeliveryToken pubToken = client.publish(topicName, message, null, null);
-        pubToken.waitForCompletion();
-        log.info("Published");
+        publish(new PublishMessage(topicName, qos, isRetained, payload));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publish(PublishMessage publishMessage) throws MqttException {
+        String topicName = publishMessage.getTopicName();
+        int qos = publishMessage.getQos();
+        MqttMessage message = publishMessage.getMqttMessage();
+
+        InFlightWindow window = inFlightWindow;
+        if (null == window) {
+            // Send the message to the server, control is returned as soon
+            // as the MQTT client has accepted to deliver the message.
+            // Use the delivery token to wait until the message has been
+            // delivered
+            IMqttDeliveryToken pubToken = client.publish(topicName, message, null, null);
+            pubToken.waitForCompletion();
+            if (log.isDebugEnabled()) {
+                log.debug("Published");
+            }
+            return;
+        }
+
+        // Pipelined mode : only block when the window is full. The permits travel with the token as its user
+        // context so that deliveryComplete releases them to the window they were acquired from.
+        window.acquire();
+        try {
+            window.clearCompletions();
+            while (true) {
+                try {
+                    client.publish(topicName, message, window, null);
+                    return;
+                } catch (MqttException e) {
+                    if (MqttException.REASON_CODE_MAX_INFLIGHT != e.getReasonCode()) {
+                        throw e;
+                    }
+                    // Paho notifies the completion of a publish before it decrements its own in-flight count, so
+                    // a released permit may run ahead of it. Paho is full, so another completion is on its way and
+                    // by then Paho has caught up.
+                    window.awaitCompletion();
+                }
+            }
+        } catch (MqttException e) {
+            window.release();
+            throw e;
+        } catch (RuntimeException e) {
+            window.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of publishes which have been handed to the client but are not yet complete.
+     *
+     * @return The number of publishes in flight.
+     */
+    public int getInFlightCount() {
+        InFlightWindow window = inFlightWindow;
+        return null == window ? 0 : window.getInFlightCount();
     }
 
     /**
@@ -136,8 +221,8 @@ public class AsyncClient extends BaseClient {
      */
     @Override
     public void subscribe(String topicName, int qos) throws MqttException {
-        mqttMessageStorage = new ConcurrentLinkedQueue<Message>();
-        receivedMessageCounter = new AtomicLong(0);
+        initReceivedMessages();
+        addSubscription(topicName, qos);
 
         // Subscribe to the requested topic.
         // Control is returned as soon client has accepted to deliver the subscription.
@@ -148,15 +233,54 @@ public class AsyncClient extends BaseClient {
         log.info("Subscribed to topic \"" + topicName);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void subscribe(String[] topicNames, int[] qos) throws MqttException {
+        initReceivedMessages();
+        for (int i = 0; i < topicNames.length; i++) {
+            addSubscription(topicNames[i], qos[i]);
+        }
+
+        log.debug("Subscribing to " + topicNames.length + " topics");
+        IMqttToken subToken = client.subscribe(topicNames, qos, null, null);
+        subToken.waitForCompletion();
+        int[] grantedQos = subToken.getGrantedQos();
+        for (int i = 0; null != grantedQos && i < grantedQos.length; i++) {
+            if (grantedQos[i] >= SUBSCRIBE_FAILURE) {
+                throw new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED);
+            }
+        }
+        log.debug("Subscribed to " + topicNames.length + " topics");
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void connectionLost(Throwable cause) {
         // Called when the connection to the server has been lost.
-        // An application may choose to implement reconnection
-        // logic at this point. This sample simply exits.
+        // The client is reconnected by the Reconnector, keeping its session.
         log.info("Connection to " + brokerUrl + " lost!" + cause);
+
+        // Publishes in flight on a lost connection may never complete. Start over with an empty window so that
+        // publishers are not blocked forever, late completions are released to the old window.
+        if (maxInFlight > 0) {
+            inFlightWindow = new InFlightWindow(maxInFlight);
+        }
+        reconnectLater();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int reconnectClient() throws MqttException {
+        // A clean session discards the messages in flight on connect
+        int replayed = conOpt.isCleanSession() ? 0 : client.getPendingDeliveryTokens().length;
+        client.connect(conOpt, null, null).waitForCompletion();
+        return replayed;
     }
 
     /**
@@ -180,20 +304,19 @@ public class AsyncClient extends BaseClient {
         // delivery of a message will complete after the client has re-connected.
         // The getPendinTokens method will provide tokens for any messages
         // that are still to be delivered.
-        try {
-            log.info("Delivery complete callback: Publish Completed " + token.getMessage());
-        } catch (Exception ex) {
-            log.info("Exception in delivery complete callback" + ex);
+        Object context = token.getUserContext();
+        if (context instanceof InFlightWindow) {
+            ((InFlightWindow) context).release();
+        }
+        // Paho counts the publishes of a lost connection against its limit until they complete, but their permits
+        // go back to the window they were taken from. Publishes of a newer window turned away by Paho wait for them.
+        InFlightWindow window = inFlightWindow;
+        if (null != window && window != context) {
+            window.signalCompletion();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Delivery complete callback: Publish Completed " + token.getMessageId());
         }
-    }
-
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public void messageArrived(String topic, MqttMessage mqttMessage) throws MqttException {
-        Message newMessage = new Message(mqttMessage);
-        mqttMessageStorage.add(newMessage);
     }
 
     /**
@@ -201,6 +324,7 @@ public class AsyncClient extends BaseClient {
      */
     @Override
     public void disconnect() throws MqttException {
+        setClosed();
         // Disconnect the client
         // Issue the disconnect and then use the token to wait until
         // the disconnect completes.
@@ -223,11 +347,90 @@ public class AsyncClient extends BaseClient {
      */
     @Override
     public void close() throws IOException {
+        setClosed();
         try {
-            client.disconnect();
+            client.disconnect().waitForCompletion();
         } catch (MqttException e) {
-            e.printStackTrace();
-            log.error(e.getMessage(), e);
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void forceClose() {
+        setClosed();
+        try {
+            client.disconnectForcibly(0, FORCE_DISCONNECT_TIMEOUT);
+        } catch (MqttException e) {
+            log.debug("Forcibly disconnecting : " + e.getMessage());
+        }
+        try {
+            client.close();
+        } catch (MqttException e) {
+            log.debug("Closing : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Bounds the number of publishes a connection has in flight, to no more than what the Paho client accepts.
+     * Paho counts QoS 0 publishes against its limit as well until they are written, so every publish takes a permit
+     * whatever its QoS.
+     */
+    private static final class InFlightWindow {
+        private final int size;
+        private final Semaphore permits;
+        // Released on every completion, for publishes Paho turned away
+        private final Semaphore completions = new Semaphore(0);
+
+        private InFlightWindow(int size) {
+            this.size = Math.min(size, PAHO_MAX_INFLIGHT);
+            this.permits = new Semaphore(this.size);
+        }
+
+        /**
+         * Takes the permit of a publish, waiting until one is free.
+         *
+         * @throws MqttException if interrupted while waiting.
+         */
+        private void acquire() throws MqttException {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MqttException(e);
+            }
+        }
+
+        private void release() {
+            permits.release();
+            signalCompletion();
+        }
+
+        private void signalCompletion() {
+            completions.release();
+        }
+
+        private void clearCompletions() {
+            completions.drainPermits();
+        }
+
+        /**
+         * Waits for a publish of the connection to complete since the completions were last cleared, and takes that
+         * completion. Waits for {@link #COMPLETION_WAIT} at most.
+         */
+        private void awaitCompletion() throws MqttException {
+            try {
+                completions.tryAcquire(COMPLETION_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MqttException(e);
+            }
+        }
+
+        private int getInFlightCount() {
+            return size - permits.availablePermits();
         }
     }
-}
\ No newline at end of file
+}
@@ -16,27 +16,543 @@
 
 package org.apache.jmeter.protocol.mqtt.paho.clients;
 
+import org.apache.jmeter.protocol.mqtt.client.Reconnector;
+import org.apache.jmeter.protocol.mqtt.data.objects.LatencyHeader;
 import org.apache.jmeter.protocol.mqtt.data.objects.Message;
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyHistogram;
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyReporter;
+import org.apache.jmeter.protocol.mqtt.metrics.TopicStatistics;
+import org.apache.jmeter.protocol.mqtt.utilities.Clock;
+import org.apache.jmeter.protocol.mqtt.utilities.Constants;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 import java.io.Closeable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is the template class for both Async and Sync MQTT clients.
  */
 public abstract class BaseClient implements MqttCallback, Closeable {
-    protected ConcurrentLinkedQueue<Message> mqttMessageStorage = null;
+    // Queued to wake up a thread waiting in receive
+    private static final Message WAKE_UP = new Message(new byte[0], 0, false, false, 0);
+    // Milliseconds between checks whether the client was closed while a delivering thread waits for a full receive
+    // buffer. Paho joins its callback thread without a timeout when closing, so it must not wait for good.
+    private static final long BLOCKED_DELIVERY_CHECK = 100;
+
+    protected BlockingQueue<Message> mqttMessageStorage = null;
     protected AtomicLong receivedMessageCounter = null;
+    private volatile boolean latencyOnly = false;
+    private volatile boolean metadataOnly = false;
+    private volatile boolean hashPayload = false;
+    private final AtomicLong unqueuedMessageCounter = new AtomicLong(0);
+    private final AtomicLong unqueuedByteCounter = new AtomicLong(0);
+    // The bound of the received messages, applied on the first subscription
+    private volatile int receiveBufferCapacity = 0;
+    private volatile String overflowPolicy = Constants.MQTT_RECEIVE_BUFFER_BLOCK;
+    private final AtomicInteger receiveBufferHighWaterMark = new AtomicInteger(0);
+    // Messages which arrived while the receive buffer was full
+    private final AtomicLong overflowCounter = new AtomicLong(0);
+    // Topics subscribed to, with their QoS, to subscribe again after a reconnect
+    private final Map<String, Integer> subscriptions = new ConcurrentHashMap<String, Integer>();
+    // Topic filters per SUBSCRIBE packet, also when subscribing again after a reconnect
+    private volatile int subscribeBatchSize = 1;
+    // A lock rather than a monitor, so that virtual threads waiting for a reconnect do not pin their carrier
+    private final Lock reconnectLock = new ReentrantLock();
+    private final Condition reconnected = reconnectLock.newCondition();
+    private volatile boolean reconnecting = false;
+    private volatile boolean closed = false;
 
     public abstract void publish(String topicName, int qos, byte[] payload, boolean isRetained) throws MqttException;
+    public abstract void publish(PublishMessage message) throws MqttException;
     public abstract void subscribe(String topicName, int qos) throws MqttException;
+
+    /**
+     * Subscribes to several topic filters in a single SUBSCRIBE packet, waiting for its acknowledgement.
+     *
+     * @param topicNames The topic filters.
+     * @param qos        The QoS of each filter.
+     * @throws MqttException if the subscribe fails or the broker refuses a filter.
+     */
+    public abstract void subscribe(String[] topicNames, int[] qos) throws MqttException;
     public abstract void disconnect() throws MqttException;
     public abstract  boolean isConnected();
 
-    public ConcurrentLinkedQueue<Message> getReceivedMessages(){
+    /**
+     * Closes the connection without waiting for the server to acknowledge the disconnect, and releases the
+     * resources of the client. Errors are ignored.
+     */
+    public abstract void forceClose();
+
+    /**
+     * Connects the wrapped client again with the options it was created with.
+     *
+     * @return The number of messages in flight on the lost connection that are sent again on the new one.
+     * @throws MqttException if the connect fails.
+     */
+    protected abstract int reconnectClient() throws MqttException;
+
+    /**
+     * Connects again after the connection was lost, keeping the session and the messages in flight, and subscribes
+     * again to the topics of the client.
+     *
+     * @return The number of messages in flight on the lost connection that are sent again on the new one.
+     * @throws MqttException if the connect or a subscription fails.
+     */
+    public int reconnect() throws MqttException {
+        int replayed = reconnectClient();
+        int batchSize = subscribeBatchSize;
+        if (batchSize <= 1) {
+            for (Map.Entry<String, Integer> subscription : subscriptions.entrySet()) {
+                subscribe(subscription.getKey(), subscription.getValue());
+            }
+        } else if (!subscriptions.isEmpty()) {
+            Map<String, Integer> topics = new LinkedHashMap<String, Integer>(subscriptions);
+            String[] topicNames = topics.keySet().toArray(new String[topics.size()]);
+            int[] qos = new int[topicNames.length];
+            for (int i = 0; i < topicNames.length; i++) {
+                qos[i] = topics.get(topicNames[i]);
+            }
+            subscribe(topicNames, qos, batchSize);
+        }
+        return replayed;
+    }
+
+    /**
+     * Subscribes to topic filters in SUBSCRIBE packets of up to a number of filters each, sent one after the other.
+     * The time from sending each packet to its acknowledgement is recorded by the subscribe latency reporter, and
+     * the number of filters per packet is kept for subscribing again after a reconnect.
+     *
+     * @param topicNames The topic filters.
+     * @param qos        The QoS of each filter.
+     * @param batchSize  The maximum number of filters per SUBSCRIBE packet.
+     * @return The number of SUBSCRIBE packets sent.
+     * @throws MqttException if a subscribe fails or the broker refuses a filter.
+     */
+    public int subscribe(String[] topicNames, int[] qos, int batchSize) throws MqttException {
+        batchSize = Math.max(batchSize, 1);
+        subscribeBatchSize = batchSize;
+        LatencyReporter subscribeReporter = LatencyReporter.getSubscribeReporter();
+        int packets = 0;
+        for (int start = 0; start < topicNames.length; start += batchSize) {
+            int end = Math.min(start + batchSize, topicNames.length);
+            long begin = System.nanoTime();
+            try {
+                if (1 == end - start) {
+                    subscribe(topicNames[start], qos[start]);
+                } else {
+                    subscribe(Arrays.copyOfRange(topicNames, start, end), Arrays.copyOfRange(qos, start, end));
+                }
+            } catch (MqttException e) {
+                subscribeReporter.recordError();
+                throw e;
+            }
+            subscribeReporter.getHistogram().record(System.nanoTime() - begin);
+            packets++;
+        }
+        return packets;
+    }
+
+    /**
+     * Remembers a subscription, to make it again after a reconnect.
+     *
+     * @param topicName The topic subscribed to.
+     * @param qos       The QoS of the subscription.
+     */
+    protected void addSubscription(String topicName, int qos) {
+        subscriptions.put(topicName, qos);
+    }
+
+    /**
+     * Hands the client to the {@link Reconnector} after the connection was lost, unless the client is closed.
+     */
+    protected void reconnectLater() {
+        if (!closed) {
+            Reconnector.getInstance().reconnect(this);
+        }
+    }
+
+    /**
+     * Marks the client as closed on purpose, so that it is not reconnected.
+     */
+    protected void setClosed() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * Sets whether the client is waiting to be reconnected. Threads waiting in {@link #awaitReconnect(long)} are
+     * woken up once it is not.
+     *
+     * @param reconnecting true while the client is being reconnected.
+     */
+    public void setReconnecting(boolean reconnecting) {
+        reconnectLock.lock();
+        try {
+            this.reconnecting = reconnecting;
+            if (!reconnecting) {
+                reconnected.signalAll();
+            }
+        } finally {
+            reconnectLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a reconnect in progress to end.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     * @return true if the client is connected.
+     * @throws InterruptedException if the waiting thread is interrupted.
+     */
+    public boolean awaitReconnect(long timeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        reconnectLock.lock();
+        try {
+            while (reconnecting && remaining > 0) {
+                remaining = reconnected.awaitNanos(remaining);
+            }
+        } finally {
+            reconnectLock.unlock();
+        }
+        return isConnected();
+    }
+
+    /**
+     * Creates the storage of received messages on the first subscription. Later subscriptions, also those made by
+     * other threads sharing the client, deliver into the same storage.
+     */
+    protected synchronized void initReceivedMessages() {
+        if (null == mqttMessageStorage) {
+            receivedMessageCounter = new AtomicLong(0);
+            mqttMessageStorage = receiveBufferCapacity > 0 ?
+                    new LinkedBlockingQueue<Message>(receiveBufferCapacity) : new LinkedBlockingQueue<Message>();
+        }
+    }
+
+    /**
+     * Bounds the storage of received messages. Only takes effect before the first subscription, later calls, also
+     * by other threads sharing the client, are ignored.
+     * <p/>
+     * When the storage is full, {@link Constants#MQTT_RECEIVE_BUFFER_BLOCK} holds the delivering thread until the
+     * sampler takes a message, so that the client stops reading from the broker and TCP pushes back. Once the client
+     * is closed the held message is dropped, so that closing does not wait for a sampler which has stopped.
+     * {@link Constants#MQTT_RECEIVE_BUFFER_DROP_NEWEST} discards the arriving message,
+     * {@link Constants#MQTT_RECEIVE_BUFFER_DROP_OLDEST} discards the oldest stored message, and
+     * {@link Constants#MQTT_RECEIVE_BUFFER_COUNT_ONLY} counts the arriving message as in latency only mode.
+     *
+     * @param capacity       The maximum number of stored messages, 0 for no maximum.
+     * @param overflowPolicy What to do with a message arriving when the storage is full.
+     */
+    public void setReceiveBuffer(int capacity, String overflowPolicy) {
+        this.receiveBufferCapacity = Math.max(0, capacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public int getReceiveBufferCapacity() {
+        return receiveBufferCapacity;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Gets the number of received messages waiting for the sampler.
+     */
+    public int getReceiveBufferDepth() {
+        BlockingQueue<Message> storage = mqttMessageStorage;
+        return null == storage ? 0 : storage.size();
+    }
+
+    /**
+     * Gets the largest number of received messages that waited for the sampler at once.
+     */
+    public int getReceiveBufferHighWaterMark() {
+        return receiveBufferHighWaterMark.get();
+    }
+
+    /**
+     * Gets the number of messages which arrived while the receive buffer was full, and were dropped, only counted
+     * or held back depending on the overflow policy.
+     */
+    public long getOverflowCount() {
+        return overflowCounter.get();
+    }
+
+    /**
+     * Handles a message from the server, which arrived now.
+     *
+     * @param topic       The topic the message was published to.
+     * @param mqttMessage The message.
+     * @throws MqttException
+     */
+    @Override
+    public void messageArrived(String topic, MqttMessage mqttMessage) throws MqttException {
+        messageReceived(topic, mqttMessage, System.nanoTime());
+    }
+
+    /**
+     * Handles a message from the server. Messages with a latency header have their end to end latency recorded, and
+     * every message is counted in the {@link TopicStatistics} of its topic. In latency only mode that is all that is
+     * kept of a message, otherwise the message is queued for the sampler.
+     *
+     * @param topic       The topic the message was published to.
+     * @param mqttMessage The message.
+     * @param arrivalTime The value of {@link System#nanoTime()} when the message arrived, which is earlier than now
+     *                    if the client held it back.
+     * @throws MqttException
+     */
+    protected void messageReceived(String topic, MqttMessage mqttMessage, long arrivalTime) throws MqttException {
+        LatencyHistogram endToEndLatency = LatencyReporter.getEndToEndReporter().getHistogram();
+        TopicStatistics topicStatistics = TopicStatistics.getInstance();
+        if (latencyOnly) {
+            byte[] payload = mqttMessage.getPayload();
+            if (LatencyHeader.isPresent(payload)) {
+                long latency = Clock.toEpochNanos(arrivalTime) - LatencyHeader.getSendTime(payload);
+                endToEndLatency.record(latency);
+                topicStatistics.record(topic, payload.length, latency);
+            } else {
+                topicStatistics.record(topic, payload.length);
+            }
+            unqueuedMessageCounter.incrementAndGet();
+            unqueuedByteCounter.addAndGet(payload.length);
+            return;
+        }
+
+        Message newMessage = new Message(mqttMessage, arrivalTime, !metadataOnly, metadataOnly && hashPayload);
+        if (newMessage.hasLatencyHeader()) {
+            endToEndLatency.record(newMessage.getEndToEndLatency());
+            topicStatistics.record(topic, newMessage.getPayloadLength(), newMessage.getEndToEndLatency());
+        } else {
+            topicStatistics.record(topic, newMessage.getPayloadLength());
+        }
+        enqueue(newMessage);
+    }
+
+    /**
+     * Queues a received message for the sampler, applying the overflow policy if the receive buffer is full.
+     */
+    private void enqueue(Message message) {
+        BlockingQueue<Message> storage = mqttMessageStorage;
+        if (!storage.offer(message)) {
+            overflowCounter.incrementAndGet();
+            String policy = overflowPolicy;
+            if (Constants.MQTT_RECEIVE_BUFFER_DROP_NEWEST.equals(policy)) {
+                return;
+            } else if (Constants.MQTT_RECEIVE_BUFFER_COUNT_ONLY.equals(policy)) {
+                unqueuedMessageCounter.incrementAndGet();
+                unqueuedByteCounter.addAndGet(message.getPayloadLength());
+                return;
+            } else if (Constants.MQTT_RECEIVE_BUFFER_DROP_OLDEST.equals(policy)) {
+                do {
+                    storage.poll();
+                } while (!storage.offer(message));
+            } else {
+                try {
+                    while (!storage.offer(message, BLOCKED_DELIVERY_CHECK, TimeUnit.MILLISECONDS)) {
+                        if (closed) {
+                            // Closing while nobody takes messages, the message is lost
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopping, the message is lost
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        int depth = storage.size();
+        int highWaterMark;
+        while (depth > (highWaterMark = receiveBufferHighWaterMark.get())) {
+            if (receiveBufferHighWaterMark.compareAndSet(highWaterMark, depth)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Gets whether queueing a received message now would block the delivering thread, for clients that deliver on
+     * a thread which must not block.
+     *
+     * @return true if the receive buffer is full and its overflow policy blocks.
+     */
+    protected boolean isReceiveBufferBlocking() {
+        BlockingQueue<Message> storage = mqttMessageStorage;
+        return null != storage && !latencyOnly && 0 == storage.remainingCapacity() &&
+               Constants.MQTT_RECEIVE_BUFFER_BLOCK.equals(overflowPolicy);
+    }
+
+    /**
+     * Counts a message a client holds back because the receive buffer is full, see
+     * {@link #isReceiveBufferBlocking()}.
+     */
+    protected void countHeldBackMessage() {
+        overflowCounter.incrementAndGet();
+    }
+
+    /**
+     * Called once the sampler took messages from a bounded receive buffer and at least a quarter of it is free. A
+     * client holding back messages delivers them.
+     */
+    protected void receiveBufferDrained() {
+    }
+
+    private void messagesTaken(BlockingQueue<Message> storage) {
+        int capacity = receiveBufferCapacity;
+        if (capacity > 0 && storage.remainingCapacity() >= Math.max(1, capacity / 4)) {
+            receiveBufferDrained();
+        }
+    }
+
+    /**
+     * Sets whether arriving messages are only counted and have their latency recorded, instead of being queued for
+     * the sampler.
+     *
+     * @param latencyOnly true to not queue messages.
+     */
+    public void setLatencyOnly(boolean latencyOnly) {
+        this.latencyOnly = latencyOnly;
+    }
+
+    /**
+     * Sets whether queued messages keep only their metadata, their payload is left to be collected as soon as the
+     * message is handled.
+     *
+     * @param metadataOnly true to not keep payloads.
+     * @param hashPayload  true to keep a CRC32 of each payload in metadata only mode.
+     */
+    public void setMetadataOnly(boolean metadataOnly, boolean hashPayload) {
+        this.metadataOnly = metadataOnly;
+        this.hashPayload = hashPayload;
+    }
+
+    /**
+     * Gets the number of messages that arrived in latency only mode since the last call, and resets it.
+     *
+     * @return The number of messages.
+     */
+    public long takeUnqueuedMessageCount() {
+        return unqueuedMessageCounter.getAndSet(0);
+    }
+
+    /**
+     * Gets the number of payload bytes that arrived in latency only mode since the last call, and resets it.
+     *
+     * @return The number of bytes.
+     */
+    public long takeUnqueuedByteCount() {
+        return unqueuedByteCounter.getAndSet(0);
+    }
+
+    /**
+     * Gets the number of bytes the client wrote to the network since the last call, and resets it.
+     *
+     * @return The number of bytes, 0 if the client does not count them.
+     */
+    public long takeBytesSent() {
+        return 0;
+    }
+
+    /**
+     * Waits for a received message.
+     *
+     * @param timeout The maximum time to wait in milliseconds, 0 or less to wait until a message arrives.
+     * @return The message, or null if the timeout expired, the client is not subscribed or {@link #wakeUp()} was
+     * called.
+     * @throws InterruptedException if the waiting thread is interrupted.
+     */
+    public Message receive(long timeout) throws InterruptedException {
+        BlockingQueue<Message> storage = mqttMessageStorage;
+        if (null == storage) {
+            return null;
+        }
+        Message message = timeout > 0 ? storage.poll(timeout, TimeUnit.MILLISECONDS) : storage.take();
+        messagesTaken(storage);
+        if (null == message || message == WAKE_UP) {
+            return null;
+        }
+        dequeued(message, System.nanoTime(), LatencyReporter.getQueueDwellReporter().getHistogram());
+        return message;
+    }
+
+    /**
+     * Takes the received messages that are available, waiting for at least one if there are none.
+     *
+     * @param batch       The collection to add the messages to.
+     * @param maxMessages The maximum number of messages to take.
+     * @param timeout     The maximum time to wait in milliseconds, 0 or less to wait until a message arrives.
+     * @return The number of messages taken, 0 if the timeout expired, the client is not subscribed or
+     * {@link #wakeUp()} was called.
+     * @throws InterruptedException if the waiting thread is interrupted.
+     */
+    public int receive(Collection<Message> batch, int maxMessages, long timeout) throws InterruptedException {
+        BlockingQueue<Message> storage = mqttMessageStorage;
+        if (null == storage || maxMessages <= 0) {
+            return 0;
+        }
+        int count = storage.drainTo(batch, maxMessages);
+        if (count == 0) {
+            Message message = timeout > 0 ? storage.poll(timeout, TimeUnit.MILLISECONDS) : storage.take();
+            if (null == message || message == WAKE_UP) {
+                return 0;
+            }
+            batch.add(message);
+            count = 1 + storage.drainTo(batch, maxMessages - 1);
+        }
+        messagesTaken(storage);
+        if (batch.remove(WAKE_UP)) {
+            count--;
+        }
+        long now = System.nanoTime();
+        LatencyHistogram queueDwell = LatencyReporter.getQueueDwellReporter().getHistogram();
+        for (Message message : batch) {
+            // The messages taken by earlier calls are already marked
+            if (0 == message.getDequeuedTime()) {
+                dequeued(message, now, queueDwell);
+            }
+        }
+        return count;
+    }
+
+    private static void dequeued(Message message, long now, LatencyHistogram queueDwell) {
+        message.setDequeuedTime(now);
+        queueDwell.record(message.getQueueDwellTime());
+    }
+
+    /**
+     * Wakes up a thread waiting in {@link #receive(long)}.
+     */
+    public void wakeUp() {
+        BlockingQueue<Message> storage = mqttMessageStorage;
+        if (null != storage) {
+            storage.offer(WAKE_UP);
+        }
+    }
+
+    public BlockingQueue<Message> getReceivedMessages(){
         return mqttMessageStorage;
     }
     public AtomicLong getReceivedMessageCounter(){
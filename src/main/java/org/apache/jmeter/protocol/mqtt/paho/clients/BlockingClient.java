@@ -16,19 +16,16 @@
 
 package org.apache.jmeter.protocol.mqtt.paho.clients;
 
-import org.apache.jmeter.protocol.mqtt.data.objects.Message;
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
 import org.apache.jorphan.logging.LoggingManager;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
-import java.io.File;
+import javax.net.SocketFactory;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A sample application that demonstrates how to use the Paho MQTT v3.1 Client blocking API.
@@ -53,8 +50,11 @@ import java.util.concurrent.atomic.AtomicLong;
 public class BlockingClient extends BaseClient {
 
     private static final org.apache.log.Logger log = LoggingManager.getLoggerForClass();
+    // Milliseconds to wait for the disconnect packet to be sent when closing forcibly
+    private static final long FORCE_DISCONNECT_TIMEOUT = 1;
     private MqttClient client;
     private String brokerUrl;
+    private MqttConnectOptions conOpt;
 
     /**
      * Constructs an instance of the sample client wrapper
@@ -64,18 +64,18 @@ public class BlockingClient extends BaseClient {
      * @param cleanSession clear state at end of connection or not (durable or non-durable subscriptions)
      * @param userName     the username to connect with
      * @param password     the password for the user
+     * @param keepAlive    the keep alive interval in seconds
+     * @param persistence  the store of in-flight messages
+     * @param socketFactory the factory of the socket to connect with, null for the default of the broker URL
      * @throws MqttException
      */
     public BlockingClient(String brokerUrl, String clientId, boolean cleanSession, String userName,
-                          String password, int keepAlive) throws MqttException {
+                          String password, int keepAlive, MqttClientPersistence persistence,
+                          SocketFactory socketFactory) throws MqttException {
         this.brokerUrl = brokerUrl;
-        String testPlanFileDir = System.getProperty("java.io.tmpdir") + File.separator + "mqtt" + File.separator +
-                                 clientId + File.separator + Thread.currentThread().getId();
-        MqttDefaultFilePersistence dataStore = new MqttDefaultFilePersistence(testPlanFileDir);
-
         // Construct the connection options object that contains connection parameters
         // such as cleanSession and LWT
-        MqttConnectOptions conOpt = new MqttConnectOptions();
+        conOpt = new MqttConnectOptions();
         conOpt.setCleanSession(cleanSession);
         if (password != null && !password.isEmpty()) {
             conOpt.setPassword(password.toCharArray());
@@ -86,9 +86,12 @@ public class BlockingClient extends BaseClient {
 
         // Setting keep alive time
         conOpt.setKeepAliveInterval(keepAlive);
+        if (null != socketFactory) {
+            conOpt.setSocketFactory(socketFactory);
+        }
 
         // Construct an MQTT blocking mode client
-        client = new MqttClient(this.brokerUrl, clientId, dataStore);
+        client = new MqttClient(this.brokerUrl, clientId, persistence);
 
         // Set this wrapper as the callback handler
         client.setCallback(this);
@@ -105,6 +108,7 @@ public class BlockingClient extends BaseClient {
      */
     @Override
     public void disconnect() throws MqttException {
+        setClosed();
         // Disconnect the client
         client.disconnect();
         log.info("Disconnected");
@@ -123,15 +127,18 @@ public class BlockingClient extends BaseClient {
      */
     @Override
     public void publish(String topicName, int qos, byte[] payload, boolean isRetained) throws MqttException {
-        // Create and configure a message
-        MqttMessage message = new MqttMessage(payload);
-        message.setRetained(isRetained);
-        message.setQos(qos);
+        publish(new PublishMessage(topicName, qos, isRetained, payload));
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void publish(PublishMessage message) throws MqttException {
         // Send the message to the server, control is not returned until
         // it has been delivered to the server meeting the specified
         // quality of service.
-        client.publish(topicName, message);
+        client.publish(message.getTopicName(), message.getMqttMessage());
     }
 
     /**
@@ -139,8 +146,8 @@ public class BlockingClient extends BaseClient {
      */
     @Override
     public void subscribe(String topicName, int qos) throws MqttException {
-        mqttMessageStorage = new ConcurrentLinkedQueue<Message>();
-        receivedMessageCounter = new AtomicLong(0);
+        initReceivedMessages();
+        addSubscription(topicName, qos);
 
         // Subscribe to the requested topic
         // The QoS specified is the maximum level that messages will be sent to the client at.
@@ -151,39 +158,77 @@ public class BlockingClient extends BaseClient {
         client.subscribe(topicName, qos);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The Paho blocking client does not give the granted QoS, so filters refused by the broker go unnoticed.
+     */
+    @Override
+    public void subscribe(String[] topicNames, int[] qos) throws MqttException {
+        initReceivedMessages();
+        for (int i = 0; i < topicNames.length; i++) {
+            addSubscription(topicNames[i], qos[i]);
+        }
+
+        log.debug("Subscribing to " + topicNames.length + " topics");
+        client.subscribe(topicNames, qos);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void connectionLost(Throwable cause) {
         log.info("Connection to " + brokerUrl + " lost!" + cause);
+        reconnectLater();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void deliveryComplete(IMqttDeliveryToken token) {
+    protected int reconnectClient() throws MqttException {
+        // A clean session discards the messages in flight on connect
+        int replayed = conOpt.isCleanSession() ? 0 : client.getPendingDeliveryTokens().length;
+        client.connect(conOpt);
+        return replayed;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void messageArrived(String topic, MqttMessage message) throws MqttException {
-        Message newMessage = new Message(message);
-        mqttMessageStorage.add(newMessage);
+    public void deliveryComplete(IMqttDeliveryToken token) {
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void close() throws IOException{
+    public void close() throws IOException {
+        setClosed();
         try {
             client.disconnect();
         } catch (MqttException e) {
             throw new IOException(e.getMessage(), e);
         }
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void forceClose() {
+        setClosed();
+        try {
+            client.disconnectForcibly(0, FORCE_DISCONNECT_TIMEOUT);
+        } catch (MqttException e) {
+            log.debug("Forcibly disconnecting : " + e.getMessage());
+        }
+        try {
+            client.close();
+        } catch (MqttException e) {
+            log.debug("Closing : " + e.getMessage());
+        }
+    }
 }
\ No newline at end of file
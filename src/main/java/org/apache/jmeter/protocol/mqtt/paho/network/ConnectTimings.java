@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.paho.network;
+
+/**
+ * The time the phases of a connect took, recorded by the sockets of a {@link TimingSocketFactory} or
+ * {@link TimingSSLSocketFactory}, or by the NIO client.
+ */
+public class ConnectTimings {
+    private volatile long tcpConnectTime;
+    private volatile long handshakeTime;
+    private volatile boolean sessionResumed;
+
+    /**
+     * Gets the time to establish the TCP connection.
+     *
+     * @return The time in nanoseconds, 0 if no connection was made.
+     */
+    public long getTcpConnectTime() {
+        return tcpConnectTime;
+    }
+
+    /**
+     * Gets the time of the TLS handshake.
+     *
+     * @return The time in nanoseconds, 0 if there was no handshake.
+     */
+    public long getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    /**
+     * Gets whether the TLS handshake resumed an earlier session instead of negotiating a new one.
+     *
+     * @return true if the session was resumed.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    /**
+     * Sets the time to establish the TCP connection, for clients which do not connect through sockets of a
+     * {@link TimingSocketFactory}.
+     *
+     * @param tcpConnectTime The time in nanoseconds.
+     */
+    public void setTcpConnectTime(long tcpConnectTime) {
+        this.tcpConnectTime = tcpConnectTime;
+    }
+
+    void setHandshakeTime(long handshakeTime) {
+        this.handshakeTime = handshakeTime;
+    }
+
+    void setSessionResumed(boolean sessionResumed) {
+        this.sessionResumed = sessionResumed;
+    }
+
+    /**
+     * Clears the times, before they are recorded for another connect.
+     */
+    public void reset() {
+        tcpConnectTime = 0;
+        handshakeTime = 0;
+        sessionResumed = false;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.paho.network;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * Creates TLS sockets which record the time to establish their TCP connection and the time of their handshake, see
+ * {@link TimedSSLSocket}.
+ */
+public class TimingSSLSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+    private final ConnectTimings timings;
+
+    /**
+     * @param delegate The factory creating the sockets.
+     * @param timings  The timings the sockets record into, null to only count their handshakes.
+     */
+    public TimingSSLSocketFactory(SSLSocketFactory delegate, ConnectTimings timings) {
+        this.delegate = delegate;
+        this.timings = timings;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return new TimedSSLSocket((SSLSocket) delegate.createSocket(), timings);
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return new TimedSSLSocket((SSLSocket) delegate.createSocket(socket, host, port, autoClose), timings);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+    }
+
+    private Socket connect(SocketAddress remote, SocketAddress local) throws IOException {
+        Socket socket = createSocket();
+        if (null != local) {
+            socket.bind(local);
+        }
+        socket.connect(remote);
+        return socket;
+    }
+}
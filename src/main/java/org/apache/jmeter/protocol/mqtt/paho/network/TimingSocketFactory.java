@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.paho.network;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * Creates plain sockets which record the time to establish their TCP connection.
+ */
+public class TimingSocketFactory extends SocketFactory {
+    private final ConnectTimings timings;
+
+    public TimingSocketFactory(ConnectTimings timings) {
+        this.timings = timings;
+    }
+
+    public ConnectTimings getTimings() {
+        return timings;
+    }
+
+    @Override
+    public Socket createSocket() {
+        return new TimedSocket(timings);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+    }
+
+    private Socket connect(SocketAddress remote, SocketAddress local) throws IOException {
+        Socket socket = createSocket();
+        if (null != local) {
+            socket.bind(local);
+        }
+        socket.connect(remote);
+        return socket;
+    }
+
+    /**
+     * A socket recording the time its connect takes.
+     */
+    private static class TimedSocket extends Socket {
+        private final ConnectTimings timings;
+
+        TimedSocket(ConnectTimings timings) {
+            this.timings = timings;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            long start = System.nanoTime();
+            super.connect(endpoint, timeout);
+            timings.setTcpConnectTime(System.nanoTime() - start);
+        }
+    }
+}
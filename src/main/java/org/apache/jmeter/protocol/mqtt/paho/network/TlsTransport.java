@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.paho.network;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyReporter;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The TLS transport of all clients of the JVM connecting to ssl:// brokers. The key and trust stores are loaded once
+ * into a single SSL context, whose socket factory every client connects with. As the clients share the session cache
+ * of the context, a client connecting to a broker an earlier client completed a handshake with resumes its session
+ * instead of negotiating a new one.
+ * <p/>
+ * Configured by the JMeter properties
+ * <ul>
+ * <li>mqtt.ssl.protocol : the protocol of the SSL context, default TLS</li>
+ * <li>mqtt.ssl.keystore, mqtt.ssl.keystore.password, mqtt.ssl.keystore.type : the client certificate, if the broker
+ * asks for one</li>
+ * <li>mqtt.ssl.truststore, mqtt.ssl.truststore.password, mqtt.ssl.truststore.type : the certificates trusted, the
+ * JVM default if not set</li>
+ * <li>mqtt.ssl.trust.all : trust any broker certificate, default false</li>
+ * <li>mqtt.ssl.session.resumption : whether sessions are resumed, default true. false makes every handshake a
+ * full one</li>
+ * <li>mqtt.ssl.session.cache.size, mqtt.ssl.session.timeout : the size and timeout in seconds of the session cache,
+ * the JVM defaults if not set</li>
+ * </ul>
+ * The time of full and resumed handshakes are reported as the tls-full-handshake and tls-resumed-handshake metrics,
+ * failed handshakes as errors of the former. The share of resumed handshakes is logged at the end of the test.
+ */
+public class TlsTransport {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String PROTOCOL_PROPERTY = "mqtt.ssl.protocol";
+    private static final String KEYSTORE_PROPERTY = "mqtt.ssl.keystore";
+    private static final String TRUSTSTORE_PROPERTY = "mqtt.ssl.truststore";
+    private static final String PASSWORD_SUFFIX = ".password";
+    private static final String TYPE_SUFFIX = ".type";
+    private static final String TRUST_ALL_PROPERTY = "mqtt.ssl.trust.all";
+    private static final String SESSION_RESUMPTION_PROPERTY = "mqtt.ssl.session.resumption";
+    private static final String SESSION_CACHE_SIZE_PROPERTY = "mqtt.ssl.session.cache.size";
+    private static final String SESSION_TIMEOUT_PROPERTY = "mqtt.ssl.session.timeout";
+    // Sessions remembered to tell resumed handshakes from full ones, beyond the default session cache of the JVM
+    private static final int MAX_SESSIONS = 100000;
+    private static final String TLS_1_3 = "TLSv1.3";
+
+    private static final TlsTransport instance = new TlsTransport();
+
+    private final LatencyReporter fullHandshakeReporter = new LatencyReporter("tls-full-handshake");
+    private final LatencyReporter resumedHandshakeReporter = new LatencyReporter("tls-resumed-handshake");
+    // The identities of the sessions handshakes established, the least recently used first
+    private final Map<String, Boolean> sessions = new SessionIdentities();
+    private SSLSocketFactory socketFactory;
+    private KeyManager[] keyManagers;
+    private TrustManager[] trustManagers;
+    private String protocol;
+    private boolean sessionResumption = true;
+    private boolean loaded = false;
+    private boolean started = false;
+
+    private TlsTransport() {
+    }
+
+    public static TlsTransport getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts reporting handshakes, unless the transport is already started.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        fullHandshakeReporter.start();
+        resumedHandshakeReporter.start();
+    }
+
+    /**
+     * Stops reporting handshakes and logs the share of resumed handshakes, unless the transport is already stopped.
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        long full = fullHandshakeReporter.getHistogram().snapshot().getTotalCount();
+        long resumed = resumedHandshakeReporter.getHistogram().snapshot().getTotalCount();
+        fullHandshakeReporter.stop();
+        resumedHandshakeReporter.stop();
+        if (full + resumed > 0) {
+            log.info("MQTT TLS handshakes : " + full + " full, " + resumed + " resumed (" +
+                     String.format(Locale.ENGLISH, "%.1f", 100D * resumed / (full + resumed)) + "% resumed)");
+        }
+        // Loaded again by the next test, picking up changed properties
+        socketFactory = null;
+        loaded = false;
+        synchronized (sessions) {
+            sessions.clear();
+        }
+    }
+
+    /**
+     * Gets the socket factory of the shared SSL context, loading the context if needed.
+     *
+     * @param timings The timings the sockets record into, null to only count their handshakes.
+     * @return The socket factory.
+     * @throws MqttException if the key or trust store can not be loaded.
+     */
+    public SSLSocketFactory getSocketFactory(ConnectTimings timings) throws MqttException {
+        return new TimingSSLSocketFactory(getSharedSocketFactory(), timings);
+    }
+
+    /**
+     * Gets the socket factory of the shared SSL context. Without session resumption every connect gets a new SSL
+     * context instead, as TLS 1.3 hands out the tickets to resume a session after the handshake, so that a session
+     * can not be kept out of a shared session cache.
+     */
+    private synchronized SSLSocketFactory getSharedSocketFactory() throws MqttException {
+        try {
+            if (!loaded) {
+                loadManagers();
+                socketFactory = null;
+                loaded = true;
+            }
+            if (!sessionResumption) {
+                return createSSLContext().getSocketFactory();
+            }
+            if (null == socketFactory) {
+                socketFactory = createSSLContext().getSocketFactory();
+            }
+            return socketFactory;
+        } catch (GeneralSecurityException e) {
+            throw new MqttException(MqttException.REASON_CODE_SSL_CONFIG_ERROR, e);
+        } catch (IOException e) {
+            throw new MqttException(MqttException.REASON_CODE_SSL_CONFIG_ERROR, e);
+        }
+    }
+
+    /**
+     * Loads the key and trust stores and reads the configuration of the SSL context.
+     */
+    private void loadManagers() throws GeneralSecurityException, IOException {
+        keyManagers = null;
+        KeyStore keyStore = loadKeyStore(KEYSTORE_PROPERTY);
+        if (null != keyStore) {
+            KeyManagerFactory keyManagerFactory =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, getPassword(KEYSTORE_PROPERTY));
+            keyManagers = keyManagerFactory.getKeyManagers();
+        }
+
+        trustManagers = null;
+        if (JMeterUtils.getPropDefault(TRUST_ALL_PROPERTY, false)) {
+            trustManagers = new TrustManager[]{new TrustAllManager()};
+        } else {
+            KeyStore trustStore = loadKeyStore(TRUSTSTORE_PROPERTY);
+            if (null != trustStore) {
+                TrustManagerFactory trustManagerFactory =
+                        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagerFactory.init(trustStore);
+                trustManagers = trustManagerFactory.getTrustManagers();
+            }
+        }
+
+        protocol = JMeterUtils.getPropDefault(PROTOCOL_PROPERTY, "TLS");
+        sessionResumption = JMeterUtils.getPropDefault(SESSION_RESUMPTION_PROPERTY, true);
+        log.info("Loaded " + protocol + " configuration for MQTT clients" +
+                 (null != keyManagers ? " with client key" : "") +
+                 (sessionResumption ? "" : ", sessions are not resumed"));
+    }
+
+    private SSLContext createSSLContext() throws GeneralSecurityException {
+        SSLContext sslContext = SSLContext.getInstance(protocol);
+        sslContext.init(keyManagers, trustManagers, null);
+
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        int cacheSize = JMeterUtils.getPropDefault(SESSION_CACHE_SIZE_PROPERTY, -1);
+        if (cacheSize >= 0) {
+            sessionContext.setSessionCacheSize(cacheSize);
+        }
+        int timeout = JMeterUtils.getPropDefault(SESSION_TIMEOUT_PROPERTY, -1);
+        if (timeout >= 0) {
+            sessionContext.setSessionTimeout(timeout);
+        }
+        return sslContext;
+    }
+
+    private static KeyStore loadKeyStore(String property) throws GeneralSecurityException, IOException {
+        String path = JMeterUtils.getPropDefault(property, StringUtils.EMPTY);
+        if (StringUtils.isBlank(path)) {
+            return null;
+        }
+        KeyStore keyStore = KeyStore.getInstance(
+                JMeterUtils.getPropDefault(property + TYPE_SUFFIX, KeyStore.getDefaultType()));
+        InputStream in = new FileInputStream(path);
+        try {
+            keyStore.load(in, getPassword(property));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return keyStore;
+    }
+
+    private static char[] getPassword(String property) {
+        String password = JMeterUtils.getPropDefault(property + PASSWORD_SUFFIX, null);
+        return null == password ? null : password.toCharArray();
+    }
+
+    /**
+     * Gets whether a handshake resumed a session an earlier handshake established, by remembering the identity of
+     * every session. Up to TLS 1.2 a resumed session keeps its ID. TLS 1.3 gives a resumed session a new ID but keeps
+     * the creation time of the session it resumes, so the identity is the broker and the creation time, which must
+     * also be before the handshake started.
+     *
+     * @param session        The session of the completed handshake.
+     * @param handshakeStart When the handshake started, in milliseconds since the epoch.
+     * @return true if an earlier handshake established the session.
+     */
+    boolean isResumed(SSLSession session, long handshakeStart) {
+        String identity;
+        if (TLS_1_3.equals(session.getProtocol())) {
+            identity = session.getPeerHost() + ":" + session.getPeerPort() + "@" + session.getCreationTime();
+        } else {
+            byte[] id = session.getId();
+            if (null == id || 0 == id.length) {
+                // Not cached, so it can not be resumed either
+                return false;
+            }
+            identity = new BigInteger(1, id).toString(16);
+        }
+        boolean seen;
+        synchronized (sessions) {
+            seen = null != sessions.put(identity, Boolean.TRUE);
+        }
+        return seen && (!TLS_1_3.equals(session.getProtocol()) || session.getCreationTime() < handshakeStart);
+    }
+
+    /**
+     * Counts a completed handshake.
+     *
+     * @param handshakeTime The time of the handshake in nanoseconds.
+     * @param resumed       Whether the handshake resumed an earlier session.
+     */
+    void recordHandshake(long handshakeTime, boolean resumed) {
+        if (resumed) {
+            resumedHandshakeReporter.getHistogram().record(handshakeTime);
+        } else {
+            fullHandshakeReporter.getHistogram().record(handshakeTime);
+        }
+    }
+
+    /**
+     * Counts a failed handshake.
+     */
+    void recordFailedHandshake() {
+        fullHandshakeReporter.recordError();
+    }
+
+    /**
+     * Remembers up to {@link #MAX_SESSIONS} session identities, forgetting the least recently used.
+     */
+    private static class SessionIdentities extends LinkedHashMap<String, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private SessionIdentities() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    }
+
+    /**
+     * Trusts any certificate, for brokers with self signed certificates.
+     */
+    private static class TrustAllManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
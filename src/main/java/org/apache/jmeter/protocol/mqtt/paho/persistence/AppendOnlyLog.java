@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.paho.persistence;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * A single log file per JVM that the persistence of all clients appends to, instead of writing a file per message.
+ * Each record holds an operation, the client it belongs to, the key and for puts the persisted bytes.
+ * <p/>
+ * The log is written to the file set by the JMeter property mqtt.persistence.log, by default a file named after
+ * the JVM in java.io.tmpdir/mqtt that is deleted when the log is closed at the end of the test.
+ * <p/>
+ * The entries still persisted are kept in memory, per client, so that a client opening its persistence again, in
+ * this test or in the next one with the same log file, recovers its messages in flight. A log file left by an earlier
+ * test is replayed when the log is opened, a record cut short by a crash ends the replay. Once the file is larger than
+ * the JMeter property mqtt.persistence.log.compact.bytes, 64 MB by default, and more than half of it is records
+ * since removed, the file is rewritten with the entries still persisted only.
+ */
+public class AppendOnlyLog {
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String LOG_FILE_PROPERTY = "mqtt.persistence.log";
+    private static final String COMPACT_SIZE_PROPERTY = "mqtt.persistence.log.compact.bytes";
+    private static final long COMPACT_SIZE_DEFAULT = 64L * 1024 * 1024;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+
+    private static AppendOnlyLog instance;
+
+    private final File file;
+    private final boolean temporary;
+    private final long compactSize;
+    // The persisted entries of each client
+    private final Map<String, Hashtable<String, byte[]>> clients = new HashMap<String, Hashtable<String, byte[]>>();
+    private CountingOutputStream counter;
+    private DataOutputStream out;
+    // The length of the file when it was opened for appending
+    private long openedLength;
+    // Bytes of the put records of the persisted entries, the rest of the file is garbage
+    private long liveLength = 0;
+
+    private AppendOnlyLog(File file, boolean temporary) throws IOException {
+        this.file = file;
+        this.temporary = temporary;
+        this.compactSize = JMeterUtils.getPropDefault(COMPACT_SIZE_PROPERTY, COMPACT_SIZE_DEFAULT);
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        if (file.length() > 0) {
+            replay();
+            // Drops what was removed and a record cut short
+            compact();
+        } else {
+            openOutput();
+        }
+        log.info("Appending MQTT client persistence to " + file);
+    }
+
+    private void openOutput() throws IOException {
+        openedLength = file.length();
+        counter = new CountingOutputStream(new FileOutputStream(file, true));
+        out = new DataOutputStream(new BufferedOutputStream(counter));
+    }
+
+    /**
+     * Reads the entries persisted by an earlier test.
+     */
+    private void replay() throws IOException {
+        CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counting);
+        long recovered = 0;
+        try {
+            while (true) {
+                long start = counting.getByteCount();
+                int operation = in.read();
+                if (operation < 0) {
+                    break;
+                }
+                try {
+                    String client = in.readUTF();
+                    if (CLEAR == operation) {
+                        clear(client);
+                        continue;
+                    }
+                    String key = in.readUTF();
+                    if (REMOVE == operation) {
+                        remove(client, key);
+                    } else if (PUT == operation) {
+                        byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        put(client, key, data, counting.getByteCount() - start);
+                        recovered++;
+                    } else {
+                        log.warn("Unknown record in " + file + " at byte " + start + ", the rest is ignored");
+                        break;
+                    }
+                } catch (EOFException e) {
+                    log.warn("Record cut short in " + file + " at byte " + start + ", the rest is ignored");
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        log.info("Replayed " + recovered + " persisted MQTT messages from " + file);
+    }
+
+    /**
+     * Gets the log of this JVM, opening it if needed.
+     *
+     * @return The log.
+     * @throws IOException if the log file cannot be opened.
+     */
+    public static synchronized AppendOnlyLog getLog() throws IOException {
+        if (null == instance) {
+            String path = JMeterUtils.getPropDefault(LOG_FILE_PROPERTY, StringUtils.EMPTY);
+            if (StringUtils.isBlank(path)) {
+                String jvmName = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9.-]", "_");
+                File file = new File(System.getProperty("java.io.tmpdir") + File.separator + "mqtt",
+                                     "persistence-" + jvmName + ".log");
+                instance = new AppendOnlyLog(file, true);
+            } else {
+                instance = new AppendOnlyLog(new File(path), false);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the log of this JVM if it is open, deleting the file unless it was set by the mqtt.persistence.log
+     * property.
+     */
+    public static synchronized void closeLog() {
+        if (null == instance) {
+            return;
+        }
+        synchronized (instance) {
+            try {
+                instance.out.close();
+            } catch (IOException e) {
+                log.warn("Unable to close " + instance.file + " : " + e.getMessage());
+            }
+        }
+        if (instance.temporary && !instance.file.delete()) {
+            log.warn("Unable to delete " + instance.file);
+        }
+        instance = null;
+    }
+
+    /**
+     * Gets the entries persisted for a client, those of an earlier test included. The log updates them as records
+     * are appended, the caller only reads them.
+     *
+     * @param client The client.
+     * @return The entries by key.
+     */
+    synchronized Hashtable<String, byte[]> getEntries(String client) {
+        return entries(client);
+    }
+
+    private Hashtable<String, byte[]> entries(String client) {
+        Hashtable<String, byte[]> entries = clients.get(client);
+        if (null == entries) {
+            entries = new Hashtable<String, byte[]>();
+            clients.put(client, entries);
+        }
+        return entries;
+    }
+
+    synchronized void appendPut(String client, String key, MqttPersistable persistable)
+            throws MqttPersistenceException {
+        int headerLength = persistable.getHeaderLength();
+        int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+        byte[] data = new byte[headerLength + payloadLength];
+        System.arraycopy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), data, 0, headerLength);
+        if (payloadLength > 0) {
+            System.arraycopy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), data, headerLength,
+                             payloadLength);
+        }
+        try {
+            long start = counter.getByteCount();
+            writePut(client, key, data);
+            out.flush();
+            put(client, key, data, counter.getByteCount() - start);
+            compactIfNeeded();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    synchronized void appendRemove(String client, String key) throws MqttPersistenceException {
+        try {
+            out.writeByte(REMOVE);
+            out.writeUTF(client);
+            out.writeUTF(key);
+            out.flush();
+            remove(client, key);
+            compactIfNeeded();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    synchronized void appendClear(String client) throws MqttPersistenceException {
+        try {
+            out.writeByte(CLEAR);
+            out.writeUTF(client);
+            out.flush();
+            clear(client);
+            compactIfNeeded();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    private void writePut(String client, String key, byte[] data) throws IOException {
+        out.writeByte(PUT);
+        out.writeUTF(client);
+        out.writeUTF(key);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private void put(String client, String key, byte[] data, long recordLength) {
+        byte[] previous = entries(client).put(key, data);
+        if (null != previous) {
+            liveLength -= putLength(client, key, previous);
+        }
+        liveLength += recordLength;
+    }
+
+    private void remove(String client, String key) {
+        Hashtable<String, byte[]> entries = clients.get(client);
+        byte[] previous = null == entries ? null : entries.remove(key);
+        if (null != previous) {
+            liveLength -= putLength(client, key, previous);
+        }
+    }
+
+    private void clear(String client) {
+        Hashtable<String, byte[]> entries = clients.get(client);
+        if (null == entries) {
+            return;
+        }
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            liveLength -= putLength(client, entry.getKey(), entry.getValue());
+        }
+        entries.clear();
+    }
+
+    /**
+     * Gets the length of the put record of an entry.
+     */
+    private static long putLength(String client, String key, byte[] data) {
+        return 1 + utfLength(client) + utfLength(key) + 4 + data.length;
+    }
+
+    private static int utfLength(String value) {
+        // As written by DataOutput.writeUTF
+        int length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+        }
+        return length;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        long length = openedLength + counter.getByteCount();
+        if (length >= compactSize && length > 2 * liveLength) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the file with the put records of the persisted entries only.
+     */
+    private void compact() throws IOException {
+        if (null != out) {
+            out.close();
+        }
+        File compacted = new File(file.getPath() + ".compact");
+        DataOutputStream compactedOut =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)));
+        out = compactedOut;
+        try {
+            for (Map.Entry<String, Hashtable<String, byte[]>> client : clients.entrySet()) {
+                for (Map.Entry<String, byte[]> entry : client.getValue().entrySet()) {
+                    writePut(client.getKey(), entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            compactedOut.close();
+        }
+        if (!file.delete() || !compacted.renameTo(file)) {
+            throw new IOException("Unable to replace " + file + " with " + compacted);
+        }
+        openOutput();
+        log.debug("Compacted " + file + " to " + liveLength + " bytes");
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.paho.persistence;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Persistence of a client that appends every change to the {@link AppendOnlyLog} of the JVM. The entries are those
+ * the log keeps in memory for the client, so a client opening its persistence again recovers what it left in flight.
+ */
+public class LogPersistence implements MqttClientPersistence {
+    private Hashtable<String, byte[]> entries;
+    private String client;
+    private AppendOnlyLog appendOnlyLog;
+
+    @Override
+    public void open(String clientId, String serverURI) throws MqttPersistenceException {
+        client = clientId + "@" + serverURI;
+        try {
+            appendOnlyLog = AppendOnlyLog.getLog();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        entries = appendOnlyLog.getEntries(client);
+    }
+
+    @Override
+    public void close() {
+        // The entries stay in the log to be recovered
+    }
+
+    @Override
+    public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        appendOnlyLog.appendPut(client, key, persistable);
+    }
+
+    @Override
+    public MqttPersistable get(String key) {
+        byte[] data = entries.get(key);
+        // Read back by Paho as a header followed by an empty payload, as the file store does
+        return null == data ? null : new MqttPersistentData(key, data, 0, data.length, null, 0, 0);
+    }
+
+    @Override
+    public void remove(String key) throws MqttPersistenceException {
+        if (entries.containsKey(key)) {
+            appendOnlyLog.appendRemove(client, key);
+        }
+    }
+
+    @Override
+    public Enumeration<String> keys() {
+        return entries.keys();
+    }
+
+    @Override
+    public void clear() throws MqttPersistenceException {
+        appendOnlyLog.appendClear(client);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.paho.persistence;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * Persistence that keeps nothing. In-flight QoS 1 and 2 messages are not redelivered after a reconnect.
+ */
+public class NoPersistence implements MqttClientPersistence {
+
+    @Override
+    public void open(String clientId, String serverURI) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void put(String key, MqttPersistable persistable) {
+    }
+
+    @Override
+    public MqttPersistable get(String key) {
+        return null;
+    }
+
+    @Override
+    public void remove(String key) {
+    }
+
+    @Override
+    public Enumeration<String> keys() {
+        return Collections.enumeration(Collections.<String>emptyList());
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return false;
+    }
+}
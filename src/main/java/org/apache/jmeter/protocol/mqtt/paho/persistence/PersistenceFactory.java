@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.paho.persistence;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jmeter.protocol.mqtt.utilities.Constants;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Creates the persistence of a client for the persistence type chosen in a sampler, and removes what the file based
+ * persistence types leave behind at the end of a test.
+ */
+public class PersistenceFactory {
+
+    private static final Set<File> fileStoreDirectories = new HashSet<File>();
+
+    /**
+     * Creates the persistence for a client.
+     *
+     * @param persistenceType The persistence type, one of the MQTT_PERSISTENCE constants. The file store is used if
+     *                        empty or unknown.
+     * @param clientId        The client ID.
+     * @return The persistence.
+     */
+    public static MqttClientPersistence newPersistence(String persistenceType, String clientId) {
+        if (Constants.MQTT_PERSISTENCE_NONE.equals(persistenceType)) {
+            return new NoPersistence();
+        } else if (Constants.MQTT_PERSISTENCE_MEMORY.equals(persistenceType)) {
+            return new MemoryPersistence();
+        } else if (Constants.MQTT_PERSISTENCE_LOG.equals(persistenceType)) {
+            return new LogPersistence();
+        }
+
+        File clientDirectory = new File(System.getProperty("java.io.tmpdir") + File.separator + "mqtt", clientId);
+        synchronized (fileStoreDirectories) {
+            fileStoreDirectories.add(clientDirectory);
+        }
+        return new MqttDefaultFilePersistence(clientDirectory.getPath() + File.separator +
+                                              Thread.currentThread().getId());
+    }
+
+    /**
+     * Deletes the directories of the file stores and closes the append only log. Called at the end of a test, once
+     * the clients are closed.
+     */
+    public static void cleanUp() {
+        synchronized (fileStoreDirectories) {
+            for (File directory : fileStoreDirectories) {
+                FileUtils.deleteQuietly(directory);
+            }
+            fileStoreDirectories.clear();
+        }
+        AppendOnlyLog.closeLog();
+    }
+}
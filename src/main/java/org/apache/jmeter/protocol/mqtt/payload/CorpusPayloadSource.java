@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.payload;
+
+import org.apache.jmeter.protocol.mqtt.utilities.Constants;
+
+import java.util.Random;
+
+/**
+ * Selects payloads from a shared {@link PayloadCorpus} in round robin, random or weighted order. Each sampler has its
+ * own source, so selection does not contend with other threads.
+ */
+public class CorpusPayloadSource implements PayloadSource {
+    private final PayloadCorpus corpus;
+    private final String selection;
+    private final Random random = new Random();
+    private int cursor;
+
+    /**
+     * Creates a source for a corpus.
+     *
+     * @param corpus    The corpus to select from.
+     * @param selection One of the corpus selection constants in {@link Constants}. Defaults to round robin.
+     */
+    public CorpusPayloadSource(PayloadCorpus corpus, String selection) {
+        this.corpus = corpus;
+        this.selection = selection;
+        // Start round robin at a random position so that threads do not publish the same sequence in lock step
+        this.cursor = random.nextInt(corpus.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] nextPayload() {
+        int index;
+        if (Constants.MQTT_CORPUS_SELECTION_RANDOM.equals(selection)) {
+            index = random.nextInt(corpus.size());
+        } else if (Constants.MQTT_CORPUS_SELECTION_WEIGHTED.equals(selection)) {
+            long totalWeight = corpus.getTotalWeight();
+            long position = (long) (random.nextDouble() * totalWeight);
+            index = corpus.getWeightedIndex(Math.min(position, totalWeight - 1));
+        } else {
+            index = cursor;
+            cursor = cursor + 1 == corpus.size() ? 0 : cursor + 1;
+        }
+        return corpus.getPayload(index);
+    }
+}
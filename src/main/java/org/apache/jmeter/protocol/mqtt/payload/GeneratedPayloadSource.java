@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.payload;
+
+import java.util.Random;
+
+/**
+ * Generates payloads of random content with sizes drawn from a {@link SizeDistribution}. Buckets of a single size
+ * publish a payload shared by the whole JVM, buckets with a size range copy a slice of the shared random buffer.
+ */
+public class GeneratedPayloadSource implements PayloadSource {
+    private final SizeDistribution distribution;
+    private final byte[][] fixedPayloads;
+    private final Random random;
+
+    public GeneratedPayloadSource(SizeDistribution distribution) {
+        this(distribution, new Random());
+    }
+
+    /**
+     * @param distribution The distribution of the payload sizes.
+     * @param random       The random sizes and slices are drawn from, used by a single thread.
+     */
+    public GeneratedPayloadSource(SizeDistribution distribution, Random random) {
+        this.distribution = distribution;
+        this.random = random;
+        RandomPayloadBuffer.ensureCapacity(distribution.getMaxSize());
+        this.fixedPayloads = new byte[distribution.getBucketCount()][];
+        for (int i = 0; i < fixedPayloads.length; i++) {
+            if (distribution.isFixedSize(i)) {
+                fixedPayloads[i] = RandomPayloadBuffer.getSharedSlice(distribution.getMinSize(i));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] nextPayload() {
+        int bucket = distribution.nextBucket(random);
+        byte[] payload = fixedPayloads[bucket];
+        if (null != payload) {
+            return payload;
+        }
+        return RandomPayloadBuffer.copySlice(distribution.nextSize(bucket, random), random);
+    }
+}
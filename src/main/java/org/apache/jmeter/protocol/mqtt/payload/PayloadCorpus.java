@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.payload;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A read-only set of recorded payloads loaded from a directory or a zip archive. A corpus is loaded once per JVM and
+ * shared by every sampler which refers to the same path, so the payloads are held in the heap only once.
+ * <p/>
+ * Payloads are kept as byte arrays rather than mapped buffers as the Paho client only accepts a byte array, which it
+ * holds on to until the message is delivered. Since neither the corpus nor the client modify the arrays, they are
+ * handed to the client as they are and selecting a payload does not copy or allocate.
+ * <p/>
+ * An optional {@value #WEIGHTS_FILE} file in the root of the corpus assigns weights to payloads by name for weighted
+ * selection. Payloads without a weight have a weight of 1 and a weight of 0 leaves a payload out of weighted
+ * selection. Weights are whole numbers from 0 to {@value #MAX_WEIGHT}.
+ */
+public final class PayloadCorpus {
+
+    public static final String WEIGHTS_FILE = "weights.properties";
+    // Low enough that the weights of any number of payloads add up without overflowing
+    public static final long MAX_WEIGHT = Integer.MAX_VALUE;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+    private static final ConcurrentMap<String, PayloadCorpus> corpora = new ConcurrentHashMap<String, PayloadCorpus>();
+
+    private final String[] names;
+    private final byte[][] payloads;
+    private final long[] cumulativeWeights;
+
+    private PayloadCorpus(List<String> names, List<byte[]> payloads, Properties weights) {
+        this.names = names.toArray(new String[names.size()]);
+        this.payloads = payloads.toArray(new byte[payloads.size()][]);
+        this.cumulativeWeights = new long[this.payloads.length];
+        long totalWeight = 0;
+        for (int i = 0; i < this.names.length; i++) {
+            String weight = weights.getProperty(this.names[i]);
+            totalWeight += null == weight ? 1 : Long.parseLong(weight.trim());
+            cumulativeWeights[i] = totalWeight;
+        }
+    }
+
+    /**
+     * Gets the corpus for a directory or zip archive, loading it if it is not loaded yet.
+     *
+     * @param path The path to the directory or archive.
+     * @return The corpus.
+     * @throws IOException If the corpus could not be read or is empty.
+     */
+    public static PayloadCorpus getCorpus(String path) throws IOException {
+        String key = new File(path).getCanonicalPath();
+        PayloadCorpus corpus = corpora.get(key);
+        if (null == corpus) {
+            // Loading is serialized so that concurrently starting threads do not each read the corpus
+            synchronized (corpora) {
+                corpus = corpora.get(key);
+                if (null == corpus) {
+                    corpus = load(new File(key));
+                    corpora.put(key, corpus);
+                }
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Releases all loaded corpora. Called at the end of a test so that the payloads can be garbage collected.
+     */
+    public static void clearCorpora() {
+        corpora.clear();
+    }
+
+    private static PayloadCorpus load(File source) throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        Properties weights = new Properties();
+        long totalBytes = 0;
+
+        if (source.isDirectory()) {
+            List<File> files = new ArrayList<File>();
+            listFiles(source, files);
+            Collections.sort(files);
+            String root = source.getPath() + File.separator;
+            for (File file : files) {
+                String name = file.getPath().substring(root.length()).replace(File.separatorChar, '/');
+                if (WEIGHTS_FILE.equals(name)) {
+                    InputStream in = FileUtils.openInputStream(file);
+                    try {
+                        loadWeights(in, file.getPath(), weights);
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                    continue;
+                }
+                byte[] payload = FileUtils.readFileToByteArray(file);
+                names.add(name);
+                payloads.add(payload);
+                totalBytes += payload.length;
+            }
+        } else {
+            ZipFile zipFile = new ZipFile(source);
+            try {
+                List<ZipEntry> entries = new ArrayList<ZipEntry>();
+                Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry entry = zipEntries.nextElement();
+                    if (!entry.isDirectory()) {
+                        entries.add(entry);
+                    }
+                }
+                ZipEntry[] sorted = entries.toArray(new ZipEntry[entries.size()]);
+                Arrays.sort(sorted, new java.util.Comparator<ZipEntry>() {
+                    @Override
+                    public int compare(ZipEntry first, ZipEntry second) {
+                        return first.getName().compareTo(second.getName());
+                    }
+                });
+                for (ZipEntry entry : sorted) {
+                    InputStream in = zipFile.getInputStream(entry);
+                    try {
+                        if (WEIGHTS_FILE.equals(entry.getName())) {
+                            loadWeights(in, source + "!" + WEIGHTS_FILE, weights);
+                            continue;
+                        }
+                        byte[] payload = IOUtils.toByteArray(in);
+                        names.add(entry.getName());
+                        payloads.add(payload);
+                        totalBytes += payload.length;
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        }
+
+        if (payloads.isEmpty()) {
+            throw new IOException("Payload corpus " + source + " does not contain any payloads");
+        }
+        PayloadCorpus corpus = new PayloadCorpus(names, payloads, weights);
+        if (corpus.cumulativeWeights[corpus.cumulativeWeights.length - 1] <= 0) {
+            throw new IOException("Payload corpus " + source + " does not have any payload with a positive weight");
+        }
+        log.info("Loaded payload corpus " + source + " with " + payloads.size() + " payloads, " + totalBytes + " bytes");
+        return corpus;
+    }
+
+    /**
+     * Reads a weights file, in the format of a properties file, checking every weight.
+     *
+     * @param in      The weights file.
+     * @param file    The name of the file, for errors.
+     * @param weights The weights read, by payload name.
+     * @throws IOException if the file could not be read or a weight is not a whole number from 0 to
+     *                     {@value #MAX_WEIGHT}.
+     */
+    private static void loadWeights(InputStream in, String file, Properties weights) throws IOException {
+        StringBuilder entry = new StringBuilder();
+        int lineNumber = 0;
+        int entryLine = 0;
+        for (String line : IOUtils.readLines(in, "ISO-8859-1")) {
+            lineNumber++;
+            if (0 == entry.length()) {
+                entryLine = lineNumber;
+            }
+            entry.append(line).append('\n');
+            if (isContinued(line)) {
+                continue;
+            }
+            // Parsed as a properties file would be, one entry at a time to know its line
+            Properties parsed = new Properties();
+            parsed.load(new StringReader(entry.toString()));
+            entry.setLength(0);
+            for (String name : parsed.stringPropertyNames()) {
+                String weight = parsed.getProperty(name).trim();
+                long value;
+                try {
+                    value = Long.parseLong(weight);
+                } catch (NumberFormatException e) {
+                    value = -1;
+                }
+                if (value < 0 || value > MAX_WEIGHT) {
+                    throw new IOException("Invalid weight '" + weight + "' of payload " + name + " in " + file +
+                                          " line " + entryLine + ", weights are whole numbers from 0 to " +
+                                          MAX_WEIGHT);
+                }
+                weights.setProperty(name, weight);
+            }
+        }
+    }
+
+    /**
+     * Gets whether a line of a properties file continues on the next line, as it ends with an odd number of
+     * backslashes.
+     */
+    private static boolean isContinued(String line) {
+        int backslashes = 0;
+        for (int i = line.length() - 1; i >= 0 && '\\' == line.charAt(i); i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private static void listFiles(File directory, List<File> files) throws IOException {
+        File[] children = directory.listFiles();
+        if (null == children) {
+            throw new IOException("Unable to list payload corpus directory " + directory);
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listFiles(child, files);
+            } else {
+                files.add(child);
+            }
+        }
+    }
+
+    public int size() {
+        return payloads.length;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Gets a payload. The array is shared by all samplers and must not be modified.
+     *
+     * @param index The index of the payload.
+     * @return The payload.
+     */
+    public byte[] getPayload(int index) {
+        return payloads[index];
+    }
+
+    public long getTotalWeight() {
+        return cumulativeWeights[cumulativeWeights.length - 1];
+    }
+
+    /**
+     * Gets the index of the payload a weight position falls on.
+     *
+     * @param position A position between 0 (inclusive) and the total weight (exclusive).
+     * @return The index of the payload.
+     */
+    public int getWeightedIndex(long position) {
+        int index = Arrays.binarySearch(cumulativeWeights, position + 1);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // Skip payloads with a weight of 0, which share their cumulative weight with the preceding payload
+        while (index > 0 && cumulativeWeights[index - 1] == cumulativeWeights[index]) {
+            index--;
+        }
+        return index;
+    }
+}
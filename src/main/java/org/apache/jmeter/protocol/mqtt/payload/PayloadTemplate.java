@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.payload;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A payload template compiled into literal byte segments and typed placeholders. Rendering writes the literal bytes
+ * and the placeholder values straight into a byte buffer without building strings.
+ * <p/>
+ * Placeholders are written as <code>{{name}}</code> so that they are not evaluated by JMeter. Supported placeholders
+ * are :
+ * <ul>
+ * <li><code>{{deviceId}}</code> - the client id of the sampler</li>
+ * <li><code>{{counter}}</code> - the number of the message, starting at 1 for each thread</li>
+ * <li><code>{{timestamp}}</code> - the current time in milliseconds since the epoch</li>
+ * <li><code>{{randomInt:min:max}}</code> - a random integer between min and max, both inclusive</li>
+ * <li><code>{{randomDecimal:min:max:scale}}</code> - a random decimal between min and max with the given number of
+ * fraction digits</li>
+ * </ul>
+ */
+public final class PayloadTemplate {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PLACEHOLDER_START = "{{";
+    private static final String PLACEHOLDER_END = "}}";
+
+    private static final int LITERAL = 0;
+    private static final int DEVICE_ID = 1;
+    private static final int COUNTER = 2;
+    private static final int TIMESTAMP = 3;
+    private static final int RANDOM_INT = 4;
+    private static final int RANDOM_DECIMAL = 5;
+
+    /**
+     * The longest decimal representation of a long, including the sign.
+     */
+    private static final int MAX_LONG_LENGTH = 20;
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(UTF_8);
+    private static final long[] POWERS_OF_TEN = new long[19];
+    /**
+     * The widest range drawn by scaling a random double, whose 53 bits make every value about equally likely.
+     * Wider ranges are drawn from random longs.
+     */
+    private static final long MAX_DOUBLE_RANGE = 1L << 32;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final Segment[] segments;
+    private final int fixedLength;
+
+    private PayloadTemplate(List<Segment> segments) {
+        this.segments = segments.toArray(new Segment[segments.size()]);
+        int length = 0;
+        for (Segment segment : this.segments) {
+            length += segment.maxLength;
+        }
+        this.fixedLength = length;
+    }
+
+    /**
+     * Compiles a template.
+     *
+     * @param template The template text.
+     * @return The compiled template.
+     * @throws IllegalArgumentException If the template contains an unknown or malformed placeholder.
+     */
+    public static PayloadTemplate compile(String template) {
+        List<Segment> segments = new ArrayList<Segment>();
+        int position = 0;
+        while (position < template.length()) {
+            int start = template.indexOf(PLACEHOLDER_START, position);
+            if (start < 0) {
+                segments.add(Segment.literal(template.substring(position)));
+                break;
+            }
+            int end = template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated placeholder at position " + start);
+            }
+            if (start > position) {
+                segments.add(Segment.literal(template.substring(position, start)));
+            }
+            segments.add(Segment.placeholder(template.substring(start + PLACEHOLDER_START.length(), end).trim()));
+            position = end + PLACEHOLDER_END.length();
+        }
+        return new PayloadTemplate(segments);
+    }
+
+    /**
+     * Gets the length of the longest payload this template renders.
+     *
+     * @param deviceIdLength The length of the device id.
+     * @return The length in bytes.
+     */
+    public int getMaxLength(int deviceIdLength) {
+        int length = fixedLength;
+        for (Segment segment : segments) {
+            if (DEVICE_ID == segment.type) {
+                length += deviceIdLength;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Renders the template into a buffer.
+     *
+     * @param buffer   The buffer, at least {@link #getMaxLength(int)} bytes long.
+     * @param deviceId The device id.
+     * @param counter  The message counter.
+     * @param random   The source of random values.
+     * @return The number of bytes written.
+     */
+    public int render(byte[] buffer, byte[] deviceId, long counter, Random random) {
+        int position = 0;
+        for (Segment segment : segments) {
+            switch (segment.type) {
+                case LITERAL:
+                    System.arraycopy(segment.literal, 0, buffer, position, segment.literal.length);
+                    position += segment.literal.length;
+                    break;
+                case DEVICE_ID:
+                    System.arraycopy(deviceId, 0, buffer, position, deviceId.length);
+                    position += deviceId.length;
+                    break;
+                case COUNTER:
+                    position = writeLong(buffer, position, counter);
+                    break;
+                case TIMESTAMP:
+                    position = writeLong(buffer, position, System.currentTimeMillis());
+                    break;
+                case RANDOM_INT:
+                    position = writeLong(buffer, position, nextLong(random, segment.min, segment.max));
+                    break;
+                case RANDOM_DECIMAL:
+                    position = writeDecimal(buffer, position, nextLong(random, segment.min, segment.max),
+                                            segment.scale);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown segment type " + segment.type);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Draws a random long between min and max, both inclusive, every value equally likely.
+     */
+    private static long nextLong(Random random, long min, long max) {
+        long range = max - min + 1;
+        if (range > 0 && range <= MAX_DOUBLE_RANGE) {
+            long value = min + (long) (random.nextDouble() * range);
+            return Math.min(value, max);
+        }
+        if (range <= 0) {
+            // More than half of the longs, a random long is in range at least every other draw
+            long value;
+            do {
+                value = random.nextLong();
+            } while (value < min || value > max);
+            return value;
+        }
+        // Rejects the draws past the last whole multiple of the range, which would make the low values more likely
+        long bits;
+        long value;
+        do {
+            bits = random.nextLong() >>> 1;
+            value = bits % range;
+        } while (bits - value + (range - 1) < 0);
+        return min + value;
+    }
+
+    /**
+     * Writes the decimal digits of a value.
+     *
+     * @return The position after the last digit written.
+     */
+    private static int writeLong(byte[] buffer, int position, long value) {
+        if (value < 0) {
+            if (Long.MIN_VALUE == value) {
+                System.arraycopy(LONG_MIN_VALUE, 0, buffer, position, LONG_MIN_VALUE.length);
+                return position + LONG_MIN_VALUE.length;
+            }
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Writes a fixed point value, given as an unscaled long, with the given number of fraction digits.
+     *
+     * @return The position after the last digit written.
+     */
+    private static int writeDecimal(byte[] buffer, int position, long unscaled, int scale) {
+        if (0 == scale) {
+            return writeLong(buffer, position, unscaled);
+        }
+        if (unscaled < 0) {
+            buffer[position++] = '-';
+            unscaled = -unscaled;
+        }
+        position = writeLong(buffer, position, unscaled / POWERS_OF_TEN[scale]);
+        buffer[position++] = '.';
+        long fraction = unscaled % POWERS_OF_TEN[scale];
+        for (int i = position + scale - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return position + scale;
+    }
+
+    /**
+     * A literal or placeholder part of a template.
+     */
+    private static final class Segment {
+        private int type;
+        private byte[] literal;
+        private long min;
+        private long max;
+        private int scale;
+        private int maxLength;
+
+        private static Segment literal(String text) {
+            Segment segment = new Segment();
+            segment.type = LITERAL;
+            segment.literal = text.getBytes(UTF_8);
+            segment.maxLength = segment.literal.length;
+            return segment;
+        }
+
+        private static Segment placeholder(String placeholder) {
+            String[] parts = placeholder.split(":");
+            String name = parts[0].trim();
+            Segment segment = new Segment();
+            segment.maxLength = MAX_LONG_LENGTH;
+            if ("deviceId".equals(name) && 1 == parts.length) {
+                segment.type = DEVICE_ID;
+                segment.maxLength = 0;
+            } else if ("counter".equals(name) && 1 == parts.length) {
+                segment.type = COUNTER;
+            } else if ("timestamp".equals(name) && 1 == parts.length) {
+                segment.type = TIMESTAMP;
+            } else if ("randomInt".equals(name) && 3 == parts.length) {
+                segment.type = RANDOM_INT;
+                segment.min = Long.parseLong(parts[1].trim());
+                segment.max = Long.parseLong(parts[2].trim());
+            } else if ("randomDecimal".equals(name) && 4 == parts.length) {
+                segment.type = RANDOM_DECIMAL;
+                segment.scale = Integer.parseInt(parts[3].trim());
+                if (segment.scale < 0 || segment.scale >= POWERS_OF_TEN.length) {
+                    throw new IllegalArgumentException("Invalid scale in placeholder {{" + placeholder + "}}");
+                }
+                segment.min = unscaledValue(parts[1], segment.scale, placeholder);
+                segment.max = unscaledValue(parts[2], segment.scale, placeholder);
+                // sign and integer digits, the decimal point and the fraction digits
+                segment.maxLength = MAX_LONG_LENGTH + 1 + segment.scale;
+            } else {
+                throw new IllegalArgumentException("Unknown placeholder {{" + placeholder + "}}");
+            }
+            if (segment.min > segment.max) {
+                throw new IllegalArgumentException("Minimum is larger than maximum in placeholder {{" + placeholder
+                                                   + "}}");
+            }
+            return segment;
+        }
+
+        /**
+         * Gets a decimal as a long of its value times ten to the power of the scale, dropping further fraction
+         * digits.
+         *
+         * @throws IllegalArgumentException if the value does not fit in a long.
+         */
+        private static long unscaledValue(String decimal, int scale, String placeholder) {
+            try {
+                return new BigDecimal(decimal.trim()).movePointRight(scale).setScale(0, RoundingMode.DOWN)
+                        .longValueExact();
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Value " + decimal.trim() + " is out of range in placeholder {{" +
+                                                   placeholder + "}}", e);
+            }
+        }
+    }
+}
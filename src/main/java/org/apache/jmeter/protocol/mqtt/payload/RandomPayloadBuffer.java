@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.payload;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A buffer of random bytes shared by all generated payload sources of the JVM. Payloads are slices of the buffer, so
+ * no random bytes are generated per message.
+ */
+public final class RandomPayloadBuffer {
+
+    /**
+     * The smallest buffer allocated, large enough for slices at many different offsets.
+     */
+    private static final int MIN_BUFFER_SIZE = 1024 * 1024;
+
+    private static volatile byte[] buffer = new byte[0];
+    private static final ConcurrentMap<Integer, byte[]> fixedPayloads = new ConcurrentHashMap<Integer, byte[]>();
+
+    private RandomPayloadBuffer() {
+    }
+
+    /**
+     * Makes sure the buffer can hold slices of the given size.
+     *
+     * @param maxSize The largest slice that will be taken.
+     */
+    public static synchronized void ensureCapacity(int maxSize) {
+        if (buffer.length < maxSize) {
+            int size = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_BUFFER_SIZE, 2L * maxSize));
+            byte[] newBuffer = new byte[size];
+            new Random().nextBytes(newBuffer);
+            buffer = newBuffer;
+        }
+    }
+
+    /**
+     * Gets a payload of the given size shared by every publisher. Since content does not matter for generated
+     * payloads, the same read-only array can be published again and again.
+     *
+     * @param size The payload size.
+     * @return The payload, which must not be modified.
+     */
+    public static byte[] getSharedSlice(int size) {
+        byte[] payload = fixedPayloads.get(size);
+        if (null == payload) {
+            payload = Arrays.copyOf(buffer, size);
+            byte[] existing = fixedPayloads.putIfAbsent(size, payload);
+            if (null != existing) {
+                payload = existing;
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Copies a slice of the given size from a random offset of the buffer.
+     *
+     * @param size   The payload size.
+     * @param random The source of the offset.
+     * @return A new payload.
+     */
+    public static byte[] copySlice(int size, Random random) {
+        byte[] source = buffer;
+        int offset = random.nextInt(source.length - size + 1);
+        return Arrays.copyOfRange(source, offset, offset + size);
+    }
+
+    /**
+     * Releases the buffer and the shared payloads at the end of a test.
+     */
+    public static synchronized void clear() {
+        buffer = new byte[0];
+        fixedPayloads.clear();
+    }
+}
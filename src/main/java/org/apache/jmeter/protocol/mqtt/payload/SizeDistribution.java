@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.payload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A distribution of payload sizes. A distribution is a comma separated list of buckets, each a size or an inclusive
+ * size range, optionally preceded by a weight in percent. Sizes take an optional B, KB or MB unit. For example :
+ * <ul>
+ * <li><code>512</code> - every payload is 512 bytes</li>
+ * <li><code>100-2KB</code> - sizes are uniformly distributed between 100 and 2048 bytes</li>
+ * <li><code>70% 200B, 25% 2KB, 5% 64KB</code> - a histogram of sizes</li>
+ * </ul>
+ * Buckets without a weight share what the weighted buckets leave of 100%.
+ */
+public final class SizeDistribution {
+    private final int[] minSizes;
+    private final int[] maxSizes;
+    private final double[] cumulativeWeights;
+
+    private SizeDistribution(int[] minSizes, int[] maxSizes, double[] cumulativeWeights) {
+        this.minSizes = minSizes;
+        this.maxSizes = maxSizes;
+        this.cumulativeWeights = cumulativeWeights;
+    }
+
+    /**
+     * Parses a distribution.
+     *
+     * @param distribution The distribution.
+     * @return The parsed distribution.
+     * @throws IllegalArgumentException If the distribution is malformed.
+     */
+    public static SizeDistribution parse(String distribution) {
+        String[] buckets = distribution.split(",");
+        int[] minSizes = new int[buckets.length];
+        int[] maxSizes = new int[buckets.length];
+        double[] weights = new double[buckets.length];
+        double totalWeight = 0;
+        int unweighted = 0;
+
+        for (int i = 0; i < buckets.length; i++) {
+            String bucket = buckets[i].trim();
+            int percent = bucket.indexOf('%');
+            if (percent >= 0) {
+                weights[i] = Double.parseDouble(bucket.substring(0, percent).trim());
+                if (weights[i] < 0) {
+                    throw new IllegalArgumentException("Negative weight in size bucket '" + bucket + "'");
+                }
+                totalWeight += weights[i];
+                bucket = bucket.substring(percent + 1).trim();
+                if (bucket.startsWith(":")) {
+                    bucket = bucket.substring(1).trim();
+                }
+            } else {
+                weights[i] = -1;
+                unweighted++;
+            }
+            int dash = bucket.indexOf('-', 1);
+            minSizes[i] = parseSize(dash < 0 ? bucket : bucket.substring(0, dash));
+            maxSizes[i] = dash < 0 ? minSizes[i] : parseSize(bucket.substring(dash + 1));
+            if (minSizes[i] > maxSizes[i]) {
+                throw new IllegalArgumentException("Minimum size is larger than maximum in size bucket '" + bucket
+                                                   + "'");
+            }
+        }
+
+        double unweightedShare = unweighted > 0 ? Math.max(0, 100 - totalWeight) / unweighted : 0;
+        double[] cumulativeWeights = new double[buckets.length];
+        double cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += weights[i] < 0 ? unweightedShare : weights[i];
+            cumulativeWeights[i] = cumulative;
+        }
+        if (cumulative <= 0) {
+            throw new IllegalArgumentException("Size distribution '" + distribution + "' has no positive weight");
+        }
+        return new SizeDistribution(minSizes, maxSizes, cumulativeWeights);
+    }
+
+    private static int parseSize(String size) {
+        String value = size.trim().toUpperCase(Locale.ENGLISH);
+        long multiplier = 1;
+        if (value.endsWith("KB")) {
+            multiplier = 1024;
+            value = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("MB")) {
+            multiplier = 1024 * 1024;
+            value = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("B")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        long bytes = Long.parseLong(value.trim()) * multiplier;
+        if (bytes < 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid payload size '" + size + "'");
+        }
+        return (int) bytes;
+    }
+
+    public int getBucketCount() {
+        return minSizes.length;
+    }
+
+    /**
+     * Gets whether every payload of a bucket has the same size.
+     *
+     * @param bucket The bucket index.
+     * @return true if the bucket is a single size.
+     */
+    public boolean isFixedSize(int bucket) {
+        return minSizes[bucket] == maxSizes[bucket];
+    }
+
+    public int getMaxSize() {
+        int maxSize = 0;
+        for (int size : maxSizes) {
+            maxSize = Math.max(maxSize, size);
+        }
+        return maxSize;
+    }
+
+    /**
+     * Picks a bucket according to the bucket weights.
+     *
+     * @param random The source of randomness.
+     * @return The bucket index.
+     */
+    public int nextBucket(Random random) {
+        double position = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        for (int i = 0; i < cumulativeWeights.length - 1; i++) {
+            if (position < cumulativeWeights[i]) {
+                return i;
+            }
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    /**
+     * Picks a size within a bucket.
+     *
+     * @param bucket The bucket index.
+     * @param random The source of randomness.
+     * @return The size in bytes.
+     */
+    public int nextSize(int bucket, Random random) {
+        int minSize = minSizes[bucket];
+        return minSize + random.nextInt(maxSizes[bucket] - minSize + 1);
+    }
+
+    public int getMinSize(int bucket) {
+        return minSizes[bucket];
+    }
+}
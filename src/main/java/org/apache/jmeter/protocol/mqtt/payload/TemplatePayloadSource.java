@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.payload;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Renders a compiled {@link PayloadTemplate} for each message into a buffer owned by the sampler thread.
+ * <p/>
+ * The rendered bytes are copied into an array of the exact length before they are handed to the client. Paho only
+ * accepts a whole byte array and keeps it until the message is delivered, so that copy is the one allocation a
+ * publish strictly needs.
+ */
+public class TemplatePayloadSource implements PayloadSource {
+    private final PayloadTemplate template;
+    private final byte[] deviceId;
+    private final byte[] buffer;
+    private final Random random = new Random();
+    private long counter;
+
+    public TemplatePayloadSource(PayloadTemplate template, String deviceId) {
+        this.template = template;
+        this.deviceId = deviceId.getBytes(Charset.forName("UTF-8"));
+        this.buffer = new byte[template.getMaxLength(this.deviceId.length)];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] nextPayload() {
+        int length = template.render(buffer, deviceId, ++counter, random);
+        return Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.sampler;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.protocol.mqtt.client.ClientPool;
+import org.apache.jmeter.protocol.mqtt.client.ConnectionKey;
+import org.apache.jmeter.protocol.mqtt.client.Reconnector;
+import org.apache.jmeter.protocol.mqtt.nio.NioEngine;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jmeter.protocol.mqtt.paho.network.ConnectTimings;
+import org.apache.jmeter.protocol.mqtt.paho.network.TimingSocketFactory;
+import org.apache.jmeter.protocol.mqtt.paho.network.TlsTransport;
+import org.apache.jmeter.protocol.mqtt.paho.persistence.PersistenceFactory;
+import org.apache.jmeter.protocol.mqtt.utilities.Constants;
+import org.apache.jmeter.protocol.mqtt.utilities.Utils;
+import org.apache.jmeter.samplers.AbstractSampler;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.TestStateListener;
+import org.apache.jmeter.testelement.ThreadListener;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Date;
+
+/**
+ * This is MQTT Connect sample class. Each sample connects a client and times the phases of the connect : the TCP
+ * connect, the TLS handshake for ssl:// brokers, which may resume the session of an earlier client, and the wait for the
+ * CONNACK. The client is either disconnected
+ * again, timing the disconnect outside of the sample, or kept open until the thread ends.
+ * <p/>
+ * The elapsed time and latency of the sample are the time until the CONNACK. The TCP connect and TLS handshake are
+ * the connect time of the sample, on JMeter versions that have one, and are listed in the response message.
+ */
+public class ConnectSampler extends AbstractSampler implements TestStateListener, ThreadListener {
+
+    private static final long serialVersionUID = 240L;
+    private static final String lineSeparator = System.getProperty("line.separator");
+    private static final String nameLabel = "MQTT Connect";
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // SampleResult.setConnectTime came with JMeter 2.13
+    private static final Method setConnectTime = getSetConnectTime();
+
+    private static final String BROKER_URL = "mqtt.broker.url";
+    private static final String CLIENT_ID = "mqtt.client.id";
+    private static final String CLEAN_SESSION = "mqtt.clean.session";
+    private static final String KEEP_ALIVE = "mqtt.keep.alive";
+    private static final String USERNAME = "mqtt.auth.username";
+    private static final String PASSWORD = "mqtt.auth.password";
+    private static final String CLIENT_TYPE = "mqtt.client.type";
+    private static final String PERSISTENCE = "mqtt.persistence";
+    private static final String KEEP_CONNECTION = "mqtt.keep.connection";
+
+    // Getters
+    public String getBrokerUrl() {
+        return getPropertyAsString(BROKER_URL);
+    }
+
+    public String getClientId() {
+        return getPropertyAsString(CLIENT_ID);
+    }
+
+    public boolean isCleanSession() {
+        return getPropertyAsBoolean(CLEAN_SESSION);
+    }
+
+    public int getKeepAlive() {
+        return getPropertyAsInt(KEEP_ALIVE);
+    }
+
+    public String getUsername() {
+        return getPropertyAsString(USERNAME);
+    }
+
+    public String getPassword() {
+        return getPropertyAsString(PASSWORD);
+    }
+
+    public String getClientType() {
+        return getPropertyAsString(CLIENT_TYPE);
+    }
+
+    public String getPersistence() {
+        return getPropertyAsString(PERSISTENCE, Constants.MQTT_PERSISTENCE_FILE);
+    }
+
+    public boolean isKeepConnection() {
+        return getPropertyAsBoolean(KEEP_CONNECTION);
+    }
+
+    public String getNameLabel() {
+        return nameLabel;
+    }
+
+    // Setters
+    public void setBrokerUrl(String brokerURL) {
+        setProperty(BROKER_URL, brokerURL.trim());
+    }
+
+    public void setClientId(String clientID) {
+        setProperty(CLIENT_ID, clientID.trim());
+    }
+
+    public void setCleanSession(boolean isCleanSession) {
+        setProperty(CLEAN_SESSION, isCleanSession);
+    }
+
+    public void setKeepAlive(String keepAlive) {
+        setProperty(KEEP_ALIVE, keepAlive);
+    }
+
+    public void setUsername(String username) {
+        setProperty(USERNAME, username.trim());
+    }
+
+    public void setPassword(String password) {
+        setProperty(PASSWORD, password.trim());
+    }
+
+    public void setClientType(String clientType) {
+        setProperty(CLIENT_TYPE, clientType.trim());
+    }
+
+    public void setPersistence(String persistence) {
+        setProperty(PERSISTENCE, persistence);
+    }
+
+    public void setKeepConnection(boolean keepConnection) {
+        setProperty(KEEP_CONNECTION, keepConnection);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded() {
+        log.debug("Thread ended " + new Date());
+        Reconnector.getInstance().stop();
+        ClientPool.clearClient();
+        NioEngine.getInstance().stop();
+        PersistenceFactory.cleanUp();
+        TlsTransport.getInstance().stop();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(String arg0) {
+        testEnded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted() {
+        if (log.isDebugEnabled()) {
+            log.debug("Thread started " + new Date());
+            log.debug("MQTT ConnectSampler: ["
+                      + Thread.currentThread().getName() + "], hashCode=["
+                      + hashCode() + "]");
+        }
+        Reconnector.getInstance().start();
+        TlsTransport.getInstance().start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(String arg0) {
+        testStarted();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void threadStarted() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void threadFinished() {
+        // The connections kept open by this thread
+        ClientPool.closeThreadClients();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleResult sample(Entry entry) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getNameLabel());
+
+        String brokerUrl = getBrokerUrl();
+        String clientId = getClientId();
+        // Generating client ID if empty
+        if (StringUtils.isEmpty(clientId)) {
+            clientId = Utils.UUIDGenerator();
+        }
+        ConnectionKey connectionKey = new ConnectionKey(brokerUrl, getUsername(), getPassword(), isCleanSession(),
+                                                        getKeepAlive(), getClientType(), 0, getPersistence());
+        ConnectTimings timings = new ConnectTimings();
+
+        BaseClient client = null;
+        MqttException exception = null;
+        result.sampleStart();
+        long start = System.nanoTime();
+        try {
+            SocketFactory socketFactory = connectionKey.isTls() ?
+                    TlsTransport.getInstance().getSocketFactory(timings) : new TimingSocketFactory(timings);
+            client = connectionKey.newClient(clientId, socketFactory);
+        } catch (MqttException e) {
+            exception = e;
+        }
+        long connectTime = System.nanoTime() - start;
+        result.sampleEnd(); // stop stopwatch
+
+        // The CONNACK is the first response of the broker
+        result.setLatency(result.getTime());
+        long tcpConnectTime = timings.getTcpConnectTime();
+        long handshakeTime = timings.getHandshakeTime();
+        setConnectTime(result, (tcpConnectTime + handshakeTime) / 1000000L);
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("Broker : ").append(brokerUrl).append(lineSeparator)
+                .append("Client ID : ").append(clientId).append(lineSeparator)
+                .append("TCP connect (ms) : ").append(Utils.formatNanos(tcpConnectTime));
+        if (connectionKey.isTls()) {
+            summary.append(lineSeparator).append("TLS handshake (ms) : ").append(Utils.formatNanos(handshakeTime))
+                    .append(timings.isSessionResumed() ? ", session resumed" : ", full handshake");
+        }
+
+        if (null == client || !client.isConnected()) {
+            if (null != client) {
+                client.forceClose();
+            }
+            result.setSuccessful(false);
+            result.setResponseMessage("Unable to connect." + lineSeparator + summary + lineSeparator +
+                                      "Exception: " + (null == exception ? "Client is not connected" : exception));
+            if (null != exception) {
+                // get stack trace as a String to return as document data
+                java.io.StringWriter stringWriter = new java.io.StringWriter();
+                exception.printStackTrace(new java.io.PrintWriter(stringWriter));
+                result.setResponseData(stringWriter.toString(), null);
+            }
+            result.setDataType(org.apache.jmeter.samplers.SampleResult.TEXT);
+            result.setResponseCode("FAILED");
+            return result;
+        }
+
+        long connackTime = Math.max(connectTime - tcpConnectTime - handshakeTime, 0);
+        summary.append(lineSeparator).append("CONNACK (ms) : ").append(Utils.formatNanos(connackTime));
+        if (isKeepConnection()) {
+            // Closed when the thread ends
+            ClientPool.addClient(client);
+        } else {
+            long disconnectStart = System.nanoTime();
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.debug("Unable to close client cleanly : " + e.getMessage());
+                client.forceClose();
+            }
+            summary.append(lineSeparator).append("Disconnect (ms) : ")
+                    .append(Utils.formatNanos(System.nanoTime() - disconnectStart));
+        }
+
+        result.setSuccessful(true);
+        result.setResponseMessage(summary.toString());
+        result.setResponseCode("OK");
+        return result;
+    }
+
+    /**
+     * Sets the connect time of a sample result, on JMeter versions that have one.
+     *
+     * @param result      The sample result.
+     * @param connectTime The connect time in milliseconds.
+     */
+    private static void setConnectTime(SampleResult result, long connectTime) {
+        if (null == setConnectTime) {
+            return;
+        }
+        try {
+            setConnectTime.invoke(result, connectTime);
+        } catch (Exception e) {
+            log.debug("Unable to set the connect time : " + e.getMessage());
+        }
+    }
+
+    private static Method getSetConnectTime() {
+        try {
+            return SampleResult.class.getMethod("setConnectTime", long.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.sampler;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.protocol.mqtt.client.ClientPool;
+import org.apache.jmeter.protocol.mqtt.client.ConnectionKey;
+import org.apache.jmeter.protocol.mqtt.client.ConnectionScheduler;
+import org.apache.jmeter.protocol.mqtt.client.DeviceFleet;
+import org.apache.jmeter.protocol.mqtt.client.DeviceThreads;
+import org.apache.jmeter.protocol.mqtt.client.Reconnector;
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyHistogram;
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyReporter;
+import org.apache.jmeter.protocol.mqtt.metrics.TopicStatistics;
+import org.apache.jmeter.protocol.mqtt.nio.NioEngine;
+import org.apache.jmeter.protocol.mqtt.paho.network.TlsTransport;
+import org.apache.jmeter.protocol.mqtt.paho.persistence.PersistenceFactory;
+import org.apache.jmeter.protocol.mqtt.payload.RandomPayloadBuffer;
+import org.apache.jmeter.protocol.mqtt.payload.SizeDistribution;
+import org.apache.jmeter.protocol.mqtt.utilities.Constants;
+import org.apache.jmeter.protocol.mqtt.utilities.Utils;
+import org.apache.jmeter.samplers.AbstractSampler;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.Interruptible;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.TestStateListener;
+import org.apache.jmeter.testelement.ThreadListener;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is MQTT Device Fleet sample class. The first sample of a thread starts a {@link DeviceFleet} of simulated
+ * devices, each connecting its own client and publishing on its own thread, a virtual thread on Java 21 and later.
+ * The JMeter thread only orchestrates : each sample waits for the sample interval and reports what the fleet did in
+ * it. The fleet is stopped when the thread ends.
+ * <p/>
+ * The sample count is the number of messages published in the interval and its latency the average publish time.
+ * The sample fails if a device failed to connect or publish in the interval.
+ */
+public class DeviceFleetSampler extends AbstractSampler implements Interruptible, TestStateListener, ThreadListener {
+
+    private static final long serialVersionUID = 240L;
+    private static final String lineSeparator = System.getProperty("line.separator");
+    private static final String nameLabel = "MQTT Device Fleet";
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final String BROKER_URL = "mqtt.broker.url";
+    private static final String CLIENT_ID = "mqtt.client.id";
+    private static final String CLEAN_SESSION = "mqtt.clean.session";
+    private static final String KEEP_ALIVE = "mqtt.keep.alive";
+    private static final String USERNAME = "mqtt.auth.username";
+    private static final String PASSWORD = "mqtt.auth.password";
+    private static final String CLIENT_TYPE = "mqtt.client.type";
+    private static final String PERSISTENCE = "mqtt.persistence";
+    private static final String DEVICE_COUNT = "mqtt.device.count";
+    private static final String TOPIC = "mqtt.topic.name";
+    private static final String SUBSCRIBE_TOPIC = "mqtt.subscribe.topic.name";
+    private static final String QOS = "mqtt.qos";
+    private static final String PAYLOAD_SIZES = "mqtt.payload.sizes";
+    private static final String LATENCY_HEADER = "mqtt.latency.header";
+    private static final String PUBLISH_INTERVAL = "mqtt.publish.interval";
+    private static final String SAMPLE_INTERVAL = "mqtt.sample.interval";
+
+    private transient DeviceFleet fleet;
+    private transient CountDownLatch interrupted = new CountDownLatch(1);
+    private transient long lastPublished;
+    private transient long lastPublishFailures;
+    private transient long lastConnectFailures;
+    private transient long lastPublishTime;
+    private transient LatencyHistogram.Snapshot lastLatency;
+
+    // Getters
+    public String getBrokerUrl() {
+        return getPropertyAsString(BROKER_URL);
+    }
+
+    public String getClientId() {
+        return getPropertyAsString(CLIENT_ID);
+    }
+
+    public boolean isCleanSession() {
+        return getPropertyAsBoolean(CLEAN_SESSION);
+    }
+
+    public int getKeepAlive() {
+        return getPropertyAsInt(KEEP_ALIVE);
+    }
+
+    public String getUsername() {
+        return getPropertyAsString(USERNAME);
+    }
+
+    public String getPassword() {
+        return getPropertyAsString(PASSWORD);
+    }
+
+    public String getClientType() {
+        return getPropertyAsString(CLIENT_TYPE);
+    }
+
+    public String getPersistence() {
+        return getPropertyAsString(PERSISTENCE, Constants.MQTT_PERSISTENCE_NONE);
+    }
+
+    public int getDeviceCount() {
+        return getPropertyAsInt(DEVICE_COUNT);
+    }
+
+    public String getTopicName() {
+        return getPropertyAsString(TOPIC);
+    }
+
+    public String getSubscribeTopicName() {
+        return getPropertyAsString(SUBSCRIBE_TOPIC);
+    }
+
+    public String getQOS() {
+        return getPropertyAsString(QOS);
+    }
+
+    public String getPayloadSizes() {
+        return getPropertyAsString(PAYLOAD_SIZES, Constants.MQTT_PAYLOAD_SIZES_DEFAULT);
+    }
+
+    public boolean isLatencyHeader() {
+        return getPropertyAsBoolean(LATENCY_HEADER);
+    }
+
+    public long getPublishInterval() {
+        return getPropertyAsLong(PUBLISH_INTERVAL);
+    }
+
+    public long getSampleInterval() {
+        return getPropertyAsLong(SAMPLE_INTERVAL);
+    }
+
+    public String getNameLabel() {
+        return nameLabel;
+    }
+
+    // Setters
+    public void setBrokerUrl(String brokerURL) {
+        setProperty(BROKER_URL, brokerURL.trim());
+    }
+
+    public void setClientId(String clientID) {
+        setProperty(CLIENT_ID, clientID.trim());
+    }
+
+    public void setCleanSession(boolean isCleanSession) {
+        setProperty(CLEAN_SESSION, isCleanSession);
+    }
+
+    public void setKeepAlive(String keepAlive) {
+        setProperty(KEEP_ALIVE, keepAlive);
+    }
+
+    public void setUsername(String username) {
+        setProperty(USERNAME, username.trim());
+    }
+
+    public void setPassword(String password) {
+        setProperty(PASSWORD, password.trim());
+    }
+
+    public void setClientType(String clientType) {
+        setProperty(CLIENT_TYPE, clientType.trim());
+    }
+
+    public void setPersistence(String persistence) {
+        setProperty(PERSISTENCE, persistence);
+    }
+
+    public void setDeviceCount(String deviceCount) {
+        setProperty(DEVICE_COUNT, deviceCount.trim());
+    }
+
+    public void setTopicName(String topicName) {
+        setProperty(TOPIC, topicName.trim());
+    }
+
+    public void setSubscribeTopicName(String topicName) {
+        setProperty(SUBSCRIBE_TOPIC, topicName.trim());
+    }
+
+    public void setQOS(String qos) {
+        setProperty(QOS, qos.trim());
+    }
+
+    public void setPayloadSizes(String payloadSizes) {
+        setProperty(PAYLOAD_SIZES, payloadSizes.trim());
+    }
+
+    public void setLatencyHeader(boolean latencyHeader) {
+        setProperty(LATENCY_HEADER, latencyHeader);
+    }
+
+    public void setPublishInterval(String publishInterval) {
+        setProperty(PUBLISH_INTERVAL, publishInterval.trim());
+    }
+
+    public void setSampleInterval(String sampleInterval) {
+        setProperty(SAMPLE_INTERVAL, sampleInterval.trim());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded() {
+        log.debug("Thread ended " + new Date());
+        LatencyReporter.getEndToEndReporter().stop();
+        TopicStatistics.getInstance().stop();
+        // No reconnects while the clients are closed
+        Reconnector.getInstance().stop();
+        ClientPool.clearClient();
+        NioEngine.getInstance().stop();
+        ConnectionScheduler.getInstance().stop();
+        PersistenceFactory.cleanUp();
+        TlsTransport.getInstance().stop();
+        RandomPayloadBuffer.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(String arg0) {
+        testEnded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted() {
+        if (log.isDebugEnabled()) {
+            log.debug("Thread started " + new Date());
+            log.debug("MQTT DeviceFleetSampler: ["
+                      + Thread.currentThread().getName() + "], hashCode=["
+                      + hashCode() + "]");
+        }
+        LatencyReporter.getEndToEndReporter().start();
+        TopicStatistics.getInstance().start();
+        ConnectionScheduler.getInstance().start();
+        Reconnector.getInstance().start();
+        TlsTransport.getInstance().start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(String arg0) {
+        testStarted();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void threadStarted() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void threadFinished() {
+        if (null != fleet) {
+            fleet.stop();
+            fleet = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean interrupt() {
+        boolean wasInterrupted = 0 == interrupted.getCount();
+        interrupted.countDown();
+        return !wasInterrupted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleResult sample(Entry entry) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getNameLabel());
+
+        if (null == fleet) {
+            try {
+                fleet = newFleet();
+            } catch (IllegalArgumentException e) {
+                result.setSuccessful(false);
+                result.setResponseMessage("Unable to start devices." + lineSeparator + "Exception: " + e);
+                result.setDataType(SampleResult.TEXT);
+                result.setResponseCode("FAILED");
+                return result;
+            }
+            lastLatency = fleet.getPublishLatency().snapshot();
+            fleet.start("MQTT devices " + Thread.currentThread().getName());
+        }
+
+        result.sampleStart();
+        try {
+            interrupted.await(Math.max(getSampleInterval(), 1), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        result.sampleEnd(); // stop stopwatch
+
+        long published = fleet.getPublished() - lastPublished;
+        long publishFailures = fleet.getPublishFailures() - lastPublishFailures;
+        long connectFailures = fleet.getConnectFailures() - lastConnectFailures;
+        long publishTime = fleet.getPublishTime() - lastPublishTime;
+        LatencyHistogram.Snapshot latency = fleet.getPublishLatency().snapshot();
+        LatencyHistogram.Snapshot interval = latency.since(lastLatency);
+        lastPublished += published;
+        lastPublishFailures += publishFailures;
+        lastConnectFailures += connectFailures;
+        lastPublishTime += publishTime;
+        lastLatency = latency;
+
+        result.setSampleCount((int) Math.max(Math.min(published, Integer.MAX_VALUE), 1));
+        if (published > 0) {
+            result.setLatency(publishTime / published / 1000000L);
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("Devices connected : ").append(fleet.getConnected()).append(" of ")
+                .append(fleet.getDeviceCount())
+                .append(DeviceThreads.isVirtual() ? " on virtual threads" : " on platform threads")
+                .append(lineSeparator).append("Published ").append(published).append(" messages, ")
+                .append(fleet.getPublished()).append(" total")
+                .append(lineSeparator).append("Received ").append(fleet.takeReceived()).append(" messages");
+        if (published > 0) {
+            summary.append(lineSeparator).append("Publish latency (ms) avg/p50/p99/max : ")
+                    .append(Utils.formatNanos(publishTime / published)).append("/")
+                    .append(Utils.formatNanos(interval.getValueAtPercentile(50))).append("/")
+                    .append(Utils.formatNanos(interval.getValueAtPercentile(99))).append("/")
+                    .append(Utils.formatNanos(interval.getMax()));
+        }
+
+        long errors = publishFailures + connectFailures;
+        if (errors > 0) {
+            summary.append(lineSeparator).append("Failed connects : ").append(connectFailures)
+                    .append(lineSeparator).append("Failed publishes : ").append(publishFailures);
+            result.setSuccessful(false);
+            result.setErrorCount((int) Math.min(errors, Integer.MAX_VALUE));
+            result.setResponseMessage(summary.toString());
+            result.setResponseCode("FAILED");
+            return result;
+        }
+
+        result.setSuccessful(true);
+        result.setResponseMessage(summary.toString());
+        result.setResponseCode("OK");
+        return result;
+    }
+
+    /**
+     * Creates the fleet of this thread from the settings of the sampler.
+     *
+     * @return The fleet, not started.
+     * @throws IllegalArgumentException if the payload sizes are malformed.
+     */
+    private DeviceFleet newFleet() {
+        int qos = 0;
+        if (Constants.MQTT_AT_LEAST_ONCE.equals(getQOS())) {
+            qos = 1;
+        } else if (Constants.MQTT_EXACTLY_ONCE.equals(getQOS())) {
+            qos = 2;
+        }
+        // Client IDs are unique across the threads of the test
+        String clientIdPrefix = StringUtils.defaultIfEmpty(getClientId(), "device") + "-" +
+                                (JMeterContextService.getContext().getThreadNum() + 1) + "-";
+        ConnectionKey connectionKey = new ConnectionKey(getBrokerUrl(), getUsername(), getPassword(),
+                                                        isCleanSession(), getKeepAlive(), getClientType(), 0,
+                                                        getPersistence());
+        return new DeviceFleet(connectionKey, clientIdPrefix, getDeviceCount(), getTopicName(),
+                               getSubscribeTopicName(), qos,
+                               SizeDistribution.parse(getPayloadSizes()),
+                               isLatencyHeader(), getPublishInterval());
+    }
+}
@@ -19,36 +19,62 @@ package org.apache.jmeter.protocol.mqtt.sampler;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.protocol.mqtt.client.ClientPool;
-import org.apache.jmeter.protocol.mqtt.paho.clients.AsyncClient;
+import org.apache.jmeter.protocol.mqtt.client.ConnectionKey;
+import org.apache.jmeter.protocol.mqtt.client.ConnectionScheduler;
+import org.apache.jmeter.protocol.mqtt.client.Reconnector;
+import org.apache.jmeter.protocol.mqtt.data.objects.LatencyHeader;
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
+import org.apache.jmeter.protocol.mqtt.nio.NioEngine;
 import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
-import org.apache.jmeter.protocol.mqtt.paho.clients.BlockingClient;
+import org.apache.jmeter.protocol.mqtt.paho.network.TlsTransport;
+import org.apache.jmeter.protocol.mqtt.paho.persistence.PersistenceFactory;
+import org.apache.jmeter.protocol.mqtt.payload.CorpusPayloadSource;
+import org.apache.jmeter.protocol.mqtt.payload.GeneratedPayloadSource;
+import org.apache.jmeter.protocol.mqtt.payload.PayloadCorpus;
+import org.apache.jmeter.protocol.mqtt.payload.PayloadSource;
+import org.apache.jmeter.protocol.mqtt.payload.PayloadTemplate;
+import org.apache.jmeter.protocol.mqtt.payload.RandomPayloadBuffer;
+import org.apache.jmeter.protocol.mqtt.payload.SizeDistribution;
+import org.apache.jmeter.protocol.mqtt.utilities.Clock;
+import org.apache.jmeter.protocol.mqtt.payload.TemplatePayloadSource;
 import org.apache.jmeter.protocol.mqtt.utilities.Constants;
 import org.apache.jmeter.protocol.mqtt.utilities.Utils;
 import org.apache.jmeter.samplers.AbstractSampler;
 import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testelement.TestStateListener;
+import org.apache.jmeter.testelement.ThreadListener;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 import org.eclipse.paho.client.mqttv3.MqttException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is MQTT Publisher sample class. The implementation includes publishing of MQTT messages with the sample
  * processing.
  */
-public class PublisherSampler extends AbstractSampler implements TestStateListener {
+public class PublisherSampler extends AbstractSampler implements Interruptible, TestStateListener, ThreadListener {
 
 
     private transient BaseClient client;
+    private transient volatile boolean interrupted = false;
+    private transient ConnectionKey leasedConnectionKey;
     private int qos = 0;
     private String topicName = StringUtils.EMPTY;
     private byte[] publishMessage;
     private boolean retained;
+    private transient PublishMessage publishDescriptor;
+    private transient PayloadSource payloadSource;
+    private transient boolean latencyHeader;
+    private transient int publisherId;
+    private transient long sequence;
     private AtomicInteger publishedMessageCount = new AtomicInteger(0);
     private static final String nameLabel = "MQTT Publisher";
     private static final String lineSeparator = System.getProperty("line.separator");
@@ -68,6 +94,14 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
     private static final String CLIENT_TYPE = "mqtt.client.type";
     private static final String MESSAGE_INPUT_TYPE = "mqtt.message.input.type";
     private static final String MESSAGE_VALUE = "mqtt.message.input.value";
+    private static final String CORPUS_SELECTION = "mqtt.message.corpus.selection";
+    private static final String LATENCY_HEADER = "mqtt.message.latency.header";
+    private static final String MAX_IN_FLIGHT = "mqtt.max.in.flight";
+    private static final String BATCH_SIZE = "mqtt.batch.size";
+    private static final String BATCH_DURATION = "mqtt.batch.duration";
+    private static final String BATCH_SUB_RESULTS = "mqtt.batch.sub.results";
+    private static final String SHARED_CONNECTIONS = "mqtt.shared.connections";
+    private static final String PERSISTENCE = "mqtt.persistence";
 
     // Getters
     public String getBrokerUrl() {
@@ -118,6 +152,38 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
         return getPropertyAsString(MESSAGE_VALUE);
     }
 
+    public String getCorpusSelection() {
+        return getPropertyAsString(CORPUS_SELECTION);
+    }
+
+    public boolean isLatencyHeader() {
+        return getPropertyAsBoolean(LATENCY_HEADER);
+    }
+
+    public int getMaxInFlight() {
+        return getPropertyAsInt(MAX_IN_FLIGHT);
+    }
+
+    public String getPersistence() {
+        return getPropertyAsString(PERSISTENCE, Constants.MQTT_PERSISTENCE_FILE);
+    }
+
+    public int getSharedConnections() {
+        return getPropertyAsInt(SHARED_CONNECTIONS, 0);
+    }
+
+    public int getBatchSize() {
+        return getPropertyAsInt(BATCH_SIZE, 1);
+    }
+
+    public long getBatchDuration() {
+        return getPropertyAsLong(BATCH_DURATION);
+    }
+
+    public boolean isBatchSubResults() {
+        return getPropertyAsBoolean(BATCH_SUB_RESULTS);
+    }
+
     public String getNameLabel() {
         return nameLabel;
     }
@@ -171,6 +237,38 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
         setProperty(MESSAGE_VALUE, messageValue.trim());
     }
 
+    public void setCorpusSelection(String corpusSelection) {
+        setProperty(CORPUS_SELECTION, corpusSelection.trim());
+    }
+
+    public void setLatencyHeader(boolean latencyHeader) {
+        setProperty(LATENCY_HEADER, latencyHeader);
+    }
+
+    public void setMaxInFlight(String maxInFlight) {
+        setProperty(MAX_IN_FLIGHT, maxInFlight.trim());
+    }
+
+    public void setPersistence(String persistence) {
+        setProperty(PERSISTENCE, persistence);
+    }
+
+    public void setSharedConnections(String sharedConnections) {
+        setProperty(SHARED_CONNECTIONS, sharedConnections.trim());
+    }
+
+    public void setBatchSize(String batchSize) {
+        setProperty(BATCH_SIZE, batchSize.trim());
+    }
+
+    public void setBatchDuration(String batchDuration) {
+        setProperty(BATCH_DURATION, batchDuration.trim());
+    }
+
+    public void setBatchSubResults(boolean batchSubResults) {
+        setProperty(BATCH_SUB_RESULTS, batchSubResults);
+    }
+
     public PublisherSampler() {
     }
 
@@ -180,12 +278,15 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
     @Override
     public void testEnded() {
         log.debug("Thread ended " + new Date());
-        try {
-            ClientPool.clearClient();
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.error(e.getMessage(), e);
-        }
+        // No reconnects while the clients are closed
+        Reconnector.getInstance().stop();
+        ClientPool.clearClient();
+        NioEngine.getInstance().stop();
+        ConnectionScheduler.getInstance().stop();
+        PersistenceFactory.cleanUp();
+        TlsTransport.getInstance().stop();
+        PayloadCorpus.clearCorpora();
+        RandomPayloadBuffer.clear();
     }
 
     /**
@@ -207,6 +308,9 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
                       + Thread.currentThread().getName() + "], hashCode=["
                       + hashCode() + "]");
         }
+        ConnectionScheduler.getInstance().start();
+        Reconnector.getInstance().start();
+        TlsTransport.getInstance().start();
     }
 
     /**
@@ -216,6 +320,51 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
     public void testStarted(String arg0) {
         testStarted();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void threadStarted() {
+        interrupted = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean interrupt() {
+        boolean oldValue = interrupted;
+        interrupted = true;   // so we break the loop in publishBatch
+        log.debug("Thread interrupted " + new Date());
+        return !oldValue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void threadFinished() {
+        releaseClient();
+        // Only the clients of this thread, other threads may still be publishing
+        ClientPool.closeThreadClients();
+        client = null;
+    }
+
+    /**
+     * Returns the client to the shared connections if it was leased from them.
+     */
+    private void releaseClient() {
+        if (null != leasedConnectionKey && null != client) {
+            try {
+                ClientPool.releaseClient(leasedConnectionKey, client);
+            } catch (IOException e) {
+                log.error(e.getMessage(), e);
+            }
+            client = null;
+        }
+        leasedConnectionKey = null;
+    }
     
     /**
      * Initializes the MQTT client for publishing.
@@ -230,6 +379,7 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
             retained = isMessageRetained();
             boolean isCleanSession = isCleanSession();
             int keepAlive = getKeepAlive();
+            int maxInFlight = getMaxInFlight();
             String userName = getUsername();
             String password = getPassword();
             String clientType = getClientType();
@@ -253,16 +403,47 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
                 publishMessage = getMessageValue().getBytes();
             } else if (Constants.MQTT_MESSAGE_INPUT_TYPE_FILE.equals(messageInputType)) {
                 publishMessage = FileUtils.readFileToByteArray(new File(getMessageValue()));
+            } else if (Constants.MQTT_MESSAGE_INPUT_TYPE_CORPUS.equals(messageInputType)) {
+                payloadSource = new CorpusPayloadSource(PayloadCorpus.getCorpus(getMessageValue()),
+                                                        getCorpusSelection());
+            } else if (Constants.MQTT_MESSAGE_INPUT_TYPE_TEMPLATE.equals(messageInputType)) {
+                try {
+                    payloadSource = new TemplatePayloadSource(PayloadTemplate.compile(getMessageValue()), clientId);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid payload template : " + e.getMessage(), e);
+                }
+            } else if (Constants.MQTT_MESSAGE_INPUT_TYPE_GENERATED.equals(messageInputType)) {
+                try {
+                    payloadSource = new GeneratedPayloadSource(SizeDistribution.parse(getMessageValue()));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid payload size distribution : " + e.getMessage(), e);
+                }
             }
             
-            if (Constants.MQTT_BLOCKING_CLIENT.equals(clientType)) {
-                client = new BlockingClient(brokerURL, clientId, isCleanSession, userName, password, keepAlive);
-            } else if (Constants.MQTT_ASYNC_CLIENT.equals(clientType)) {
-                client = new AsyncClient(brokerURL, clientId, isCleanSession, userName, password, keepAlive);
+            latencyHeader = isLatencyHeader();
+            publisherId = clientId.hashCode();
+
+            // Built once, the same descriptor is handed to the client on every publish of a fixed payload
+            publishDescriptor = null;
+            if (null == payloadSource && !latencyHeader) {
+                publishDescriptor = new PublishMessage(topicName, qos, retained, publishMessage);
             }
-            
-            if (null != client) {
-                ClientPool.addClient(client);
+
+            // A lost shared connection is returned before leasing a connected one
+            releaseClient();
+            ConnectionKey connectionKey = new ConnectionKey(brokerURL, userName, password, isCleanSession, keepAlive,
+                                                            clientType, maxInFlight, getPersistence());
+            int sharedConnections = getSharedConnections();
+            if (sharedConnections > 0) {
+                client = ClientPool.leaseClient(connectionKey, clientId, sharedConnections);
+                if (null != client) {
+                    leasedConnectionKey = connectionKey;
+                }
+            } else {
+                client = ConnectionScheduler.getInstance().connect(connectionKey, clientId);
+                if (null != client) {
+                    ClientPool.addClient(client);
+                }
             }
         } catch (MqttException e) {
             log.error(e.getMessage(), e);
@@ -280,12 +461,22 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
     public SampleResult sample(Entry entry) {
         SampleResult result = new SampleResult();
         result.setSampleLabel(getNameLabel());
-        result.sampleStart();
-        if (client == null || !client.isConnected()) {
+        if (null != client && client.isReconnecting()) {
+            // The same client is connected again, publishing fails if it is not in time
+            try {
+                client.awaitReconnect(Reconnector.getInstance().getSampleWait());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (client == null || (!client.isConnected() && !client.isReconnecting())) {
+            // Connecting is not part of the publish latency, the MQTT Connect sampler measures it. A failed connect
+            // is still reported, with the time it took.
+            long connectStart = System.currentTimeMillis();
             try {
                 initClient();
             } catch (MqttException e) {
-                result.sampleEnd(); // stop stopwatch
+                result.setStampAndTime(connectStart, System.currentTimeMillis() - connectStart);
                 result.setSuccessful(false);
                 // get stack trace as a String to return as document data
                 java.io.StringWriter stringWriter = new java.io.StringWriter();
@@ -296,7 +487,7 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
                 result.setResponseCode("FAILED");
                 return result;
             } catch (IOException e) {
-                result.sampleEnd(); // stop stopwatch
+                result.setStampAndTime(connectStart, System.currentTimeMillis() - connectStart);
                 result.setSuccessful(false);
                 // get stack trace as a String to return as document data
                 java.io.StringWriter stringWriter = new java.io.StringWriter();
@@ -308,8 +499,14 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
                 return result;
             }
         }
+        result.sampleStart();
+        int batchSize = getBatchSize();
+        long batchDuration = getBatchDuration();
+        if (batchSize > 1 || batchDuration > 0) {
+            return publishBatch(result, batchSize, batchDuration, isBatchSubResults());
+        }
         try {
-            client.publish(topicName, qos, publishMessage, retained);
+            client.publish(nextPublishMessage());
             result.setSuccessful(true);
             result.sampleEnd(); // stop stopwatch
             result.setResponseMessage("Sent " + publishedMessageCount.incrementAndGet() + " messages total");
@@ -328,4 +525,119 @@ public class PublisherSampler extends AbstractSampler implements TestStateListen
             return result;
         }
     }
+
+    /**
+     * Publishes a batch of messages and reports them as a single sample. The batch ends when the given number of
+     * messages has been published or, if a batch duration is given, when the duration has elapsed. It also ends
+     * early when the sampler is interrupted.
+     *
+     * @param result        The result of the sample, which has already been started.
+     * @param batchSize     The number of messages to publish.
+     * @param batchDuration The time slice in milliseconds to publish for. Overrides the batch size if positive.
+     * @param subResults    Whether a sub result should be added for each message.
+     * @return The sample result.
+     */
+    private SampleResult publishBatch(SampleResult result, int batchSize, long batchDuration, boolean subResults) {
+        long deadline = batchDuration > 0 ? System.nanoTime() + batchDuration * 1000000L : 0;
+        List<SampleResult> messageResults = subResults ? new ArrayList<SampleResult>() : null;
+        int count = 0;
+        long totalBytes = 0;
+        long minLatency = Long.MAX_VALUE;
+        long maxLatency = 0;
+        long totalLatency = 0;
+        MqttException exception = null;
+
+        while (!interrupted && (deadline > 0 ? System.nanoTime() - deadline < 0 : count < batchSize)) {
+            long startTime = subResults ? System.currentTimeMillis() : 0;
+            long start = System.nanoTime();
+            PublishMessage message = nextPublishMessage();
+            try {
+                client.publish(message);
+            } catch (MqttException e) {
+                exception = e;
+                break;
+            }
+            long latency = System.nanoTime() - start;
+            int messageBytes = message.getPayload().length;
+            count++;
+            totalBytes += messageBytes;
+            totalLatency += latency;
+            minLatency = Math.min(minLatency, latency);
+            maxLatency = Math.max(maxLatency, latency);
+
+            if (subResults) {
+                SampleResult messageResult = new SampleResult(startTime, latency / 1000000L);
+                messageResult.setSampleLabel(getNameLabel() + " " + count);
+                messageResult.setBytes(messageBytes);
+                messageResult.setSuccessful(true);
+                messageResult.setResponseCodeOK();
+                messageResults.add(messageResult);
+            }
+        }
+        result.sampleEnd(); // stop stopwatch
+        publishedMessageCount.addAndGet(count);
+
+        // Sub results are added after the stopwatch is stopped as adding them moves the end time of the parent.
+        if (subResults) {
+            for (SampleResult messageResult : messageResults) {
+                result.addSubResult(messageResult);
+            }
+        }
+        result.setSampleCount(Math.max(count, 1));
+        result.setBytes((int) Math.min(totalBytes, Integer.MAX_VALUE));
+        if (count > 0) {
+            result.setLatency(totalLatency / count / 1000000L);
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("Sent ").append(count).append(" messages in batch, ").append(totalBytes).append(" bytes")
+                .append(lineSeparator).append("Sent ").append(publishedMessageCount.get()).append(" messages total");
+        // All the packets the client wrote since the last batch, headers and topics included
+        long bytesSent = client.takeBytesSent();
+        if (bytesSent > 0) {
+            summary.append(lineSeparator).append("Bytes on the wire : ").append(bytesSent);
+        }
+        if (count > 0) {
+            summary.append(lineSeparator).append("Publish latency (ms) min/avg/max : ")
+                    .append(Utils.formatNanos(minLatency)).append("/")
+                    .append(Utils.formatNanos(totalLatency / count)).append("/")
+                    .append(Utils.formatNanos(maxLatency));
+        }
+
+        if (null != exception) {
+            result.setSuccessful(false);
+            result.setErrorCount(1);
+            // get stack trace as a String to return as document data
+            java.io.StringWriter stringWriter = new java.io.StringWriter();
+            exception.printStackTrace(new java.io.PrintWriter(stringWriter));
+            result.setResponseData(stringWriter.toString(), null);
+            result.setResponseMessage("Unable publish messages." + lineSeparator + summary + lineSeparator +
+                                      "Exception: " + exception.toString());
+            result.setDataType(org.apache.jmeter.samplers.SampleResult.TEXT);
+            result.setResponseCode("FAILED");
+            return result;
+        }
+
+        result.setSuccessful(true);
+        result.setResponseMessage(summary.toString());
+        result.setResponseCode("OK");
+        return result;
+    }
+
+    /**
+     * Gets the message to publish next. Fixed payloads reuse the descriptor built when the client was initialized,
+     * unless each message gets its own latency header.
+     *
+     * @return The message to publish.
+     */
+    private PublishMessage nextPublishMessage() {
+        if (null != publishDescriptor) {
+            return publishDescriptor;
+        }
+        byte[] payload = null == payloadSource ? publishMessage : payloadSource.nextPayload();
+        if (latencyHeader) {
+            payload = LatencyHeader.prepend(payload, publisherId, ++sequence, Clock.epochNanos());
+        }
+        return new PublishMessage(topicName, qos, retained, payload);
+    }
 }
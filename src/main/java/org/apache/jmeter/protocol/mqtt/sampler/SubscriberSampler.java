@@ -18,10 +18,17 @@ package org.apache.jmeter.protocol.mqtt.sampler;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.protocol.mqtt.client.ClientPool;
+import org.apache.jmeter.protocol.mqtt.client.ConnectionKey;
+import org.apache.jmeter.protocol.mqtt.client.ConnectionScheduler;
+import org.apache.jmeter.protocol.mqtt.client.Reconnector;
 import org.apache.jmeter.protocol.mqtt.data.objects.Message;
-import org.apache.jmeter.protocol.mqtt.paho.clients.AsyncClient;
+import org.apache.jmeter.protocol.mqtt.data.objects.TopicFilters;
+import org.apache.jmeter.protocol.mqtt.metrics.LatencyReporter;
+import org.apache.jmeter.protocol.mqtt.metrics.TopicStatistics;
+import org.apache.jmeter.protocol.mqtt.nio.NioEngine;
 import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
-import org.apache.jmeter.protocol.mqtt.paho.clients.BlockingClient;
+import org.apache.jmeter.protocol.mqtt.paho.network.TlsTransport;
+import org.apache.jmeter.protocol.mqtt.paho.persistence.PersistenceFactory;
 import org.apache.jmeter.protocol.mqtt.utilities.Constants;
 import org.apache.jmeter.protocol.mqtt.utilities.Utils;
 import org.apache.jmeter.samplers.AbstractSampler;
@@ -30,12 +37,16 @@ import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jmeter.testelement.ThreadListener;
+import org.apache.jmeter.util.JMeterUtils;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 import org.eclipse.paho.client.mqttv3.MqttException;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 /**
  * This is MQTT Subscriber sample class. The implementation includes subscriber for MQTT messages with the sample
@@ -44,6 +55,7 @@ import java.util.Date;
 public class SubscriberSampler extends AbstractSampler implements Interruptible, ThreadListener, TestStateListener {
 
     private transient BaseClient client;
+    private transient ConnectionKey leasedConnectionKey;
     private static final long serialVersionUID = 240L;
     private static final String lineSeparator = System.getProperty("line.separator");
     private MqttException exceptionOccurred = null;
@@ -51,16 +63,33 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
     private static final String nameLabel = "MQTT Subscriber";
     private static final Logger log = LoggingManager.getLoggerForClass();
     private transient volatile boolean interrupted = false;
+    private transient List<Message> receivedBatch;
 
     private static final String BROKER_URL = "mqtt.broker.url";
     private static final String CLIENT_ID = "mqtt.client.id";
     private static final String TOPIC_NAME = "mqtt.topic.name";
+    private static final String TOPIC_FILTERS = "mqtt.topic.filters";
+    private static final String TOPIC_FILTERS_FILE = "mqtt.topic.filters.file";
+    private static final String SUBSCRIBE_BATCH_SIZE = "mqtt.subscribe.batch.size";
     private static final String CLEAN_SESSION = "mqtt.clean.session";
     private static final String KEEP_ALIVE = "mqtt.keep.alive";
     private static final String USERNAME = "mqtt.auth.username";
     private static final String PASSWORD = "mqtt.auth.password";
     private static final String QOS = "mqtt.qos";
     private static final String CLIENT_TYPE = "mqtt.client.type";
+    private static final String LATENCY_ONLY = "mqtt.latency.only";
+    private static final String METADATA_ONLY = "mqtt.metadata.only";
+    private static final String RECEIVE_TIMEOUT = "mqtt.receive.timeout";
+    private static final String BATCH_SIZE = "mqtt.batch.size";
+    private static final String BATCH_DURATION = "mqtt.batch.duration";
+    private static final String SHARED_CONNECTIONS = "mqtt.shared.connections";
+    private static final String PERSISTENCE = "mqtt.persistence";
+    private static final String RECEIVE_BUFFER_CAPACITY = "mqtt.receive.buffer.capacity";
+    private static final String RECEIVE_BUFFER_POLICY = "mqtt.receive.buffer.policy";
+    private static final String NO_MESSAGE_RESPONSE_CODE = "NO_MESSAGE";
+    private static final long LATENCY_ONLY_POLL_INTERVAL = 100;
+    // JMeter property keeping a CRC32 of each payload in metadata only mode
+    private static final String PAYLOAD_HASH_PROPERTY = "mqtt.metadata.payload.hash";
 
     // Getters
     public String getBrokerUrl() {
@@ -75,6 +104,24 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
         return getPropertyAsString(TOPIC_NAME);
     }
 
+    /**
+     * Gets the topic filters subscribed to besides the topic, one per line.
+     */
+    public String getTopicFilters() {
+        return getPropertyAsString(TOPIC_FILTERS);
+    }
+
+    public String getTopicFiltersFile() {
+        return getPropertyAsString(TOPIC_FILTERS_FILE);
+    }
+
+    /**
+     * Gets the maximum number of topic filters sent in a SUBSCRIBE packet.
+     */
+    public int getSubscribeBatchSize() {
+        return getPropertyAsInt(SUBSCRIBE_BATCH_SIZE, Integer.parseInt(Constants.MQTT_SUBSCRIBE_BATCH_SIZE_DEFAULT));
+    }
+
     public boolean isCleanSession() {
         return getPropertyAsBoolean(CLEAN_SESSION);
     }
@@ -99,6 +146,45 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
         return getPropertyAsString(CLIENT_TYPE);
     }
 
+    public boolean isLatencyOnly() {
+        return getPropertyAsBoolean(LATENCY_ONLY);
+    }
+
+    public boolean isMetadataOnly() {
+        return getPropertyAsBoolean(METADATA_ONLY);
+    }
+
+    public long getReceiveTimeout() {
+        return getPropertyAsLong(RECEIVE_TIMEOUT, 0);
+    }
+
+    public String getPersistence() {
+        return getPropertyAsString(PERSISTENCE, Constants.MQTT_PERSISTENCE_FILE);
+    }
+
+    public int getSharedConnections() {
+        return getPropertyAsInt(SHARED_CONNECTIONS, 0);
+    }
+
+    /**
+     * Gets the maximum number of received messages waiting to be sampled, 0 for no maximum.
+     */
+    public int getReceiveBufferCapacity() {
+        return getPropertyAsInt(RECEIVE_BUFFER_CAPACITY, 0);
+    }
+
+    public String getReceiveBufferPolicy() {
+        return getPropertyAsString(RECEIVE_BUFFER_POLICY, Constants.MQTT_RECEIVE_BUFFER_BLOCK);
+    }
+
+    public int getBatchSize() {
+        return getPropertyAsInt(BATCH_SIZE, 1);
+    }
+
+    public long getBatchDuration() {
+        return getPropertyAsLong(BATCH_DURATION);
+    }
+
     public String getNameLabel() {
         return nameLabel;
     }
@@ -116,6 +202,18 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
         setProperty(TOPIC_NAME, topicName.trim());
     }
 
+    public void setTopicFilters(String topicFilters) {
+        setProperty(TOPIC_FILTERS, topicFilters);
+    }
+
+    public void setTopicFiltersFile(String topicFiltersFile) {
+        setProperty(TOPIC_FILTERS_FILE, topicFiltersFile.trim());
+    }
+
+    public void setSubscribeBatchSize(String subscribeBatchSize) {
+        setProperty(SUBSCRIBE_BATCH_SIZE, subscribeBatchSize.trim());
+    }
+
     public void setCleanSession(boolean isCleanSession) {
         setProperty(CLEAN_SESSION, isCleanSession);
     }
@@ -138,6 +236,42 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
         setProperty(CLIENT_TYPE, clientType.trim());
     }
 
+    public void setLatencyOnly(boolean latencyOnly) {
+        setProperty(LATENCY_ONLY, latencyOnly);
+    }
+
+    public void setMetadataOnly(boolean metadataOnly) {
+        setProperty(METADATA_ONLY, metadataOnly);
+    }
+
+    public void setReceiveTimeout(String receiveTimeout) {
+        setProperty(RECEIVE_TIMEOUT, receiveTimeout.trim());
+    }
+
+    public void setPersistence(String persistence) {
+        setProperty(PERSISTENCE, persistence);
+    }
+
+    public void setSharedConnections(String sharedConnections) {
+        setProperty(SHARED_CONNECTIONS, sharedConnections.trim());
+    }
+
+    public void setReceiveBufferCapacity(String receiveBufferCapacity) {
+        setProperty(RECEIVE_BUFFER_CAPACITY, receiveBufferCapacity.trim());
+    }
+
+    public void setReceiveBufferPolicy(String receiveBufferPolicy) {
+        setProperty(RECEIVE_BUFFER_POLICY, receiveBufferPolicy);
+    }
+
+    public void setBatchSize(String batchSize) {
+        setProperty(BATCH_SIZE, batchSize.trim());
+    }
+
+    public void setBatchDuration(String batchDuration) {
+        setProperty(BATCH_DURATION, batchDuration.trim());
+    }
+
     public SubscriberSampler() {
         super();
     }
@@ -149,15 +283,12 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
     public boolean interrupt() {
         boolean oldValue = interrupted;
         interrupted = true;   // so we break the loops in SampleWithListener and SampleWithReceive
-
-        log.debug("Thread ended " + new Date());
-        try {
-            ClientPool.clearClient();
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.error(e.getLocalizedMessage(), e);
+        BaseClient currentClient = client;
+        if (null != currentClient) {
+            currentClient.wakeUp();
         }
 
+        log.debug("Thread ended " + new Date());
         return !oldValue;
     }
 
@@ -167,12 +298,17 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
     @Override
     public void testEnded() {
         log.debug("Thread ended " + new Date());
-        try {
-            ClientPool.clearClient();
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.error(e.getLocalizedMessage(), e);
-        }
+        LatencyReporter.getEndToEndReporter().stop();
+        LatencyReporter.getQueueDwellReporter().stop();
+        LatencyReporter.getSubscribeReporter().stop();
+        TopicStatistics.getInstance().stop();
+        // No reconnects while the clients are closed
+        Reconnector.getInstance().stop();
+        ClientPool.clearClient();
+        NioEngine.getInstance().stop();
+        ConnectionScheduler.getInstance().stop();
+        PersistenceFactory.cleanUp();
+        TlsTransport.getInstance().stop();
     }
 
     /**
@@ -194,6 +330,13 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
                       + Thread.currentThread().getName() + "], hashCode=["
                       + hashCode() + "]");
         }
+        LatencyReporter.getEndToEndReporter().start();
+        LatencyReporter.getQueueDwellReporter().start();
+        LatencyReporter.getSubscribeReporter().start();
+        TopicStatistics.getInstance().start();
+        ConnectionScheduler.getInstance().start();
+        Reconnector.getInstance().start();
+        TlsTransport.getInstance().start();
     }
 
     /**
@@ -238,12 +381,17 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
     @Override
     public void threadFinished() {
         log.debug("Thread ended " + new Date());
-        try {
-            ClientPool.clearClient();
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.error(e.getLocalizedMessage(), e);
+        if (null != leasedConnectionKey && null != client) {
+            try {
+                ClientPool.releaseClient(leasedConnectionKey, client);
+            } catch (IOException e) {
+                log.error(e.getLocalizedMessage(), e);
+            }
+            leasedConnectionKey = null;
         }
+        // Only the clients of this thread, other threads may still be receiving
+        ClientPool.closeThreadClients();
+        client = null;
     }
 
     /**
@@ -277,15 +425,27 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
         exceptionOccurred = null;
 
         try {
-            if (Constants.MQTT_BLOCKING_CLIENT.equals(clientType)) {
-                client = new BlockingClient(brokerURL, clientId, isCleanSession, userName, password, keepAlive);
-            } else if (Constants.MQTT_ASYNC_CLIENT.equals(clientType)) {
-                client = new AsyncClient(brokerURL, clientId, isCleanSession, userName, password, keepAlive);
+            ConnectionKey connectionKey = new ConnectionKey(brokerURL, userName, password, isCleanSession, keepAlive,
+                                                            clientType, 0, getPersistence());
+            int sharedConnections = getSharedConnections();
+            if (sharedConnections > 0) {
+                // Threads sharing a connection also share the messages received on it
+                client = ClientPool.leaseClient(connectionKey, clientId, sharedConnections);
+                if (null != client) {
+                    leasedConnectionKey = connectionKey;
+                }
+            } else {
+                client = ConnectionScheduler.getInstance().connect(connectionKey, clientId);
+                if (null != client) {
+                    ClientPool.addClient(client);
+                }
             }
 
             if (client != null) {
-                client.subscribe(topicName, qos);
-                ClientPool.addClient(client);
+                client.setLatencyOnly(isLatencyOnly());
+                client.setMetadataOnly(isMetadataOnly(), JMeterUtils.getPropDefault(PAYLOAD_HASH_PROPERTY, false));
+                client.setReceiveBuffer(getReceiveBufferCapacity(), getReceiveBufferPolicy());
+                subscribe(topicName, qos);
             }
 
 
@@ -295,6 +455,39 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
         }
     }
 
+    /**
+     * Subscribes to the topic and the topic filters, several filters per SUBSCRIBE packet.
+     *
+     * @param topicName The topic, empty for none.
+     * @param qos       The QoS of the topic, and of the filters without one.
+     * @throws MqttException if a subscribe fails or the topic filters file cannot be read.
+     */
+    private void subscribe(String topicName, int qos) throws MqttException {
+        TopicFilters filters = new TopicFilters();
+        if (StringUtils.isNotBlank(topicName)) {
+            filters.add(topicName, qos);
+        }
+        filters.parse(getTopicFilters(), qos);
+        String filtersFile = getTopicFiltersFile();
+        if (StringUtils.isNotBlank(filtersFile)) {
+            try {
+                filters.load(new File(filtersFile), qos);
+            } catch (IOException e) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, e);
+            }
+        }
+        if (filters.isEmpty()) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION,
+                                    new IOException("No topic filters to subscribe to"));
+        }
+        long start = System.nanoTime();
+        int packets = client.subscribe(filters.getTopicNames(), filters.getQos(), getSubscribeBatchSize());
+        if (filters.size() > 1) {
+            log.info("Subscribed to " + filters.size() + " topic filters in " + packets + " SUBSCRIBE packets in " +
+                     Utils.formatNanos(System.nanoTime() - start) + " ms");
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -313,34 +506,264 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
             return result;
         }
 
-        Message receivedMessage;
-        while (!interrupted && null != client.getReceivedMessages() && null != client.getReceivedMessageCounter()) {
-            receivedMessage = client.getReceivedMessages().poll();
-            if (receivedMessage != null) {
-                client.getReceivedMessageCounter().incrementAndGet();
-                result.sampleEnd();
-                result.setSuccessful(true);
-                result.setResponseMessage(lineSeparator + "Received " + client.getReceivedMessageCounter().get() + " " +
-                                          "messages." +
-                                          lineSeparator + "Current message QOS : " + receivedMessage.getQos() +
-                                          lineSeparator + "Is current message a duplicate : " + receivedMessage.isDup()
-                                          + lineSeparator + "Received timestamp of current message : " +
-                                          receivedMessage.getCurrentTimestamp() + lineSeparator + "Is current message" +
-                                          " a retained message : " + receivedMessage.isRetained());
-                result.setBytes(receivedMessage.getPayload().length);
+        if (null != client && !client.isConnected() && !client.isReconnecting()) {
+            // The connection was lost and not reconnected
+            result.setSuccessful(false);
+            result.setResponseMessage("Client is not connected.");
+            result.sampleEnd();
+            result.setResponseCode("FAILED");
+            return result;
+        }
+
+        if (isLatencyOnly()) {
+            return sampleLatencyOnly(result);
+        }
+
+        int batchSize = getBatchSize();
+        long batchDuration = getBatchDuration();
+        if (batchSize > 1 || batchDuration > 0) {
+            return receiveBatch(result, batchSize, batchDuration);
+        }
+
+        Message receivedMessage = null;
+        try {
+            if (!interrupted) {
+                receivedMessage = client.receive(getReceiveTimeout());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (null != receivedMessage) {
+            long receivedCount = client.getReceivedMessageCounter().incrementAndGet();
+            result.sampleEnd();
+            result.setSuccessful(true);
+            String responseMessage = lineSeparator + "Received " + receivedCount +
+                                     " messages." +
+                                     lineSeparator + "Current message QOS : " + receivedMessage.getQos() +
+                                     lineSeparator + "Is current message a duplicate : " + receivedMessage.isDup()
+                                     + lineSeparator + "Received timestamp of current message : " +
+                                     receivedMessage.getCurrentTimestamp() + lineSeparator + "Is current message" +
+                                     " a retained message : " + receivedMessage.isRetained() + lineSeparator +
+                                     "Time in local queue (ms) : " +
+                                     Utils.formatNanos(receivedMessage.getQueueDwellTime());
+            if (receivedMessage.hasLatencyHeader()) {
+                // The end to end latency is the latency of the sample
+                long endToEndLatency = receivedMessage.getEndToEndLatency();
+                result.setLatency(endToEndLatency / 1000000L);
+                responseMessage = responseMessage + lineSeparator + "Publisher ID : " +
+                                  receivedMessage.getPublisherId() + lineSeparator + "Sequence number : " +
+                                  receivedMessage.getSequence() + lineSeparator + "End to end latency (ms) : " +
+                                  Utils.formatNanos(endToEndLatency);
+            }
+            if (receivedMessage.getPayloadHash() >= 0) {
+                responseMessage = responseMessage + lineSeparator + "Payload CRC32 : " +
+                                  Long.toHexString(receivedMessage.getPayloadHash());
+            }
+            StringBuilder bufferSummary = new StringBuilder();
+            appendReceiveBuffer(bufferSummary);
+            result.setResponseMessage(responseMessage + bufferSummary);
+            result.setBytes(receivedMessage.getPayloadLength());
+            if (receivedMessage.hasPayload()) {
                 result.setResponseData(receivedMessage.getPayload());
-                result.setResponseCodeOK();
-                return result;
             }
+            result.setResponseCodeOK();
+            return result;
+        }
+
+        if (!interrupted && !Thread.currentThread().isInterrupted() && null != client.getReceivedMessages()) {
+            // The receive timeout expired without a message, which is not an error
+            result.sampleEnd();
+            result.setSuccessful(true);
+            result.setResponseMessage("No message received within " + getReceiveTimeout() + " ms." +
+                                      (client.isReconnecting() ? " Client is reconnecting." : ""));
+            result.setResponseCode(NO_MESSAGE_RESPONSE_CODE);
+            return result;
         }
 
         result.setSuccessful(false);
-        result.setResponseMessage("Client has been stopped or an error occurred while receiving messages. Received "  + " valid messages.");
+        result.setResponseMessage("Client has been stopped or an error occurred while receiving messages.");
         result.sampleEnd();
         result.setResponseCode("FAILED");
         return result;
     }
 
+    /**
+     * Receives a batch of messages and reports them as a single sample. The batch ends when the given number of
+     * messages has been received or, if a batch duration is given, when the duration has elapsed. Without a batch
+     * duration the receive timeout limits how long the batch waits for messages.
+     *
+     * @param result        The result of the sample, which has already been started.
+     * @param batchSize     The number of messages to receive.
+     * @param batchDuration The time slice in milliseconds to receive for. Overrides the batch size if positive.
+     * @return The sample result.
+     */
+    private SampleResult receiveBatch(SampleResult result, int batchSize, long batchDuration) {
+        long timeout = batchDuration > 0 ? batchDuration : getReceiveTimeout();
+        long deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000L : 0;
+        int maxMessages = batchDuration > 0 ? Integer.MAX_VALUE : batchSize;
+        if (null == receivedBatch) {
+            receivedBatch = new ArrayList<Message>();
+        }
+
+        int count = 0;
+        long totalBytes = 0;
+        long firstReceivedTime = 0;
+        long lastReceivedTime = 0;
+        int latencyCount = 0;
+        long minLatency = Long.MAX_VALUE;
+        long maxLatency = 0;
+        long totalLatency = 0;
+        long minDwell = Long.MAX_VALUE;
+        long maxDwell = 0;
+        long totalDwell = 0;
+        try {
+            while (!interrupted && count < maxMessages) {
+                long wait = 0;
+                if (deadline != 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    // Round up so that the wait does not become 0, which waits indefinitely
+                    wait = (remaining + 999999L) / 1000000L;
+                }
+                if (client.receive(receivedBatch, maxMessages - count, wait) == 0 && deadline == 0) {
+                    break;
+                }
+                for (Message message : receivedBatch) {
+                    if (count == 0) {
+                        firstReceivedTime = message.getReceivedTime();
+                    }
+                    lastReceivedTime = message.getReceivedTime();
+                    count++;
+                    totalBytes += message.getPayloadLength();
+                    long dwell = message.getQueueDwellTime();
+                    totalDwell += dwell;
+                    minDwell = Math.min(minDwell, dwell);
+                    maxDwell = Math.max(maxDwell, dwell);
+                    if (message.hasLatencyHeader()) {
+                        long latency = message.getEndToEndLatency();
+                        latencyCount++;
+                        totalLatency += latency;
+                        minLatency = Math.min(minLatency, latency);
+                        maxLatency = Math.max(maxLatency, latency);
+                    }
+                }
+                receivedBatch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        result.sampleEnd(); // stop stopwatch
+        long receivedCount = client.getReceivedMessageCounter().addAndGet(count);
+
+        result.setSampleCount(Math.max(count, 1));
+        result.setBytes((int) Math.min(totalBytes, Integer.MAX_VALUE));
+        if (latencyCount > 0) {
+            // The average end to end latency is the latency of the sample
+            result.setLatency(totalLatency / latencyCount / 1000000L);
+        }
+
+        StringBuilder summary = new StringBuilder();
+        summary.append("Received ").append(count).append(" messages in batch, ").append(totalBytes).append(" bytes")
+                .append(lineSeparator).append("Received ").append(receivedCount).append(" messages total");
+        if (count > 0) {
+            long window = lastReceivedTime - firstReceivedTime;
+            summary.append(lineSeparator).append("First message received at : ")
+                    .append(firstReceivedTime / 1000000L)
+                    .append(lineSeparator).append("Last message received at : ")
+                    .append(lastReceivedTime / 1000000L)
+                    .append(lineSeparator).append("Arrival window (ms) : ").append(Utils.formatNanos(window));
+            if (window > 0) {
+                summary.append(lineSeparator).append("Arrival rate (messages/s) : ")
+                        .append(String.format("%.1f", (count - 1) * 1000000000D / window));
+            }
+            // Time the sampler kept the messages waiting, not part of the end to end latency
+            summary.append(lineSeparator).append("Time in local queue (ms) min/avg/max : ")
+                    .append(Utils.formatNanos(minDwell)).append("/")
+                    .append(Utils.formatNanos(totalDwell / count)).append("/")
+                    .append(Utils.formatNanos(maxDwell));
+        }
+        if (latencyCount > 0) {
+            summary.append(lineSeparator).append("End to end latency (ms) min/avg/max : ")
+                    .append(Utils.formatNanos(minLatency)).append("/")
+                    .append(Utils.formatNanos(totalLatency / latencyCount)).append("/")
+                    .append(Utils.formatNanos(maxLatency));
+        }
+        appendReceiveBuffer(summary);
+        result.setResponseMessage(summary.toString());
+
+        if (count > 0) {
+            result.setSuccessful(true);
+            result.setResponseCodeOK();
+        } else if (!interrupted && !Thread.currentThread().isInterrupted() && null != client.getReceivedMessages()) {
+            result.setSuccessful(true);
+            result.setResponseCode(NO_MESSAGE_RESPONSE_CODE);
+        } else {
+            result.setSuccessful(false);
+            result.setResponseCode("FAILED");
+        }
+        return result;
+    }
+
+    /**
+     * Appends the state of the receive buffer of the client to a summary. A full buffer means the sampler, not the
+     * broker, limits the throughput.
+     *
+     * @param summary The summary.
+     */
+    private void appendReceiveBuffer(StringBuilder summary) {
+        int capacity = client.getReceiveBufferCapacity();
+        summary.append(lineSeparator).append("Receive buffer depth/high-water mark/capacity : ")
+                .append(client.getReceiveBufferDepth()).append("/").append(client.getReceiveBufferHighWaterMark())
+                .append("/").append(capacity > 0 ? Integer.toString(capacity) : "unbounded");
+        long overflowCount = client.getOverflowCount();
+        if (overflowCount > 0) {
+            String policy = client.getOverflowPolicy();
+            String overflow;
+            if (Constants.MQTT_RECEIVE_BUFFER_BLOCK.equals(policy)) {
+                overflow = "held back";
+            } else if (Constants.MQTT_RECEIVE_BUFFER_COUNT_ONLY.equals(policy)) {
+                overflow = "only counted";
+            } else {
+                overflow = "dropped";
+            }
+            summary.append(lineSeparator).append("Messages ").append(overflow).append(" by the full buffer : ")
+                    .append(overflowCount);
+        }
+    }
+
+    /**
+     * Samples the messages received over one report interval when messages are only counted and their latency
+     * recorded. The latency percentiles are reported by the {@link LatencyReporter}.
+     *
+     * @param result The started sample result.
+     * @return The sample result.
+     */
+    private SampleResult sampleLatencyOnly(SampleResult result) {
+        long interval = LatencyReporter.getReportInterval();
+        long waitUntil = System.currentTimeMillis() + (interval > 0 ? interval * 1000L : 1000L);
+        try {
+            long remaining;
+            while (!interrupted && (remaining = waitUntil - System.currentTimeMillis()) > 0) {
+                Thread.sleep(Math.min(remaining, LATENCY_ONLY_POLL_INTERVAL));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        long messageCount = client.takeUnqueuedMessageCount();
+        long byteCount = client.takeUnqueuedByteCount();
+        result.sampleEnd();
+        result.setSuccessful(true);
+        result.setSampleCount((int) Math.max(1, Math.min(messageCount, Integer.MAX_VALUE)));
+        result.setBytes((int) Math.min(byteCount, Integer.MAX_VALUE));
+        result.setResponseMessage("Received " + messageCount + " messages.");
+        result.setResponseCodeOK();
+        return result;
+    }
+
     /**
      * Validates parameters
      *
@@ -351,8 +774,9 @@ public class SubscriberSampler extends AbstractSampler implements Interruptible,
             log.error("The broker url cannot be empty");
             return false;
         }
-        if (StringUtils.isBlank(getTopicName())) {
-            log.error("The topic name(destination) cannot be empty");
+        if (StringUtils.isBlank(getTopicName()) && StringUtils.isBlank(getTopicFilters()) &&
+            StringUtils.isBlank(getTopicFiltersFile())) {
+            log.error("The topic name(destination) and topic filters cannot all be empty");
             return false;
         }
         return true;
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jmeter.protocol.mqtt.utilities;
+
+/**
+ * Wall clock time with nanosecond resolution. The time is derived from {@link System#nanoTime()}, anchored to
+ * {@link System#currentTimeMillis()} once per JVM, so that it is monotonic within the JVM and comparable across
+ * machines whose clocks are synchronized.
+ */
+public final class Clock {
+    private static final long BASE_EPOCH_NANOS = System.currentTimeMillis() * 1000000L;
+    private static final long BASE_NANO_TIME = System.nanoTime();
+
+    private Clock() {
+    }
+
+    /**
+     * Gets the current time in nanoseconds since the epoch.
+     *
+     * @return The current time in nanoseconds.
+     */
+    public static long epochNanos() {
+        return BASE_EPOCH_NANOS + (System.nanoTime() - BASE_NANO_TIME);
+    }
+
+    /**
+     * Converts a {@link System#nanoTime()} value of this JVM to the time since the epoch.
+     *
+     * @param nanoTime The value of {@link System#nanoTime()}.
+     * @return The time in nanoseconds since the epoch.
+     */
+    public static long toEpochNanos(long nanoTime) {
+        return BASE_EPOCH_NANOS + (nanoTime - BASE_NANO_TIME);
+    }
+}
@@ -24,30 +24,84 @@ public final class Constants {
     public static final String MQTT_ASYNC_CLIENT = "mqtt_async_client";
     public static final String MQTT_AT_LEAST_ONCE = "mqtt_at_least_once";
     public static final String MQTT_AT_MOST_ONCE = "mqtt_at_most_once";
+    public static final String MQTT_BATCH_DURATION = "Batch Duration (ms)";
+    public static final String MQTT_BATCH_DURATION_DEFAULT = "0";
+    public static final String MQTT_BATCH_SIZE = "Messages per Sample";
+    public static final String MQTT_BATCH_SIZE_DEFAULT = "1";
+    public static final String MQTT_BATCH_SUB_RESULTS = "Add Sub Results";
     public static final String MQTT_BLOCKING_CLIENT = "mqtt_blocking_client";
     public static final String MQTT_CLEAN_SESSION = "Clean Session";
     public static final String MQTT_CLIENT_ID = "Client ID";
     public static final String MQTT_CLIENT_ID_GENERATOR = "Generate ID";
+    public static final String MQTT_CLIENT_ID_PREFIX = "Client ID Prefix";
     public static final String MQTT_CLIENT_TYPES = "mqtt_client_types";
+    public static final String MQTT_CONNECT_TITLE = "MQTT Connect";
+    public static final String MQTT_CORPUS_PATH = "Corpus (directory or zip)";
+    public static final String MQTT_CORPUS_SELECTION = "mqtt_corpus_selection";
+    public static final String MQTT_CORPUS_SELECTION_RANDOM = "mqtt_corpus_selection_random";
+    public static final String MQTT_CORPUS_SELECTION_ROUND_ROBIN = "mqtt_corpus_selection_round_robin";
+    public static final String MQTT_CORPUS_SELECTION_WEIGHTED = "mqtt_corpus_selection_weighted";
+    public static final String MQTT_DEVICE_COUNT = "Devices per Thread";
+    public static final String MQTT_DEVICE_COUNT_DEFAULT = "100";
+    public static final String MQTT_DEVICE_FLEET_TITLE = "MQTT Device Fleet";
+    public static final String MQTT_DEVICE_TOPIC_DEFAULT = "devices/{device}/telemetry";
     public static final String MQTT_EXACTLY_ONCE = "mqtt_exactly_once";
     public static final String MQTT_FILE = "File";
     public static final String MQTT_KEEP_ALIVE = "Keep Alive";
     public static final String MQTT_KEEP_ALIVE_DEFAULT = "0";
+    public static final String MQTT_KEEP_CONNECTION = "Keep Connection Open";
+    public static final String MQTT_LATENCY_HEADER = "Add Latency Header";
+    public static final String MQTT_LATENCY_ONLY = "Latency Histogram Only";
+    public static final String MQTT_MAX_IN_FLIGHT = "Max In-Flight (at most 10 with the Async client, use NIO for more)";
+    public static final String MQTT_MAX_IN_FLIGHT_DEFAULT = "0";
     public static final String MQTT_MESSAGE_INPUT_TYPE = "mqtt_message_input_type";
+    public static final String MQTT_MESSAGE_INPUT_TYPE_CORPUS = "mqtt_message_input_type_corpus";
     public static final String MQTT_MESSAGE_INPUT_TYPE_FILE = "mqtt_message_input_type_file";
+    public static final String MQTT_MESSAGE_INPUT_TYPE_GENERATED = "mqtt_message_input_type_generated";
+    public static final String MQTT_MESSAGE_INPUT_TYPE_TEMPLATE = "mqtt_message_input_type_template";
     public static final String MQTT_MESSAGE_INPUT_TYPE_TEXT = "mqtt_message_input_type_text";
+    public static final String MQTT_METADATA_ONLY = "Metadata Only (payloads are not kept)";
+    public static final String MQTT_NIO_CLIENT = "mqtt_nio_client";
     public static final String MQTT_PASSWORD = "Password";
+    public static final String MQTT_PAYLOAD_SIZES = "Payload Sizes (e.g. 70% 200B, 25% 2KB, 5% 64KB)";
+    public static final String MQTT_PAYLOAD_SIZES_DEFAULT = "1KB";
+    public static final String MQTT_PERSISTENCE = "mqtt_persistence";
+    public static final String MQTT_PERSISTENCE_FILE = "mqtt_persistence_file";
+    public static final String MQTT_PERSISTENCE_LOG = "mqtt_persistence_log";
+    public static final String MQTT_PERSISTENCE_MEMORY = "mqtt_persistence_memory";
+    public static final String MQTT_PERSISTENCE_NONE = "mqtt_persistence_none";
     public static final String MQTT_PROVIDER_URL = "Provider URL";
     public static final String MQTT_PUBLISHER_TITLE = "MQTT Publisher";
+    public static final String MQTT_PUBLISH_INTERVAL = "Publish Interval (ms)";
+    public static final String MQTT_PUBLISH_INTERVAL_DEFAULT = "1000";
     public static final String MQTT_QOS = "mqtt_qos";
+    public static final String MQTT_RECEIVE_BUFFER_BLOCK = "mqtt_receive_buffer_block";
+    public static final String MQTT_RECEIVE_BUFFER_CAPACITY = "Receive Buffer Capacity (0 for unbounded)";
+    public static final String MQTT_RECEIVE_BUFFER_CAPACITY_DEFAULT = "100000";
+    public static final String MQTT_RECEIVE_BUFFER_COUNT_ONLY = "mqtt_receive_buffer_count_only";
+    public static final String MQTT_RECEIVE_BUFFER_DROP_NEWEST = "mqtt_receive_buffer_drop_newest";
+    public static final String MQTT_RECEIVE_BUFFER_DROP_OLDEST = "mqtt_receive_buffer_drop_oldest";
+    public static final String MQTT_RECEIVE_BUFFER_POLICY = "mqtt_receive_buffer_policy";
+    public static final String MQTT_RECEIVE_TIMEOUT = "Receive Timeout (ms)";
+    public static final String MQTT_RECEIVE_TIMEOUT_DEFAULT = "0";
     public static final String MQTT_RESET_USERNAME_PASSWORD = "Reset Credentials";
+    public static final String MQTT_SAMPLE_INTERVAL = "Sample Interval (ms)";
+    public static final String MQTT_SAMPLE_INTERVAL_DEFAULT = "1000";
     public static final String MQTT_SEND_AS_RETAINED_MSG = "Retained";
+    public static final String MQTT_SHARED_CONNECTIONS = "Shared Connections";
+    public static final String MQTT_SHARED_CONNECTIONS_DEFAULT = "0";
     public static final String MQTT_SUBSCRIBER_TITLE = "MQTT Subscriber";
+    public static final String MQTT_SUBSCRIBE_BATCH_SIZE = "Topic Filters per SUBSCRIBE";
+    public static final String MQTT_SUBSCRIBE_BATCH_SIZE_DEFAULT = "100";
+    public static final String MQTT_SUBSCRIBE_TOPIC = "Subscribe Topic";
     public static final String MQTT_TEXT_AREA = "Text Message";
     public static final String MQTT_TOPIC = "Topic";
+    public static final String MQTT_TOPIC_FILTERS = "Topic Filters (e.g. fleet/+/telemetry,1)";
+    public static final String MQTT_TOPIC_FILTERS_FILE = "Topic Filters File";
     public static final String MQTT_URL_DEFAULT = "tcp://localhost:1883";
     public static final String MQTT_USER_PASSWORD = "admin";
     public static final String MQTT_USER_USERNAME = "admin";
     public static final String MQTT_USERNAME = "Username";
+    public static final String MQTT_V5_CLIENT = "mqtt_v5_client";
     public static final String RESET_CREDENTIALS = "reset_credentials";
 }
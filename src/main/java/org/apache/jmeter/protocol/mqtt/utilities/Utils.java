@@ -33,4 +33,14 @@ public class Utils {
         clientId = StringUtils.substring(clientId, 0, 23);
         return clientId;
     }
+
+    /**
+     * Formats a duration in nanoseconds as milliseconds with three decimals.
+     *
+     * @param nanos The duration in nanoseconds.
+     * @return The duration in milliseconds.
+     */
+    public static String formatNanos(long nanos) {
+        return String.format("%.3f", nanos / 1000000D);
+    }
 }
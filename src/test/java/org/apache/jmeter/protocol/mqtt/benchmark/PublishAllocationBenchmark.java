@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.benchmark;
+
+import org.apache.jmeter.protocol.mqtt.data.objects.PublishMessage;
+import org.apache.jmeter.protocol.mqtt.paho.clients.AsyncClient;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BaseClient;
+import org.apache.jmeter.protocol.mqtt.paho.clients.BlockingClient;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes the publishing thread allocates per publish, with ThreadMXBean, against a local stub broker.
+ * Each client publishes a message built for every publish, as the sampler did before it reused its publish message,
+ * and the same pre-built message, as the sampler does now.
+ * <p/>
+ * Run with mvn -Pallocation-benchmark verify. The first round of each case warms up and is not reported.
+ */
+public class PublishAllocationBenchmark {
+    private static final String TOPIC = "benchmark/allocation";
+    private static final int PAYLOAD_SIZE = 256;
+    private static final int PUBLISHES = 100000;
+    private static final int ROUNDS = 4;
+    private static final int MAX_IN_FLIGHT = 10;
+
+    // Only the HotSpot ThreadMXBean counts allocated bytes
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        File properties = File.createTempFile("jmeter", ".properties");
+        properties.deleteOnExit();
+        JMeterUtils.loadJMeterProperties(properties.getPath());
+        // Logging the publishes would be measured as well
+        LoggingManager.setPriority("WARN");
+
+        StubBroker broker = new StubBroker();
+        PublishAllocationBenchmark benchmark = new PublishAllocationBenchmark();
+        for (int qos = 0; qos <= 1; qos++) {
+            BaseClient blocking = new BlockingClient(broker.getUrl(), "benchmark-blocking-" + qos, true, null, null,
+                                                     0, new MemoryPersistence(), null);
+            benchmark.run("blocking", blocking, qos);
+            blocking.close();
+            BaseClient async = new AsyncClient(broker.getUrl(), "benchmark-async-" + qos, true, null, null, 0,
+                                               MAX_IN_FLIGHT, new MemoryPersistence(), null);
+            benchmark.run("async (window " + MAX_IN_FLIGHT + ")", async, qos);
+            async.close();
+        }
+        System.exit(0);
+    }
+
+    private void run(String client, BaseClient baseClient, int qos) throws Exception {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        PublishMessage message = new PublishMessage(TOPIC, qos, false, payload);
+        long perMessage = 0;
+        long reused = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = getAllocatedBytes();
+            for (int i = 0; i < PUBLISHES; i++) {
+                baseClient.publish(TOPIC, qos, payload, false);
+            }
+            long middle = getAllocatedBytes();
+            for (int i = 0; i < PUBLISHES; i++) {
+                baseClient.publish(message);
+            }
+            long end = getAllocatedBytes();
+            if (round > 0) {
+                perMessage += middle - start;
+                reused += end - middle;
+            }
+        }
+        long publishes = (long) PUBLISHES * (ROUNDS - 1);
+        System.out.println(client + " QoS " + qos + " : " + perMessage / publishes + " -> " + reused / publishes +
+                           " bytes/publish");
+    }
+
+    private long getAllocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Hemika Yasinda Kodikara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jmeter.protocol.mqtt.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A broker which accepts every connection and acknowledges CONNECT, QoS 1 PUBLISH and PINGREQ packets, and drops
+ * everything else, so that a benchmark measures the client rather than a broker.
+ */
+class StubBroker implements Runnable {
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private final ServerSocket serverSocket;
+
+    StubBroker() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread thread = new Thread(this, "stub-broker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String getUrl() {
+        return "tcp://localhost:" + serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                Thread connection = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "stub-broker-connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private static void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            byte[] body = new byte[1 << 20];
+            while (true) {
+                int header = in.read();
+                if (header < 0) {
+                    return;
+                }
+                int length = readLength(in);
+                if (length > body.length) {
+                    body = new byte[length];
+                }
+                in.readFully(body, 0, length);
+                int type = header >>> 4;
+                if (CONNECT == type) {
+                    out.write(new byte[]{0x20, 2, 0, 0});
+                } else if (PUBLISH == type && 1 == ((header >>> 1) & 0x03)) {
+                    int topicLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+                    out.write(new byte[]{0x40, 2, body[2 + topicLength], body[3 + topicLength]});
+                } else if (PINGREQ == type) {
+                    out.write(new byte[]{(byte) 0xD0, 0});
+                } else if (DISCONNECT == type) {
+                    return;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connection closed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+
+    private static int readLength(InputStream in) throws IOException {
+        int multiplier = 1;
+        int length = 0;
+        int digit;
+        do {
+            digit = in.read();
+            if (digit < 0) {
+                throw new EOFException();
+            }
+            length += (digit & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((digit & 0x80) != 0);
+        return length;
+    }
+}